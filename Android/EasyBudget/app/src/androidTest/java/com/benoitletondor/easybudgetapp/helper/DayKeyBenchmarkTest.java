@@ -0,0 +1,287 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.helper;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Micro-benchmark of {@link DayKey} against the {@link Calendar} based day arithmetic it replaces,
+ * and of day lookups in DB with an exact match on the local epoch day against date ranges.
+ * Results (allocations and duration per call) are printed in logcat with the {@link #TAG} tag.
+ *
+ * @author Benoit LETONDOR
+ */
+@SuppressWarnings("deprecation")
+public class DayKeyBenchmarkTest extends AndroidTestCase
+{
+    private static final String TAG = "DayKeyBenchmark";
+
+    /**
+     * Number of calls for each measure
+     */
+    private static final int CALLS = 10000;
+    /**
+     * Timestamp of the first call: 2016-01-01 GMT
+     */
+    private static final long FIRST_TIMESTAMP = 1451606400000L;
+    /**
+     * Step between timestamps of two calls: a bit more than 7 hours, to hit every hour of the day
+     */
+    private static final long STEP = 7 * 60 * 60 * 1000L + 13 * 60 * 1000L + 17;
+
+// -------------------------------------------->
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        DayKey.onTimeZoneChanged();
+    }
+
+// -------------------------------------------->
+
+    public void testLocalEpochDay()
+    {
+        for(int i = 0; i < CALLS; i++)
+        {
+            long timestamp = FIRST_TIMESTAMP + i * STEP;
+            assertEquals(getLocalEpochDayWithCalendar(timestamp), DayKey.fromTimestamp(timestamp));
+        }
+
+        long checksumCalendar = 0;
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for(int i = 0; i < CALLS; i++)
+        {
+            checksumCalendar += getLocalEpochDayWithCalendar(FIRST_TIMESTAMP + i * STEP);
+        }
+        long calendarDuration = System.nanoTime() - start;
+        int calendarAllocations = Debug.getThreadAllocCount();
+
+        long checksumDayKey = 0;
+        Debug.resetThreadAllocCount();
+        start = System.nanoTime();
+        for(int i = 0; i < CALLS; i++)
+        {
+            checksumDayKey += DayKey.fromTimestamp(FIRST_TIMESTAMP + i * STEP);
+        }
+        long dayKeyDuration = System.nanoTime() - start;
+        int dayKeyAllocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertEquals(checksumCalendar, checksumDayKey);
+        logResult("local epoch day", calendarDuration, calendarAllocations, dayKeyDuration, dayKeyAllocations);
+    }
+
+    public void testStartOfDay()
+    {
+        for(int i = 0; i < CALLS; i++)
+        {
+            long timestamp = FIRST_TIMESTAMP + i * STEP;
+            assertEquals(cleanDateWithCalendar(timestamp), DayKey.getStartOfDay(DayKey.fromTimestamp(timestamp)));
+        }
+
+        long checksumCalendar = 0;
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for(int i = 0; i < CALLS; i++)
+        {
+            checksumCalendar += cleanDateWithCalendar(FIRST_TIMESTAMP + i * STEP);
+        }
+        long calendarDuration = System.nanoTime() - start;
+        int calendarAllocations = Debug.getThreadAllocCount();
+
+        long checksumDayKey = 0;
+        Debug.resetThreadAllocCount();
+        start = System.nanoTime();
+        for(int i = 0; i < CALLS; i++)
+        {
+            checksumDayKey += DayKey.getStartOfDay(DayKey.fromTimestamp(FIRST_TIMESTAMP + i * STEP));
+        }
+        long dayKeyDuration = System.nanoTime() - start;
+        int dayKeyAllocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertEquals(checksumCalendar, checksumDayKey);
+        logResult("start of day", calendarDuration, calendarAllocations, dayKeyDuration, dayKeyAllocations);
+    }
+
+    public void testDayQuery()
+    {
+        SQLiteDatabase database = SQLiteDatabase.create(null);
+        try
+        {
+            database.execSQL("CREATE TABLE expense (date integer not null, day integer not null);");
+            database.execSQL("CREATE INDEX D_i ON expense (date);");
+            database.execSQL("CREATE INDEX DA_i ON expense (day);");
+
+            SQLiteStatement insert = database.compileStatement("INSERT INTO expense VALUES (?, ?)");
+            database.beginTransaction();
+            for(int i = 0; i < CALLS; i++)
+            {
+                long timestamp = FIRST_TIMESTAMP + i * STEP;
+
+                insert.bindLong(1, timestamp);
+                insert.bindLong(2, DayKey.fromTimestamp(timestamp));
+                insert.executeInsert();
+            }
+            database.setTransactionSuccessful();
+            database.endTransaction();
+            insert.close();
+
+            SQLiteStatement rangeQuery = database.compileStatement("SELECT COUNT(*) FROM expense WHERE date >= ? AND date < ?");
+            SQLiteStatement dayQuery = database.compileStatement("SELECT COUNT(*) FROM expense WHERE day = ?");
+
+            for(int i = 0; i < CALLS; i++)
+            {
+                long timestamp = FIRST_TIMESTAMP + i * STEP;
+                assertEquals(countWithCalendarRange(rangeQuery, timestamp), countWithDay(dayQuery, timestamp));
+            }
+
+            long checksumCalendar = 0;
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            long start = System.nanoTime();
+            for(int i = 0; i < CALLS; i++)
+            {
+                checksumCalendar += countWithCalendarRange(rangeQuery, FIRST_TIMESTAMP + i * STEP);
+            }
+            long calendarDuration = System.nanoTime() - start;
+            int calendarAllocations = Debug.getThreadAllocCount();
+
+            long checksumDayKey = 0;
+            Debug.resetThreadAllocCount();
+            start = System.nanoTime();
+            for(int i = 0; i < CALLS; i++)
+            {
+                checksumDayKey += countWithDay(dayQuery, FIRST_TIMESTAMP + i * STEP);
+            }
+            long dayKeyDuration = System.nanoTime() - start;
+            int dayKeyAllocations = Debug.getThreadAllocCount();
+            Debug.stopAllocCounting();
+
+            rangeQuery.close();
+            dayQuery.close();
+
+            assertEquals(checksumCalendar, checksumDayKey);
+            logResult("day query", calendarDuration, calendarAllocations, dayKeyDuration, dayKeyAllocations);
+        }
+        finally
+        {
+            database.close();
+        }
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Compute the local epoch day the way {@link DateHelper} did before using {@link DayKey}
+     *
+     * @param timestamp
+     * @return
+     */
+    private static int getLocalEpochDayWithCalendar(long timestamp)
+    {
+        long localTime = timestamp + TimeZone.getDefault().getOffset(timestamp);
+
+        long epochDay = localTime / DayKey.DAY_IN_MS;
+        if( localTime < 0 && localTime % DayKey.DAY_IN_MS != 0 )
+        {
+            epochDay--;
+        }
+
+        return (int) epochDay;
+    }
+
+    /**
+     * Compute the start of the day the way {@link DateHelper#cleanDate(Date)} did before using {@link DayKey}
+     *
+     * @param timestamp
+     * @return
+     */
+    private static long cleanDateWithCalendar(long timestamp)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(new Date(timestamp));
+
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * Count expenses of the day of the given timestamp the way DB did before storing their local
+     * epoch day: with a range of dates from the start of the day computed with a {@link Calendar}
+     *
+     * @param rangeQuery count query taking the first timestamp (included) and the last one (excluded)
+     * @param timestamp
+     * @return
+     */
+    private static long countWithCalendarRange(SQLiteStatement rangeQuery, long timestamp)
+    {
+        long start = cleanDateWithCalendar(timestamp);
+
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(start);
+        cal.add(Calendar.DAY_OF_MONTH, 1);
+
+        rangeQuery.bindLong(1, start);
+        rangeQuery.bindLong(2, cal.getTimeInMillis());
+        return rangeQuery.simpleQueryForLong();
+    }
+
+    /**
+     * Count expenses of the day of the given timestamp with an exact match on their local epoch day
+     *
+     * @param dayQuery count query taking the local epoch day
+     * @param timestamp
+     * @return
+     */
+    private static long countWithDay(SQLiteStatement dayQuery, long timestamp)
+    {
+        dayQuery.bindLong(1, DayKey.fromTimestamp(timestamp));
+        return dayQuery.simpleQueryForLong();
+    }
+
+    /**
+     * Log per call durations and allocations of both implementations
+     *
+     * @param name
+     * @param calendarDuration total duration of Calendar calls (ns)
+     * @param calendarAllocations number of objects allocated by Calendar calls
+     * @param dayKeyDuration total duration of DayKey calls (ns)
+     * @param dayKeyAllocations number of objects allocated by DayKey calls
+     */
+    private static void logResult(String name, long calendarDuration, int calendarAllocations, long dayKeyDuration, int dayKeyAllocations)
+    {
+        Log.i(TAG, name + ": Calendar " + (calendarDuration / CALLS) + "ns/call " + ((float) calendarAllocations / CALLS) + " allocs/call, DayKey " + (dayKeyDuration / CALLS) + "ns/call " + ((float) dayKeyAllocations / CALLS) + " allocs/call");
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *   Copyright 2016 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Micro-benchmark of {@link BalanceIndex} against a sum of every day amount, checking that both
+ * give the same balances and first days above a threshold after random writes. Results are printed
+ * in logcat with the {@link #TAG} tag.
+ *
+ * @author Benoit LETONDOR
+ */
+public class BalanceIndexBenchmarkTest extends AndroidTestCase
+{
+    private static final String TAG = "BalanceIndexBenchmark";
+
+    /**
+     * Number of indexed days: 10 years
+     */
+    private static final int DAYS = 3653;
+    /**
+     * Local epoch day of the first indexed day: 2016-01-01
+     */
+    private static final int FIRST_DAY = 16801;
+    /**
+     * Number of random writes applied
+     */
+    private static final int WRITES = 500;
+    /**
+     * Number of calls for each measure
+     */
+    private static final int CALLS = 10000;
+
+    private Random random;
+    private long baseBalance;
+    private long[] deltas;
+    private BalanceIndex index;
+
+// -------------------------------------------->
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        random = new Random(42);
+        baseBalance = 12345;
+
+        deltas = new long[DAYS];
+        for(int i = 0; i < DAYS; i++)
+        {
+            deltas[i] = random.nextInt(3) == 0 ? random.nextInt(20000) - 10000 : 0;
+        }
+
+        index = new BalanceIndex(FIRST_DAY, baseBalance, deltas.clone());
+    }
+
+// -------------------------------------------->
+
+    public void testWrites()
+    {
+        for(int i = 0; i < WRITES; i++)
+        {
+            DayChanges changes = new DayChanges();
+
+            // Days before and after the indexed ones are written too
+            for(int j = random.nextInt(3); j >= 0; j--)
+            {
+                int day = FIRST_DAY - 10 + random.nextInt(DAYS + 20);
+                long amount = random.nextInt(20000) - 10000;
+
+                changes.add(day, amount);
+
+                if( day < FIRST_DAY )
+                {
+                    baseBalance += amount;
+                }
+                else if( day < FIRST_DAY + DAYS )
+                {
+                    deltas[day - FIRST_DAY] += amount;
+                }
+            }
+
+            index.applyChanges(changes);
+        }
+
+        for(int day = FIRST_DAY - 1; day < FIRST_DAY + DAYS; day++)
+        {
+            assertEquals(getBalanceWithSum(day), index.getBalance(day));
+        }
+
+        assertEquals(DBCache.BALANCE_NOT_CACHED, index.getBalance(FIRST_DAY - 2));
+        assertEquals(DBCache.BALANCE_NOT_CACHED, index.getBalance(FIRST_DAY + DAYS));
+    }
+
+    public void testFirstDayWithBalanceAbove()
+    {
+        for(int i = 0; i < WRITES; i++)
+        {
+            int day = FIRST_DAY + random.nextInt(DAYS);
+            long amount = random.nextInt(20000) - 10000;
+
+            DayChanges changes = new DayChanges();
+            changes.add(day, amount);
+            index.applyChanges(changes);
+            deltas[day - FIRST_DAY] += amount;
+
+            int fromDay = FIRST_DAY - 5 + random.nextInt(DAYS + 10);
+            long threshold = getBalanceWithSum(FIRST_DAY + random.nextInt(DAYS)) + random.nextInt(2000) - 1000;
+
+            assertEquals(getFirstDayAboveWithScan(fromDay, threshold), index.getFirstDayWithBalanceAbove(fromDay, threshold));
+        }
+
+        long threshold = getBalanceWithSum(FIRST_DAY + DAYS - 1);
+
+        long checksumScan = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < CALLS / 10; i++)
+        {
+            checksumScan += getFirstDayAboveWithScan(FIRST_DAY + i % DAYS, threshold);
+        }
+        long scanDuration = System.nanoTime() - start;
+
+        long checksumIndex = 0;
+        start = System.nanoTime();
+        for(int i = 0; i < CALLS / 10; i++)
+        {
+            checksumIndex += index.getFirstDayWithBalanceAbove(FIRST_DAY + i % DAYS, threshold);
+        }
+        long indexDuration = System.nanoTime() - start;
+
+        assertEquals(checksumScan, checksumIndex);
+        Log.i(TAG, "first day above: scan " + (scanDuration / (CALLS / 10)) + "ns/call, index " + (indexDuration / (CALLS / 10)) + "ns/call");
+    }
+
+    public void testBalanceForDay()
+    {
+        long checksumSum = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < CALLS; i++)
+        {
+            checksumSum += getBalanceWithSum(FIRST_DAY + i % DAYS);
+        }
+        long sumDuration = System.nanoTime() - start;
+
+        long checksumIndex = 0;
+        start = System.nanoTime();
+        for(int i = 0; i < CALLS; i++)
+        {
+            checksumIndex += index.getBalance(FIRST_DAY + i % DAYS);
+        }
+        long indexDuration = System.nanoTime() - start;
+
+        assertEquals(checksumSum, checksumIndex);
+        Log.i(TAG, "balance for day: sum " + (sumDuration / CALLS) + "ns/call, index " + (indexDuration / CALLS) + "ns/call");
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Compute the balance of the given day by summing amounts of every day until it
+     *
+     * @param day local epoch day
+     * @return
+     */
+    private long getBalanceWithSum(int day)
+    {
+        long balance = baseBalance;
+        for(int i = 0; i <= day - FIRST_DAY; i++)
+        {
+            balance += deltas[i];
+        }
+
+        return balance;
+    }
+
+    /**
+     * Find the first day above the threshold by computing the balance of each day
+     *
+     * @param fromDay first local epoch day to look at
+     * @param threshold
+     * @return local epoch day, {@link BalanceIndex#NO_DAY} if no day matches
+     */
+    private int getFirstDayAboveWithScan(int fromDay, long threshold)
+    {
+        long balance = baseBalance;
+        for(int i = 0; i < DAYS; i++)
+        {
+            balance += deltas[i];
+            if( FIRST_DAY + i >= fromDay && balance > threshold )
+            {
+                return FIRST_DAY + i;
+            }
+        }
+
+        return BalanceIndex.NO_DAY;
+    }
+}
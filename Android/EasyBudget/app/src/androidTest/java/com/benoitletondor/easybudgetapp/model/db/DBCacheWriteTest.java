@@ -0,0 +1,174 @@
+/*
+ *   Copyright 2016 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import com.benoitletondor.easybudgetapp.helper.CurrencyHelper;
+import com.benoitletondor.easybudgetapp.helper.DateHelper;
+import com.benoitletondor.easybudgetapp.model.Expense;
+import com.benoitletondor.easybudgetapp.model.MonthlyExpense;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Tests that writes into DB are applied to months cached by {@link DBCache} (see
+ * {@link DBCache#endWrite(DB, DayChanges)}): after each write, cached balances and expenses of
+ * every day must be the ones read from an in-memory DB without cache.
+ *
+ * @author Benoit LETONDOR
+ */
+public class DBCacheWriteTest extends DBTestCase
+{
+    /**
+     * Maximum time to wait for a month to be loaded into cache (ms)
+     */
+    private static final long LOAD_TIMEOUT = 5000;
+
+    private DBCache cache;
+
+// -------------------------------------------->
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        cache = DBCache.getInstance(getContext());
+
+        // Expenses before and in the cached months, March and April
+        assertTrue(db.persistExpense(new Expense("before", 100, getDate(2016, 2, 20))));
+        assertTrue(db.persistExpense(new Expense("expense", 50, getDate(2016, 3, 10))));
+        assertTrue(db.persistExpense(new Expense("revenue", -200, getDate(2016, 3, 10))));
+        assertTrue(db.persistExpense(new Expense("expense", 30, getDate(2016, 4, 5))));
+
+        loadMonth(getDate(2016, 3, 1));
+        loadMonth(getDate(2016, 4, 1));
+        assertCacheMatchesDB();
+    }
+
+// -------------------------------------------->
+
+    public void testExpenseWrites()
+    {
+        Expense expense = new Expense("added", 40, getDate(2016, 3, 15));
+        assertTrue(db.persistExpense(expense));
+        assertCacheMatchesDB();
+
+        expense.setAmount(60);
+        assertTrue(db.persistExpense(expense));
+        assertCacheMatchesDB();
+
+        // Moved to the next cached month
+        expense.setDate(getDate(2016, 4, 20));
+        assertTrue(db.persistExpense(expense));
+        assertCacheMatchesDB();
+
+        assertTrue(db.deleteExpense(expense));
+        assertCacheMatchesDB();
+
+        // Before cached months: every cached balance is shifted
+        assertTrue(db.persistExpense(new Expense("before", -25, getDate(2016, 2, 25))));
+        assertCacheMatchesDB();
+    }
+
+    public void testMonthlyExpenseWrites()
+    {
+        MonthlyExpense monthlyExpense = new MonthlyExpense("rent", 500, getDate(2016, 1, 15), 12);
+        assertTrue(db.addMonthlyExpense(monthlyExpense));
+        assertCacheMatchesDB();
+
+        Expense marchOccurrence = db.getExpensesForDay(getDate(2016, 3, 15), false).get(0);
+        marchOccurrence.setAmount(450);
+        assertTrue(db.persistExpense(marchOccurrence));
+        assertCacheMatchesDB();
+
+        Expense aprilOccurrence = db.getExpensesForDay(getDate(2016, 4, 15), false).get(0);
+        assertTrue(db.deleteExpense(aprilOccurrence));
+        assertCacheMatchesDB();
+
+        List<Expense> deletedExpenses = db.getAllExpensesForMonthlyExpenseFromDate(monthlyExpense, getDate(2016, 3, 1));
+        assertTrue(db.deleteAllExpenseForMonthlyExpenseFromDate(monthlyExpense, getDate(2016, 3, 1)));
+        assertCacheMatchesDB();
+
+        // Undo of the delete
+        assertTrue(db.restoreMonthlyExpense(monthlyExpense, deletedExpenses));
+        assertCacheMatchesDB();
+
+        assertTrue(db.deleteAllExpenseForMonthlyExpense(monthlyExpense));
+        assertCacheMatchesDB();
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Load the given month into cache and wait for it
+     *
+     * @param month first day of the month
+     */
+    private void loadMonth(Date month) throws InterruptedException
+    {
+        cache.loadMonth(month);
+
+        int day = DateHelper.getLocalEpochDay(month);
+        long deadline = System.currentTimeMillis() + LOAD_TIMEOUT;
+        while( cache.getExpensesForDay(day) == null || cache.getBalanceForDay(day) == DBCache.BALANCE_NOT_CACHED )
+        {
+            assertTrue("Month not loaded: "+month, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Check that balances and expenses of each day of the cached months are the ones of DB
+     */
+    private void assertCacheMatchesDB()
+    {
+        int lastDay = getDay(2016, 4, 30);
+        for(int day = getDay(2016, 3, 1); day <= lastDay; day++)
+        {
+            Date date = DateHelper.getDateForLocalEpochDay(day);
+
+            long cachedBalance = cache.getBalanceForDay(day);
+            assertTrue("Balance not cached: "+date, cachedBalance != DBCache.BALANCE_NOT_CACHED);
+            assertEquals("Balance of "+date, CurrencyHelper.getDBValueForDouble(db.getBalanceForDay(date, false)), cachedBalance);
+
+            List<Expense> cachedExpenses = cache.getExpensesForDay(day);
+            assertNotNull("Expenses not cached: "+date, cachedExpenses);
+
+            List<Expense> expenses = db.getExpensesForDay(date, false);
+            assertEquals("Expenses of "+date, expenses.size(), cachedExpenses.size());
+            assertEquals("Amount of "+date, getAmount(expenses), getAmount(cachedExpenses));
+        }
+    }
+
+    /**
+     * Get the sum of the given expenses
+     *
+     * @param expenses
+     * @return the sum (DB value)
+     */
+    private static long getAmount(List<Expense> expenses)
+    {
+        long amount = 0;
+        for(Expense expense : expenses)
+        {
+            amount += CurrencyHelper.getDBValueForDouble(expense.getAmount());
+        }
+
+        return amount;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Check with {@code EXPLAIN QUERY PLAN} that no query of the DAO scans a whole table.
+ *
+ * @author Benoit LETONDOR
+ */
+public class DBQueryPlanTest extends AndroidTestCase
+{
+    private SQLiteDatabase database;
+
+// -------------------------------------------->
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        database = SQLiteDatabase.create(null);
+        new SQLiteDBHelper(getContext()).onCreate(database);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        database.close();
+
+        super.tearDown();
+    }
+
+// -------------------------------------------->
+
+    public void testExpenseQueries()
+    {
+        assertNoScan(DBStatements.SQL_EXPENSES_FOR_DAY);
+        assertNoScan(DBStatements.SQL_COUNT_EXPENSES_FOR_DAY);
+        assertNoScan(DBStatements.SQL_EXPENSES_FOR_RANGE_ORDERED);
+        assertNoScan(DBStatements.SQL_EXPENSE_AMOUNTS_FOR_RANGE);
+        assertNoScan(DBStatements.SQL_KIND_PAGE_FOR_RANGE);
+        assertNoScan(DBStatements.SQL_KIND_COUNTS_BY_DAY_FOR_RANGE);
+        assertNoScan(DBStatements.SQL_EXPENSES_FOR_MONTHLY);
+        assertNoScan(DBStatements.SQL_EXPENSES_FOR_MONTHLY_AFTER_DATE);
+        assertNoScan(DBStatements.SQL_EXPENSES_FOR_MONTHLY_BEFORE_DATE);
+        assertNoScan(DBStatements.SQL_COUNT_EXPENSES_FOR_MONTHLY_BEFORE_DATE);
+    }
+
+    public void testExpenseWrites()
+    {
+        String[] whereClauses = new String[]
+        {
+            DBStatements.WHERE_EXPENSE_FOR_ID,
+            DBStatements.WHERE_EXPENSES_FOR_MONTHLY,
+            DBStatements.WHERE_EXPENSES_FOR_MONTHLY_AFTER_DATE,
+            DBStatements.WHERE_EXPENSES_FOR_MONTHLY_BEFORE_DATE
+        };
+
+        for(String where : whereClauses)
+        {
+            // Same queries as DB.deleteExpenses
+            assertNoScan("SELECT " + SQLiteDBHelper.COLUMN_EXPENSE_DAY + ", " + SQLiteDBHelper.COLUMN_EXPENSE_AMOUNT + " FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + where);
+            assertNoScan("DELETE FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + where);
+        }
+
+        assertNoScan("UPDATE " + SQLiteDBHelper.TABLE_EXPENSE + " SET " + SQLiteDBHelper.COLUMN_EXPENSE_AMOUNT + " = ? WHERE " + DBStatements.WHERE_EXPENSE_FOR_ID);
+    }
+
+    public void testMonthlyExpenseQueries()
+    {
+        assertNoScan(DBStatements.SQL_MONTHLY_FOR_ID);
+        assertNoScan(DBStatements.SQL_RECURRING_MONTHLY);
+        assertNoScan("UPDATE " + SQLiteDBHelper.TABLE_MONTHLY_EXPENSE + " SET " + SQLiteDBHelper.COLUMN_MONTHLY_OCCURRENCES + " = ? WHERE " + DBStatements.WHERE_MONTHLY_FOR_ID);
+        assertNoScan("DELETE FROM " + SQLiteDBHelper.TABLE_MONTHLY_EXPENSE + " WHERE " + DBStatements.WHERE_MONTHLY_FOR_ID);
+    }
+
+    public void testDayBalanceQueries()
+    {
+        assertNoScan(DBStatements.SQL_BALANCE_FOR_DAY);
+        assertNoScan(DBStatements.SQL_DAY_DELTAS_FOR_RANGE);
+        assertNoScan(DBStatements.SQL_ADD_TO_DAY_DELTA);
+    }
+
+    public void testMonthSummaryQueries()
+    {
+        assertNoScan(DBStatements.SQL_MONTH_SUMMARY);
+        assertNoScan(DBStatements.SQL_ADD_TO_MONTH_TOTALS);
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Fail if the plan of the given query contains a scan
+     *
+     * @param sql query with "?" arguments
+     */
+    private void assertNoScan(String sql)
+    {
+        String[] args = new String[countArgs(sql)];
+        for(int i = 0; i < args.length; i++)
+        {
+            args[i] = "1";
+        }
+
+        Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try
+        {
+            int detailIndex = cursor.getColumnIndex("detail");
+            while( cursor.moveToNext() )
+            {
+                String detail = cursor.getString(detailIndex);
+                if( detail.startsWith("SCAN") && !detail.startsWith("SCAN CONSTANT ROW") )
+                {
+                    fail("Query \"" + sql + "\" scans: " + detail);
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Count the "?" arguments of the given query
+     *
+     * @param sql
+     * @return
+     */
+    private static int countArgs(String sql)
+    {
+        int count = 0;
+        for(int i = 0; i < sql.length(); i++)
+        {
+            if( sql.charAt(i) == '?' )
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.benoitletondor.easybudgetapp.helper.DateHelper;
+
+/**
+ * Micro-benchmark of {@link DBStatements} against the concatenated SQL it replaces. Results are
+ * printed in logcat with the {@link #TAG} tag.
+ *
+ * @author Benoit LETONDOR
+ */
+public class DBStatementsBenchmarkTest extends AndroidTestCase
+{
+    private static final String TAG = "DBStatementsBenchmark";
+
+    /**
+     * Number of expenses in DB
+     */
+    private static final int EXPENSES = 3000;
+    /**
+     * Number of calls for each measure
+     */
+    private static final int CALLS = 1000;
+    /**
+     * Number of milliseconds in a day
+     */
+    private static final long DAY_IN_MS = 24 * 60 * 60 * 1000L;
+
+    private SQLiteDatabase database;
+    private DBStatements statements;
+
+// -------------------------------------------->
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        database = SQLiteDatabase.create(null);
+        new SQLiteDBHelper(getContext()).onCreate(database);
+        statements = new DBStatements(database);
+
+        database.beginTransaction();
+        try
+        {
+            for(int i = 0; i < EXPENSES; i++)
+            {
+                statements.insertExpense(null, "expense " + i, 1000 + i, i * DAY_IN_MS / 3, i / 3, null);
+            }
+
+            database.setTransactionSuccessful();
+        }
+        finally
+        {
+            database.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        statements.close();
+        database.close();
+
+        super.tearDown();
+    }
+
+// -------------------------------------------->
+
+    public void testCountExpensesForDay()
+    {
+        // Warm up both paths
+        long expected = countWithConcatenatedSQL(0);
+        assertEquals(expected, statements.countExpensesForDay(0));
+
+        long checksumConcatenated = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < CALLS; i++)
+        {
+            checksumConcatenated += countWithConcatenatedSQL(i % (EXPENSES / 3));
+        }
+        long concatenatedDuration = System.nanoTime() - start;
+
+        long checksumCompiled = 0;
+        start = System.nanoTime();
+        for(int i = 0; i < CALLS; i++)
+        {
+            checksumCompiled += statements.countExpensesForDay(i % (EXPENSES / 3));
+        }
+        long compiledDuration = System.nanoTime() - start;
+
+        assertEquals(checksumConcatenated, checksumCompiled);
+        logResult("count for day", concatenatedDuration, compiledDuration);
+    }
+
+    public void testBalanceForDay()
+    {
+        long start = System.nanoTime();
+        for(int i = 0; i < CALLS; i++)
+        {
+            int month = DateHelper.getMonthIndexForLocalEpochDay(i);
+            Cursor cursor = database.rawQuery("SELECT COALESCE((SELECT SUM(" + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_EXPENSES + " - " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_REVENUES + ") FROM " + SQLiteDBHelper.TABLE_MONTH_SUMMARY + " WHERE " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_MONTH + " < " + month + "), 0)"
+                + " + COALESCE((SELECT SUM(" + SQLiteDBHelper.COLUMN_DAY_BALANCE_DELTA + ") FROM " + SQLiteDBHelper.TABLE_DAY_BALANCE + " WHERE " + SQLiteDBHelper.COLUMN_DAY_BALANCE_DAY + " >= " + DateHelper.getFirstLocalEpochDayOfMonth(month) + " AND " + SQLiteDBHelper.COLUMN_DAY_BALANCE_DAY + " <= " + i + "), 0)", null);
+            try
+            {
+                cursor.moveToFirst();
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+        long concatenatedDuration = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for(int i = 0; i < CALLS; i++)
+        {
+            statements.getBalanceForDay(i);
+        }
+        long compiledDuration = System.nanoTime() - start;
+
+        logResult("balance for day", concatenatedDuration, compiledDuration);
+    }
+
+    public void testInsertExpense()
+    {
+        database.beginTransaction();
+        try
+        {
+            long start = System.nanoTime();
+            for(int i = 0; i < CALLS; i++)
+            {
+                database.execSQL("INSERT INTO " + SQLiteDBHelper.TABLE_EXPENSE + " (" + SQLiteDBHelper.COLUMN_EXPENSE_TITLE + ", " + SQLiteDBHelper.COLUMN_EXPENSE_AMOUNT + ", " + SQLiteDBHelper.COLUMN_EXPENSE_DATE + ", " + SQLiteDBHelper.COLUMN_EXPENSE_DAY + ") VALUES ('concatenated', " + i + ", " + i * DAY_IN_MS + ", " + i + ")");
+            }
+            long concatenatedDuration = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(int i = 0; i < CALLS; i++)
+            {
+                assertTrue(statements.insertExpense(null, "compiled", i, i * DAY_IN_MS, i, null) > 0);
+            }
+            long compiledDuration = System.nanoTime() - start;
+
+            logResult("insert expense", concatenatedDuration, compiledDuration);
+        }
+        finally
+        {
+            database.endTransaction();
+        }
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Count expenses the way DB did before using {@link DBStatements}
+     *
+     * @param day local epoch day
+     * @return
+     */
+    private long countWithConcatenatedSQL(int day)
+    {
+        Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + SQLiteDBHelper.COLUMN_EXPENSE_DAY + " = " + day, null);
+        try
+        {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Log per call durations of both implementations
+     *
+     * @param name
+     * @param concatenatedDuration total duration of concatenated SQL calls (ns)
+     * @param compiledDuration total duration of compiled statement calls (ns)
+     */
+    private static void logResult(String name, long concatenatedDuration, long compiledDuration)
+    {
+        long concatenatedPerCall = concatenatedDuration / CALLS / 1000;
+        long compiledPerCall = compiledDuration / CALLS / 1000;
+
+        Log.i(TAG, name + ": concatenated " + concatenatedPerCall + "us/call, compiled " + compiledPerCall + "us/call, saving " + (concatenatedPerCall - compiledPerCall) + "us/call");
+    }
+}
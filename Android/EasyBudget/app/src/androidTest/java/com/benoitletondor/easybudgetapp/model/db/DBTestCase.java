@@ -0,0 +1,97 @@
+/*
+ *   Copyright 2016 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.test.AndroidTestCase;
+
+import com.benoitletondor.easybudgetapp.helper.DateHelper;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Base of tests of the DB layer: each test runs against an empty in-memory {@link DB} (see
+ * {@link DBConnectionManager#useInMemoryDatabase(android.content.Context, boolean)}), with helpers
+ * to build the days and dates it uses.
+ *
+ * @author Benoit LETONDOR
+ */
+public abstract class DBTestCase extends AndroidTestCase
+{
+    /**
+     * Precision of amount comparisons
+     */
+    protected static final double DELTA = 0.001;
+
+    /**
+     * The in-memory DB, empty at the start of each test
+     */
+    protected DB db;
+
+// -------------------------------------------->
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        DBConnectionManager.useInMemoryDatabase(getContext(), true);
+        db = new DB(getContext());
+        db.clearDB();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        db.close();
+        DBConnectionManager.useInMemoryDatabase(getContext(), false);
+
+        super.tearDown();
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Get the local epoch day of the given date
+     *
+     * @param year
+     * @param month month of year, from 1 to 12
+     * @param dayOfMonth
+     * @return
+     */
+    protected static int getDay(int year, int month, int dayOfMonth)
+    {
+        return DateHelper.getLocalEpochDay(getDate(year, month, dayOfMonth));
+    }
+
+    /**
+     * Get the given date at 00:00:00:000
+     *
+     * @param year
+     * @param month month of year, from 1 to 12
+     * @param dayOfMonth
+     * @return
+     */
+    protected static Date getDate(int year, int month, int dayOfMonth)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(year, month - 1, dayOfMonth);
+
+        return cal.getTime();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *   Copyright 2016 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import com.benoitletondor.easybudgetapp.model.Expense;
+import com.benoitletondor.easybudgetapp.model.MonthlyExpense;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Tests of {@link MonthSummary}s read from the month summary table after writes into an in-memory
+ * DB: totals and numbers must be the ones of the expenses of the month.
+ *
+ * @author Benoit LETONDOR
+ */
+public class MonthSummaryTest extends DBTestCase
+{
+    public void testExpenseWrites()
+    {
+        Date march = getDate(2016, 3, 1);
+        Date april = getDate(2016, 4, 1);
+
+        assertTrue(db.getMonthSummary(march).isEmpty());
+
+        Expense expense = new Expense("expense", 50, getDate(2016, 3, 10));
+        Expense revenue = new Expense("revenue", -200, getDate(2016, 3, 31));
+        assertTrue(db.persistExpense(expense));
+        assertTrue(db.persistExpense(revenue));
+        assertTrue(db.persistExpense(new Expense("expense", 30, getDate(2016, 4, 1))));
+
+        assertSummary(march, 200, 50, 1, 1);
+        assertSummary(april, 0, 30, 0, 1);
+
+        // Amount update
+        expense.setAmount(70);
+        assertTrue(db.persistExpense(expense));
+        assertSummary(march, 200, 70, 1, 1);
+
+        // Expense that becomes a revenue
+        expense.setAmount(-70);
+        assertTrue(db.persistExpense(expense));
+        assertSummary(march, 270, 0, 2, 0);
+
+        // Moved to the next month
+        revenue.setDate(getDate(2016, 4, 2));
+        assertTrue(db.persistExpense(revenue));
+        assertSummary(march, 70, 0, 1, 0);
+        assertSummary(april, 200, 30, 1, 1);
+
+        assertTrue(db.deleteExpense(expense));
+        assertTrue(db.getMonthSummary(march).isEmpty());
+        assertSummary(april, 200, 30, 1, 1);
+    }
+
+    public void testMonthlyExpenseWrites()
+    {
+        Date january = getDate(2016, 1, 1);
+        Date march = getDate(2016, 3, 1);
+        Date may = getDate(2016, 5, 1);
+
+        MonthlyExpense monthlyExpense = new MonthlyExpense("rent", 500, getDate(2016, 1, 15), 12);
+        assertTrue(db.addMonthlyExpense(monthlyExpense));
+        assertTrue(db.persistExpense(new Expense("expense", 20, getDate(2016, 3, 2))));
+
+        // Occurrences computed on the fly are counted
+        assertSummary(january, 0, 500, 0, 1);
+        assertSummary(march, 0, 520, 0, 2);
+
+        // Edited occurrences are stored
+        Expense marchOccurrence = db.getExpensesForDay(getDate(2016, 3, 15), false).get(0);
+        marchOccurrence.setAmount(450);
+        assertTrue(db.persistExpense(marchOccurrence));
+        assertSummary(march, 0, 470, 0, 2);
+
+        Expense mayOccurrence = db.getExpensesForDay(getDate(2016, 5, 15), false).get(0);
+        mayOccurrence.setAmount(-100);
+        assertTrue(db.persistExpense(mayOccurrence));
+        assertSummary(may, 100, 0, 1, 0);
+
+        // Stored and computed occurrences after the 1st of March are deleted
+        assertTrue(db.deleteAllExpenseForMonthlyExpenseFromDate(monthlyExpense, getDate(2016, 3, 1)));
+        assertSummary(january, 0, 500, 0, 1);
+        assertSummary(march, 0, 20, 0, 1);
+        assertTrue(db.getMonthSummary(may).isEmpty());
+        assertTrue(db.getMonthSummary(getDate(2016, 12, 1)).isEmpty());
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Check the summary of the given month, and that it matches its expenses
+     *
+     * @param month first day of the month
+     * @param revenuesAmount expected sum of revenues
+     * @param expensesAmount expected sum of expenses
+     * @param revenuesCount expected number of revenues
+     * @param expensesCount expected number of expenses
+     */
+    private void assertSummary(Date month, double revenuesAmount, double expensesAmount, int revenuesCount, int expensesCount)
+    {
+        MonthSummary summary = db.getMonthSummary(month);
+
+        assertEquals(revenuesAmount, summary.getRevenuesAmount(), DELTA);
+        assertEquals(expensesAmount, summary.getExpensesAmount(), DELTA);
+        assertEquals(revenuesCount, summary.getRevenuesCount());
+        assertEquals(expensesCount, summary.getExpensesCount());
+
+        double revenues = 0;
+        double expenses = 0;
+        int revenuesNumber = 0;
+        int expensesNumber = 0;
+
+        List<Expense> expensesOfMonth = db.getExpensesForMonth(month);
+        for(Expense expense : expensesOfMonth)
+        {
+            if( expense.isRevenue() )
+            {
+                revenues -= expense.getAmount();
+                revenuesNumber++;
+            }
+            else
+            {
+                expenses += expense.getAmount();
+                expensesNumber++;
+            }
+        }
+
+        assertEquals(revenues, summary.getRevenuesAmount(), DELTA);
+        assertEquals(expenses, summary.getExpensesAmount(), DELTA);
+        assertEquals(revenuesNumber, summary.getRevenuesCount());
+        assertEquals(expensesNumber, summary.getExpensesCount());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *   Copyright 2016 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import com.benoitletondor.easybudgetapp.helper.DateHelper;
+import com.benoitletondor.easybudgetapp.model.Expense;
+import com.benoitletondor.easybudgetapp.model.MonthlyExpense;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tests of occurrences of monthly expenses computed by {@link RecurrenceEngine}, and of their
+ * exclusion when an occurrence is deleted or edited, against an in-memory DB.
+ *
+ * @author Benoit LETONDOR
+ */
+public class RecurrenceEngineTest extends DBTestCase
+{
+    public void testOccurrencesForDays()
+    {
+        MonthlyExpense monthlyExpense = new MonthlyExpense("rent", 500, getDate(2016, 1, 15), 12);
+        List<MonthlyExpense> monthlyExpenses = Collections.singletonList(monthlyExpense);
+
+        assertEquals(-1, RecurrenceEngine.getLastOccurrenceIndexForDay(monthlyExpense, getDay(2016, 1, 14)));
+        assertEquals(0, RecurrenceEngine.getLastOccurrenceIndexForDay(monthlyExpense, getDay(2016, 1, 15)));
+        assertEquals(0, RecurrenceEngine.getLastOccurrenceIndexForDay(monthlyExpense, getDay(2016, 2, 14)));
+        assertEquals(1, RecurrenceEngine.getLastOccurrenceIndexForDay(monthlyExpense, getDay(2016, 2, 15)));
+        assertEquals(11, RecurrenceEngine.getLastOccurrenceIndexForDay(monthlyExpense, getDay(2020, 1, 1)));
+
+        List<Expense> occurrences = RecurrenceEngine.getOccurrencesForDays(monthlyExpenses, getDay(2016, 3, 1), getDay(2016, 3, 31));
+        assertEquals(1, occurrences.size());
+        assertEquals(getDay(2016, 3, 15), DateHelper.getLocalEpochDay(occurrences.get(0).getDate()));
+        assertEquals(Integer.valueOf(2), occurrences.get(0).getOccurrenceIndex());
+        assertEquals(monthlyExpense.getAmount(), occurrences.get(0).getAmount(), DELTA);
+
+        assertTrue(RecurrenceEngine.getOccurrencesForDays(monthlyExpenses, getDay(2016, 3, 16), getDay(2016, 4, 14)).isEmpty());
+        assertTrue(RecurrenceEngine.getOccurrencesForDays(monthlyExpenses, getDay(2017, 1, 1), getDay(2017, 12, 31)).isEmpty());
+        assertTrue(RecurrenceEngine.hasOccurrencesForDays(monthlyExpenses, getDay(2016, 3, 15), getDay(2016, 3, 15)));
+        assertFalse(RecurrenceEngine.hasOccurrencesForDays(monthlyExpenses, getDay(2016, 3, 16), getDay(2016, 4, 14)));
+
+        assertEquals(3, RecurrenceEngine.getNumberOfOccurrencesUntilDay(monthlyExpense, getDay(2016, 3, 15)));
+        assertEquals(12, RecurrenceEngine.getNumberOfOccurrencesUntilDay(monthlyExpense, getDay(2020, 1, 1)));
+        assertEquals(12 * 50000L, RecurrenceEngine.getAmountUntilDay(monthlyExpenses, getDay(2020, 1, 1)));
+    }
+
+    public void testOccurrencesAtEndOfMonth()
+    {
+        MonthlyExpense monthlyExpense = new MonthlyExpense("rent", 500, getDate(2016, 1, 31), 4);
+
+        List<Expense> occurrences = RecurrenceEngine.getOccurrencesForDays(Collections.singletonList(monthlyExpense), getDay(2016, 1, 1), getDay(2016, 12, 31));
+
+        // Months without a 31st day get the occurrence on their last day
+        assertEquals(4, occurrences.size());
+        assertEquals(getDay(2016, 1, 31), DateHelper.getLocalEpochDay(occurrences.get(0).getDate()));
+        assertEquals(getDay(2016, 2, 29), DateHelper.getLocalEpochDay(occurrences.get(1).getDate()));
+        assertEquals(getDay(2016, 3, 31), DateHelper.getLocalEpochDay(occurrences.get(2).getDate()));
+        assertEquals(getDay(2016, 4, 30), DateHelper.getLocalEpochDay(occurrences.get(3).getDate()));
+
+        assertEquals(1, RecurrenceEngine.getLastOccurrenceIndexForDay(monthlyExpense, getDay(2016, 3, 30)));
+        assertEquals(2, RecurrenceEngine.getLastOccurrenceIndexForDay(monthlyExpense, getDay(2016, 3, 31)));
+    }
+
+    public void testExcludedOccurrences()
+    {
+        MonthlyExpense monthlyExpense = new MonthlyExpense(1L, "rent", 500, getDate(2016, 1, 15), false, 6, new HashSet<>(Arrays.asList(1, 4)));
+        List<MonthlyExpense> monthlyExpenses = Collections.singletonList(monthlyExpense);
+
+        List<Expense> occurrences = RecurrenceEngine.getOccurrencesForDays(monthlyExpenses, getDay(2016, 1, 1), getDay(2016, 12, 31));
+        assertEquals(4, occurrences.size());
+        assertEquals(Integer.valueOf(0), occurrences.get(0).getOccurrenceIndex());
+        assertEquals(Integer.valueOf(2), occurrences.get(1).getOccurrenceIndex());
+        assertEquals(Integer.valueOf(3), occurrences.get(2).getOccurrenceIndex());
+        assertEquals(Integer.valueOf(5), occurrences.get(3).getOccurrenceIndex());
+
+        assertFalse(RecurrenceEngine.hasOccurrencesForDays(monthlyExpenses, getDay(2016, 2, 1), getDay(2016, 2, 29)));
+        assertEquals(2, RecurrenceEngine.getNumberOfOccurrencesUntilDay(monthlyExpense, getDay(2016, 3, 15)));
+        assertEquals(4 * 50000L, RecurrenceEngine.getAmountUntilDay(monthlyExpenses, getDay(2020, 1, 1)));
+    }
+
+    public void testOccurrencesOfSeveralMonthlyExpensesAreSorted()
+    {
+        MonthlyExpense rent = new MonthlyExpense(1L, "rent", 500, getDate(2016, 1, 20), false, 3, Collections.<Integer>emptySet());
+        MonthlyExpense salary = new MonthlyExpense(2L, "salary", -1000, getDate(2016, 1, 5), false, 3, Collections.<Integer>emptySet());
+
+        List<Expense> occurrences = RecurrenceEngine.getOccurrencesForDays(Arrays.asList(rent, salary), getDay(2016, 1, 1), getDay(2016, 3, 31));
+
+        assertEquals(6, occurrences.size());
+        for(int i = 0; i < occurrences.size(); i++)
+        {
+            assertEquals(i % 2 == 0, occurrences.get(i).isRevenue());
+            if( i > 0 )
+            {
+                assertTrue(occurrences.get(i - 1).getDate().before(occurrences.get(i).getDate()));
+            }
+        }
+
+        assertEquals(3 * 50000L - 3 * 100000L, RecurrenceEngine.getAmountUntilDay(Arrays.asList(rent, salary), getDay(2016, 3, 31)));
+    }
+
+    public void testDeletedOccurrenceIsExcluded()
+    {
+        MonthlyExpense monthlyExpense = new MonthlyExpense("rent", 500, getDate(2016, 1, 15), 12);
+        assertTrue(db.addMonthlyExpense(monthlyExpense));
+
+        Date march = getDate(2016, 3, 15);
+        List<Expense> expenses = db.getExpensesForDay(march);
+        assertEquals(1, expenses.size());
+
+        Expense occurrence = expenses.get(0);
+        assertTrue(occurrence.isVirtual());
+        assertEquals(monthlyExpense.getId(), occurrence.getMonthlyId());
+        assertEquals(1500.0, db.getBalanceForDay(march), DELTA);
+
+        assertTrue(db.deleteExpense(occurrence));
+
+        assertTrue(db.getExpensesForDay(march).isEmpty());
+        assertEquals(1000.0, db.getBalanceForDay(march), DELTA);
+        assertEquals(11 * 500.0, db.getBalanceForDay(getDate(2017, 12, 31)), DELTA);
+
+        MonthlyExpense storedMonthlyExpense = db.findMonthlyExpenseForId(monthlyExpense.getId());
+        assertNotNull(storedMonthlyExpense);
+        assertTrue(storedMonthlyExpense.isOccurrenceExcluded(2));
+        assertTrue(db.getAllExpenseForMonthlyExpense(monthlyExpense).isEmpty());
+    }
+
+    public void testEditedOccurrenceIsStored()
+    {
+        MonthlyExpense monthlyExpense = new MonthlyExpense("rent", 500, getDate(2016, 1, 15), 12);
+        assertTrue(db.addMonthlyExpense(monthlyExpense));
+
+        Date april = getDate(2016, 4, 15);
+        Expense occurrence = db.getExpensesForDay(april).get(0);
+        occurrence.setAmount(700);
+
+        assertTrue(db.persistExpense(occurrence));
+        assertFalse(occurrence.isVirtual());
+        assertNotNull(occurrence.getId());
+
+        // The stored expense replaces the occurrence
+        List<Expense> expenses = db.getExpensesForDay(april);
+        assertEquals(1, expenses.size());
+        assertFalse(expenses.get(0).isVirtual());
+        assertEquals(occurrence.getId(), expenses.get(0).getId());
+        assertEquals(monthlyExpense.getId(), expenses.get(0).getMonthlyId());
+        assertEquals(700.0, expenses.get(0).getAmount(), DELTA);
+
+        assertEquals(3 * 500.0 + 700.0, db.getBalanceForDay(april), DELTA);
+        assertEquals(11 * 500.0 + 700.0, db.getBalanceForDay(getDate(2017, 12, 31)), DELTA);
+        assertEquals(1, db.getAllExpenseForMonthlyExpense(monthlyExpense).size());
+    }
+}
@@ -18,6 +18,8 @@ package com.benoitletondor.easybudgetapp;
 
 import android.app.Activity;
 import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -34,6 +36,7 @@ import com.batch.android.Config;
 import com.batch.android.Offer;
 import com.batch.android.PushNotificationType;
 import com.benoitletondor.easybudgetapp.helper.CurrencyHelper;
+import com.benoitletondor.easybudgetapp.helper.DayKey;
 import com.benoitletondor.easybudgetapp.helper.Logger;
 import com.benoitletondor.easybudgetapp.helper.ParameterKeys;
 import com.benoitletondor.easybudgetapp.helper.Parameters;
@@ -45,7 +48,11 @@ import com.benoitletondor.easybudgetapp.iab.IabHelper;
 import com.benoitletondor.easybudgetapp.iab.IabResult;
 import com.benoitletondor.easybudgetapp.iab.Inventory;
 import com.benoitletondor.easybudgetapp.iab.Purchase;
+import com.benoitletondor.easybudgetapp.model.db.DBCache;
+import com.benoitletondor.easybudgetapp.model.db.DBChangeBus;
+import com.benoitletondor.easybudgetapp.model.db.DBChangeEvent;
 import com.benoitletondor.easybudgetapp.notif.DailyNotifOptinService;
+import com.benoitletondor.easybudgetapp.notif.LowBalanceWarningNotif;
 import com.benoitletondor.easybudgetapp.notif.MonthlyReportNotifService;
 import com.benoitletondor.easybudgetapp.view.MainActivity;
 import com.benoitletondor.easybudgetapp.view.RatingPopup;
@@ -131,6 +138,29 @@ public class EasyBudget extends Application implements IabBroadcastReceiver.IabB
         // Check if an update occurred and perform action if needed
         checkUpdateAction();
 
+        // Day keys depend on the time zone
+        registerReceiver(new BroadcastReceiver()
+        {
+            @Override
+            public void onReceive(Context context, Intent intent)
+            {
+                Logger.debug("Time zone changed, wiping cached days");
+
+                DayKey.onTimeZoneChanged();
+                DBCache.getInstance(context).wipeAll();
+            }
+        }, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
+
+        // Look for the upcoming low balance day once after each save, for the notification and the banner
+        DBChangeBus.getInstance().addOnDBChangeListener(new DBChangeBus.OnDBChangeListener()
+        {
+            @Override
+            public void onDBChange(@NonNull DBChangeEvent event)
+            {
+                LowBalanceWarningNotif.check(EasyBudget.this);
+            }
+        });
+
         // Crashlytics
         if( BuildConfig.CRASHLYTICS_ACTIVATED )
         {
@@ -167,6 +197,23 @@ public class EasyBudget extends Application implements IabBroadcastReceiver.IabB
         super.onTerminate();
     }
 
+    @Override
+    public void onTrimMemory(int level)
+    {
+        super.onTrimMemory(level);
+
+        // Release cached months that are not displayed
+        DBCache.getInstance(this).onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory()
+    {
+        super.onLowMemory();
+
+        DBCache.getInstance(this).onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
     /**
      * Track that user comes from the given invitation id
      *
@@ -18,7 +18,6 @@ package com.benoitletondor.easybudgetapp.helper;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
-import android.support.v4.util.Pair;
 
 import com.benoitletondor.easybudgetapp.R;
 
@@ -28,7 +27,6 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.TimeZone;
 
 /**
  * Helper to work with dates
@@ -38,67 +36,114 @@ import java.util.TimeZone;
 public class DateHelper
 {
     /**
-     * Remove hour, minutes, seconds and ms data from a date.
+     * Get the number of days since epoch (1970-01-01) of the local day of the given date. Two
+     * dates of the same local day will always return the same value.
      *
      * @param date
-     * @return a new cleaned date
+     * @return the local epoch day
      */
-    public static Date cleanDate(@NonNull Date date)
+    public static int getLocalEpochDay(@NonNull Date date)
     {
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(date);
-
-        cal.set(Calendar.MILLISECOND, 0);
-        cal.set(Calendar.SECOND, 0);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.HOUR_OF_DAY, 0);
+        return getLocalEpochDay(date.getTime());
+    }
 
-        return cal.getTime();
+    /**
+     * Get the number of days since epoch (1970-01-01) of the local day of the given timestamp.
+     *
+     * @param timestamp
+     * @return the local epoch day
+     */
+    public static int getLocalEpochDay(long timestamp)
+    {
+        return DayKey.fromTimestamp(timestamp);
     }
 
     /**
-     * Get the timestamp range for a given day starting at GMT - 11 finishing at GMT + 12
+     * Get the date of the given local epoch day (opposite of {@link #getLocalEpochDay(Date)}).
      *
-     * @param date the day
-     * @return a range of timestamps
+     * @param day local epoch day
+     * @return the local day at 00:00:00:000
      */
-    public static Pair<Long, Long> getTimestampRangeForDay(@NonNull Date date)
+    public static Date getDateForLocalEpochDay(int day)
     {
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(date);
-        cal.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return new Date(DayKey.getStartOfDay(day));
+    }
 
-        cal.set(Calendar.MILLISECOND, 0);
-        cal.set(Calendar.SECOND, 0);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.HOUR_OF_DAY, 0);
+    /**
+     * Get the month of the given local epoch day, computed without allocation.
+     *
+     * @param day local epoch day
+     * @return year * 12 + month, month being a {@link Calendar#MONTH} value
+     */
+    public static int getMonthIndexForLocalEpochDay(int day)
+    {
+        // Civil from days algorithm, with years starting on March 1st
+        int shiftedDay = day + 719468;
+        int era = (shiftedDay >= 0 ? shiftedDay : shiftedDay - 146096) / 146097;
+        int dayOfEra = shiftedDay - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+
+        int month = shiftedMonth < 10 ? shiftedMonth + 2 : shiftedMonth - 10;
+        int year = yearOfEra + era * 400 + (month <= Calendar.FEBRUARY ? 1 : 0);
+
+        return year * 12 + month;
+    }
 
-        cal.add(Calendar.HOUR_OF_DAY, -11);
-        long start = cal.getTimeInMillis();
-        cal.add(Calendar.HOUR_OF_DAY, 23);
-        long end = cal.getTimeInMillis();
+    /**
+     * Get the month of the given date
+     *
+     * @param date
+     * @return year * 12 + month, month being a {@link Calendar#MONTH} value
+     */
+    public static int getMonthIndex(@NonNull Date date)
+    {
+        return getMonthIndexForLocalEpochDay(DayKey.fromDate(date));
+    }
 
-        return new Pair<>(start, end);
+    /**
+     * Get the local epoch day of the first day of the given month, computed without allocation.
+     *
+     * @param monthIndex year * 12 + month, as returned by {@link #getMonthIndex(Date)}
+     * @return local epoch day
+     */
+    public static int getFirstLocalEpochDayOfMonth(int monthIndex)
+    {
+        return DayKey.fromYearMonthDay(monthIndex / 12, monthIndex % 12 + 1, 1);
     }
 
     /**
-     * Remove hour, minutes, seconds and ms data from a date and return its GMT value
+     * Get the local epoch day of the last day of the given month, computed without allocation.
      *
-     * @param date
-     * @return a cleaned value of this date at GMT
+     * @param monthIndex year * 12 + month, as returned by {@link #getMonthIndex(Date)}
+     * @return local epoch day
      */
-    public static Date cleanGMTDate(@NonNull Date date)
+    public static int getLastLocalEpochDayOfMonth(int monthIndex)
     {
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(date);
-        cal.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return getFirstLocalEpochDayOfMonth(monthIndex + 1) - 1;
+    }
 
-        cal.set(Calendar.MILLISECOND, 0);
-        cal.set(Calendar.SECOND, 0);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.HOUR_OF_DAY, 0);
+    /**
+     * Get the first day of the given month
+     *
+     * @param monthIndex year * 12 + month, as returned by {@link #getMonthIndex(Date)}
+     * @return the first day of the month at 00:00:00:000
+     */
+    public static Date getFirstDayOfMonth(int monthIndex)
+    {
+        return getDateForLocalEpochDay(getFirstLocalEpochDayOfMonth(monthIndex));
+    }
 
-        return cal.getTime();
+    /**
+     * Remove hour, minutes, seconds and ms data from a date.
+     *
+     * @param date
+     * @return a new cleaned date
+     */
+    public static Date cleanDate(@NonNull Date date)
+    {
+        return new Date(DayKey.getStartOfDay(DayKey.fromDate(date)));
     }
 
     /**
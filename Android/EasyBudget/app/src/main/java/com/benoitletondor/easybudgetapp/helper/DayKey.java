@@ -0,0 +1,201 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.helper;
+
+import android.support.annotation.NonNull;
+
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Allocation free day arithmetic on int day keys: the number of days since epoch (1970-01-01) of
+ * the local day. Offsets of the default time zone are cached per hour, so converting a timestamp
+ * doesn't need any {@link java.util.Calendar} nor {@link TimeZone#getDefault()} (that
+ * returns a copy on each call).<br>
+ * <br>
+ * {@link #onTimeZoneChanged()} must be called when the default time zone changes.
+ *
+ * @author Benoit LETONDOR
+ */
+public final class DayKey
+{
+    /**
+     * Number of milliseconds in a day
+     */
+    public static final long DAY_IN_MS = 24 * 60 * 60 * 1000L;
+    /**
+     * Number of milliseconds in an hour
+     */
+    private static final long HOUR_IN_MS = 60 * 60 * 1000L;
+    /**
+     * Number of cached hour offsets, must be a power of 2
+     */
+    private static final int OFFSET_CACHE_SIZE = 1024;
+
+    /**
+     * Default time zone
+     */
+    private static volatile TimeZone timeZone = TimeZone.getDefault();
+    /**
+     * Cached offsets keyed by hour since epoch (modulo cache size): hour + 1 in the high 32 bits,
+     * offset (ms) in the low 32 bits, 0 if empty
+     */
+    private static final AtomicLongArray offsets = new AtomicLongArray(OFFSET_CACHE_SIZE);
+
+// ------------------------------------->
+
+    private DayKey()
+    {
+
+    }
+
+    /**
+     * Reload the default time zone and clear cached offsets
+     */
+    public static void onTimeZoneChanged()
+    {
+        timeZone = TimeZone.getDefault();
+
+        for(int i = 0; i < OFFSET_CACHE_SIZE; i++)
+        {
+            offsets.set(i, 0);
+        }
+    }
+
+    /**
+     * Get the offset of the default time zone at the given time
+     *
+     * @param timestamp
+     * @return offset from UTC (ms)
+     */
+    public static int getOffset(long timestamp)
+    {
+        if( timestamp < 0 )
+        {
+            return timeZone.getOffset(timestamp);
+        }
+
+        long hour = timestamp / HOUR_IN_MS;
+        int index = (int) (hour & (OFFSET_CACHE_SIZE - 1));
+
+        long cached = offsets.get(index);
+        if( (cached >>> 32) == hour + 1 )
+        {
+            return (int) cached;
+        }
+
+        // Only cache hours without offset change, since changes don't always happen on round hours
+        TimeZone zone = timeZone;
+        int offset = zone.getOffset(hour * HOUR_IN_MS);
+        if( offset != zone.getOffset((hour + 1) * HOUR_IN_MS - 1) )
+        {
+            return zone.getOffset(timestamp);
+        }
+
+        offsets.set(index, (hour + 1) << 32 | (offset & 0xFFFFFFFFL));
+        return offset;
+    }
+
+    /**
+     * Get the day key of the given timestamp
+     *
+     * @param timestamp
+     * @return local epoch day
+     */
+    public static int fromTimestamp(long timestamp)
+    {
+        return (int) floorDiv(timestamp + getOffset(timestamp), DAY_IN_MS);
+    }
+
+    /**
+     * Get the day key of the given date
+     *
+     * @param date
+     * @return local epoch day
+     */
+    public static int fromDate(@NonNull Date date)
+    {
+        return fromTimestamp(date.getTime());
+    }
+
+    /**
+     * Get the day key of the given date fields
+     *
+     * @param year
+     * @param month month of year, from 1 to 12
+     * @param dayOfMonth day of month, from 1
+     * @return local epoch day
+     */
+    public static int fromYearMonthDay(int year, int month, int dayOfMonth)
+    {
+        // Days from civil algorithm, with years starting on March 1st
+        int shiftedYear = month <= 2 ? year - 1 : year;
+        int era = (shiftedYear >= 0 ? shiftedYear : shiftedYear - 399) / 400;
+        int yearOfEra = shiftedYear - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + dayOfMonth - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Get the timestamp of the start of the given day, same as {@link DateHelper#cleanDate(Date)}:
+     * 00:00:00:000 (standard time one if it happens twice) or the first instant of the day if
+     * midnight is skipped by a daylight saving time change.
+     *
+     * @param day local epoch day
+     * @return
+     */
+    public static long getStartOfDay(int day)
+    {
+        long localTime = day * DAY_IN_MS;
+
+        // Midnight happens between local time - 14h and local time + 12h, offsets before and after it
+        int offsetBefore = getOffset(localTime - 15 * HOUR_IN_MS);
+        int offsetAfter = getOffset(localTime + 13 * HOUR_IN_MS);
+
+        long timestamp = localTime - offsetAfter;
+        if( offsetBefore != offsetAfter && getOffset(timestamp) != offsetAfter )
+        {
+            // Midnight happens with the offset before the change, or is skipped and the day starts at the change
+            timestamp = localTime - offsetBefore;
+        }
+
+        return timestamp;
+    }
+
+// ------------------------------------->
+
+    /**
+     * Division rounded toward negative infinity
+     *
+     * @param value
+     * @param divisor positive divisor
+     * @return
+     */
+    private static long floorDiv(long value, long divisor)
+    {
+        long result = value / divisor;
+        if( value < 0 && value % divisor != 0 )
+        {
+            result--;
+        }
+
+        return result;
+    }
+}
@@ -43,6 +43,10 @@ public class ParameterKeys
      * Warning limit for low money on account (int)
      */
     public static final String LOW_MONEY_WARNING_AMOUNT = "low_money_warning_amount";
+    /**
+     * Local epoch day of the low balance the user has been notified about, -1 if none (int)
+     */
+    public static final String LOW_MONEY_WARNING_NOTIFIED_DAY = "low_money_warning_notified_day";
     /**
      * The current onboarding step (int)
      */
@@ -50,6 +50,11 @@ public class Expense implements Serializable
      * Id of the recurring monthly expense (can be null)
      */
     private Long monthlyId;
+    /**
+     * Index of the occurrence of the monthly expense if this expense is computed on the fly from
+     * its monthly expense and is not stored in DB (null otherwise)
+     */
+    private Integer occurrenceIndex;
 
 // --------------------------------->
 
@@ -105,6 +110,20 @@ public class Expense implements Serializable
         this.monthlyId = monthlyId;
     }
 
+    /**
+     * Create the occurrence at the given index of the monthly expense. This occurrence is not
+     * stored in DB.
+     *
+     * @param monthlyExpense
+     * @param occurrenceIndex
+     */
+    public Expense(@NonNull MonthlyExpense monthlyExpense, int occurrenceIndex)
+    {
+        this(null, monthlyExpense.getTitle(), monthlyExpense.getAmount(), monthlyExpense.getOccurrenceDate(occurrenceIndex), monthlyExpense.getId());
+
+        this.occurrenceIndex = occurrenceIndex;
+    }
+
 // --------------------------------->
 
     public Long getId()
@@ -132,6 +151,27 @@ public class Expense implements Serializable
         return monthlyId != null;
     }
 
+    public Integer getOccurrenceIndex()
+    {
+        return occurrenceIndex;
+    }
+
+    public void setOccurrenceIndex(Integer occurrenceIndex)
+    {
+        this.occurrenceIndex = occurrenceIndex;
+    }
+
+    /**
+     * Is this expense an occurrence of a monthly expense that is computed on the fly and not
+     * stored in DB
+     *
+     * @return
+     */
+    public boolean isVirtual()
+    {
+        return occurrenceIndex != null;
+    }
+
     @NonNull
     public String getTitle()
     {
@@ -21,7 +21,11 @@ import android.support.annotation.NonNull;
 import com.benoitletondor.easybudgetapp.helper.DateHelper;
 
 import java.io.Serializable;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 /**
  * Object that represent a expense that occur on every month
@@ -47,9 +51,19 @@ public class MonthlyExpense implements Serializable
      */
     private double  amount;
     /**
-     * Is this expense modified (Not implemented yet)
+     * Is this expense modified (one of its occurrences has been edited or deleted)
      */
     private boolean modified = false;
+    /**
+     * Number of monthly occurrences of this expense, starting from the recurring date. Those
+     * occurrences are computed on the fly and are not stored in DB.
+     */
+    private int occurrences = 0;
+    /**
+     * Indexes of the occurrences that should not be generated, either because they've been
+     * deleted or because they've been edited and are stored in DB as a one time expense.
+     */
+    private final TreeSet<Integer> excludedOccurrences = new TreeSet<>();
 
 // ---------------------------------->
 
@@ -87,6 +101,38 @@ public class MonthlyExpense implements Serializable
         this.modified = modified;
     }
 
+    /**
+     *
+     * @param title
+     * @param startAmount
+     * @param recurringDate
+     * @param occurrences
+     */
+    public MonthlyExpense(@NonNull String title, double startAmount, @NonNull Date recurringDate, int occurrences)
+    {
+        this(title, startAmount, recurringDate);
+
+        this.occurrences = occurrences;
+    }
+
+    /**
+     *
+     * @param id
+     * @param title
+     * @param startAmount
+     * @param recurringDate
+     * @param modified
+     * @param occurrences
+     * @param excludedOccurrences
+     */
+    public MonthlyExpense(Long id, @NonNull String title, double startAmount, @NonNull Date recurringDate, boolean modified, int occurrences, @NonNull Set<Integer> excludedOccurrences)
+    {
+        this(id, title, startAmount, recurringDate, modified);
+
+        this.occurrences = occurrences;
+        this.excludedOccurrences.addAll(excludedOccurrences);
+    }
+
 // ---------------------------------->
 
     /**
@@ -127,6 +173,54 @@ public class MonthlyExpense implements Serializable
         return modified;
     }
 
+    /**
+     *
+     * @return
+     */
+    public int getOccurrences()
+    {
+        return occurrences;
+    }
+
+    /**
+     *
+     * @return
+     */
+    @NonNull
+    public SortedSet<Integer> getExcludedOccurrences()
+    {
+        return excludedOccurrences;
+    }
+
+    /**
+     * Is the occurrence at the given index excluded (deleted or stored as a one time expense)
+     *
+     * @param index
+     * @return
+     */
+    public boolean isOccurrenceExcluded(int index)
+    {
+        return excludedOccurrences.contains(index);
+    }
+
+    /**
+     * Get the date of the occurrence at the given index. Index 0 is the recurring date and each
+     * next occurrence is one month later, on the same day of month (or the last day of the month
+     * if it doesn't have this day).
+     *
+     * @param index
+     * @return
+     */
+    @NonNull
+    public Date getOccurrenceDate(int index)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(recurringDate);
+        cal.add(Calendar.MONTH, index);
+
+        return cal.getTime();
+    }
+
     /**
      *
      * @param id
@@ -0,0 +1,180 @@
+/*
+ *   Copyright 2016 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.support.annotation.NonNull;
+
+import java.util.Map;
+
+/**
+ * In-memory index of the amount of each day (stored expenses and occurrences of monthly expenses)
+ * as a Fenwick tree (binary indexed tree) over consecutive days, so that the balance of a day and
+ * the total of any range of days are computed in O(log n) without querying DB, and a write into DB
+ * is applied in O(log n) per changed day. A {@link BalanceSegmentTree} over the same days finds
+ * the first day the balance goes above a threshold in O(log n).<br>
+ * <br>
+ * Amounts of days before the first indexed day are summed into a base balance, amounts of days
+ * after the last one are ignored: balances of these days are not available.
+ *
+ * @author Benoit LETONDOR
+ */
+final class BalanceIndex
+{
+    /**
+     * Maximum number of indexed days
+     */
+    static final int MAX_DAYS = 40 * 366;
+    /**
+     * Value returned by {@link #getFirstDayWithBalanceAbove(int, long)} if no indexed day matches
+     */
+    static final int NO_DAY = Integer.MIN_VALUE;
+
+    /**
+     * Local epoch day of the first indexed day
+     */
+    private final int firstDay;
+    /**
+     * Local epoch day of the last indexed day
+     */
+    private final int lastDay;
+    /**
+     * Sum of amounts of all days before {@link #firstDay} (DB value)
+     */
+    private long baseBalance;
+    /**
+     * Fenwick tree of amounts of indexed days (DB values), 1-based: index i holds the sum of the
+     * (i & -i) days ending at day firstDay + i - 1
+     */
+    private final long[] tree;
+    /**
+     * Running sums of indexed days, to find the first day above a threshold
+     */
+    private final BalanceSegmentTree runningSums;
+
+// -------------------------------------------->
+
+    /**
+     * Build the index in O(n) from amounts of consecutive days
+     *
+     * @param firstDay local epoch day of the first indexed day
+     * @param baseBalance sum of amounts of all days before the first one (DB value)
+     * @param deltas amount of each indexed day (DB value), index 0 being the first day
+     */
+    BalanceIndex(int firstDay, long baseBalance, @NonNull long[] deltas)
+    {
+        this.firstDay = firstDay;
+        this.lastDay = firstDay + deltas.length - 1;
+        this.baseBalance = baseBalance;
+
+        runningSums = new BalanceSegmentTree(deltas);
+
+        tree = new long[deltas.length + 1];
+        System.arraycopy(deltas, 0, tree, 1, deltas.length);
+
+        for(int i = 1; i < tree.length; i++)
+        {
+            int parent = i + (i & -i);
+            if( parent < tree.length )
+            {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+
+    /**
+     * Get the balance at the end of the given day
+     *
+     * @param day local epoch day
+     * @return the balance (DB value), {@link DBCache#BALANCE_NOT_CACHED} if the day is not indexed
+     */
+    synchronized long getBalance(int day)
+    {
+        if( day < firstDay - 1 || day > lastDay )
+        {
+            return DBCache.BALANCE_NOT_CACHED;
+        }
+
+        long balance = baseBalance;
+        for(int i = day - firstDay + 1; i > 0; i -= i & -i)
+        {
+            balance += tree[i];
+        }
+
+        return balance;
+    }
+
+    /**
+     * Get the first day, starting from the given one, at the end of which the balance is above the
+     * given threshold
+     *
+     * @param fromDay first local epoch day to look at
+     * @param threshold balance to exceed (DB value)
+     * @return local epoch day, {@link #NO_DAY} if no indexed day matches
+     */
+    synchronized int getFirstDayWithBalanceAbove(int fromDay, long threshold)
+    {
+        int index = runningSums.findFirstAbove(fromDay - firstDay, threshold - baseBalance);
+        if( index == BalanceSegmentTree.NOT_FOUND )
+        {
+            return NO_DAY;
+        }
+
+        return firstDay + index;
+    }
+
+    /**
+     * Apply changes of a write into DB
+     *
+     * @param changes
+     */
+    synchronized void applyChanges(@NonNull DayChanges changes)
+    {
+        for(Map.Entry<Integer, Long> delta : changes.getDeltas().entrySet())
+        {
+            add(delta.getKey(), delta.getValue());
+        }
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Add the given amount to a day
+     *
+     * @param day local epoch day
+     * @param amount amount to add (DB value)
+     */
+    private void add(int day, long amount)
+    {
+        if( amount == 0 || day > lastDay )
+        {
+            return;
+        }
+
+        if( day < firstDay )
+        {
+            baseBalance += amount;
+            return;
+        }
+
+        for(int i = day - firstDay + 1; i < tree.length; i += i & -i)
+        {
+            tree[i] += amount;
+        }
+
+        runningSums.add(day - firstDay, amount);
+    }
+}
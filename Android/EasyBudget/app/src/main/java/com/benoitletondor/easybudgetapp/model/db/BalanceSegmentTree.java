@@ -0,0 +1,190 @@
+/*
+ *   Copyright 2016 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Segment tree over amounts of consecutive days keeping, for each node, the sum of its days and
+ * the maximum running sum inside it. It finds the first day whose running sum goes above a
+ * threshold in O(log n), and is updated in O(log n). Not thread safe, used by {@link BalanceIndex}.
+ *
+ * @author Benoit LETONDOR
+ */
+final class BalanceSegmentTree
+{
+    /**
+     * Value returned by {@link #findFirstAbove(int, long)} if no index matches
+     */
+    static final int NOT_FOUND = -1;
+    /**
+     * Maximum running sum of nodes without any day
+     */
+    private static final long NO_DAY = Long.MIN_VALUE;
+
+    /**
+     * Number of days
+     */
+    private final int length;
+    /**
+     * Number of leaves, power of 2 greater or equal to {@link #length}
+     */
+    private final int leaves;
+    /**
+     * Sum of amounts of each node (DB values), 1-based: children of node i are 2i and 2i + 1
+     */
+    private final long[] sums;
+    /**
+     * Maximum running sum (from the first day of the node, at least one day) of each node (DB values)
+     */
+    private final long[] maxRunningSums;
+    /**
+     * Running sum of days before the node being visited by {@link #findFirstAbove(int, int, int, int, long)}
+     */
+    private long searchSum;
+
+// -------------------------------------------->
+
+    /**
+     * Build the tree in O(n)
+     *
+     * @param deltas amount of each day (DB values)
+     */
+    BalanceSegmentTree(@NonNull long[] deltas)
+    {
+        length = deltas.length;
+
+        int size = 1;
+        while( size < length )
+        {
+            size <<= 1;
+        }
+        leaves = size;
+
+        sums = new long[2 * leaves];
+        maxRunningSums = new long[2 * leaves];
+
+        for(int i = 0; i < leaves; i++)
+        {
+            sums[leaves + i] = i < length ? deltas[i] : 0;
+            maxRunningSums[leaves + i] = i < length ? deltas[i] : NO_DAY;
+        }
+
+        for(int node = leaves - 1; node > 0; node--)
+        {
+            pull(node);
+        }
+    }
+
+    /**
+     * Add the given amount to a day
+     *
+     * @param index index of the day
+     * @param amount amount to add (DB value)
+     */
+    void add(int index, long amount)
+    {
+        int node = leaves + index;
+
+        sums[node] += amount;
+        maxRunningSums[node] += amount;
+
+        for(node >>= 1; node > 0; node >>= 1)
+        {
+            pull(node);
+        }
+    }
+
+    /**
+     * Find the first day, starting from the given one, whose running sum (from the first day of
+     * the tree) is above the given threshold
+     *
+     * @param fromIndex index of the first day to look at
+     * @param threshold running sum to exceed (DB value)
+     * @return index of the day, {@link #NOT_FOUND} if no day matches
+     */
+    int findFirstAbove(int fromIndex, long threshold)
+    {
+        if( fromIndex >= length )
+        {
+            return NOT_FOUND;
+        }
+
+        searchSum = 0;
+        return findFirstAbove(1, 0, leaves - 1, Math.max(0, fromIndex), threshold);
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Find the first day of the node matching {@link #findFirstAbove(int, long)}, visiting only
+     * nodes that may contain it, and add the sum of visited days to {@link #searchSum}
+     *
+     * @param node
+     * @param start index of the first day of the node
+     * @param end index of the last day of the node
+     * @param fromIndex index of the first day to look at
+     * @param threshold running sum to exceed (DB value)
+     * @return index of the day, {@link #NOT_FOUND} if no day of the node matches
+     */
+    private int findFirstAbove(int node, int start, int end, int fromIndex, long threshold)
+    {
+        boolean skipped = end < fromIndex || (start >= fromIndex && (maxRunningSums[node] == NO_DAY || searchSum + maxRunningSums[node] <= threshold));
+        if( skipped )
+        {
+            searchSum += sums[node];
+            return NOT_FOUND;
+        }
+
+        if( start == end )
+        {
+            return start;
+        }
+
+        int middle = (start + end) >>> 1;
+
+        int index = findFirstAbove(2 * node, start, middle, fromIndex, threshold);
+        if( index != NOT_FOUND )
+        {
+            return index;
+        }
+
+        return findFirstAbove(2 * node + 1, middle + 1, end, fromIndex, threshold);
+    }
+
+    /**
+     * Compute values of a node from its children
+     *
+     * @param node
+     */
+    private void pull(int node)
+    {
+        int left = 2 * node;
+        int right = left + 1;
+
+        sums[node] = sums[left] + sums[right];
+
+        if( maxRunningSums[right] == NO_DAY )
+        {
+            maxRunningSums[node] = maxRunningSums[left];
+        }
+        else
+        {
+            maxRunningSums[node] = Math.max(maxRunningSums[left], sums[left] + maxRunningSums[right]);
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+
+import com.benoitletondor.easybudgetapp.helper.DateHelper;
+import com.benoitletondor.easybudgetapp.helper.Logger;
+import com.benoitletondor.easybudgetapp.model.Expense;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memory mapped file keeping the balance of each day and whether it has expenses, for the months
+ * around the current one. It's updated along with {@link DBCache} so that the calendar can be
+ * drawn right after a cold start, before any month has been loaded from DB.<br>
+ * <br>
+ * File format: magic, format version, local epoch day of the first day, number of days (ints),
+ * write generation of DB (long), then the balance of each day (longs, DB value), then flags of each
+ * day (bytes).<br>
+ * <br>
+ * The write generation is the one of the last write into DB applied to the snapshot: if it's not
+ * the one of DB, a write has not been applied (the process died before) and the snapshot is reset.
+ * The snapshot is opened from its header only, without DB, and days are not available until the
+ * generation is checked by {@link #validate(long)}.
+ *
+ * @author Benoit LETONDOR
+ */
+final class BalanceSnapshot
+{
+    /**
+     * Name of the snapshot file
+     */
+    private static final String FILE_NAME = "balance_snapshot.bin";
+    /**
+     * First int of the file
+     */
+    private static final int MAGIC = 0x45424253;
+    /**
+     * Version of the file format, to increment when it changes
+     */
+    private static final int FORMAT_VERSION = 2;
+    /**
+     * Position of the write generation in the header
+     */
+    private static final int GENERATION_POSITION = 4 * 4;
+    /**
+     * Size of the header (bytes)
+     */
+    private static final int HEADER_SIZE = GENERATION_POSITION + 8;
+    /**
+     * Number of months kept before the current one
+     */
+    private static final int MONTHS_BEFORE = 3;
+    /**
+     * Number of months kept after the current one
+     */
+    private static final int MONTHS_AFTER = 2;
+
+    /**
+     * Flag set if the balance of the day is valid
+     */
+    private static final byte FLAG_BALANCE = 1;
+    /**
+     * Flag set if the has expenses flag of the day is valid
+     */
+    private static final byte FLAG_EXPENSES = 2;
+    /**
+     * Flag set if the day has expenses
+     */
+    private static final byte FLAG_HAS_EXPENSES = 4;
+
+    /**
+     * Mapped file, null if it couldn't be opened
+     */
+    @Nullable
+    private final MappedByteBuffer buffer;
+    /**
+     * Local epoch day of the first day of the snapshot
+     */
+    private final int firstDay;
+    /**
+     * Number of days in the snapshot
+     */
+    private final int dayCount;
+    /**
+     * Has the write generation of the file been checked against the DB one
+     */
+    private boolean validated;
+
+// -------------------------------------------->
+
+    /**
+     *
+     * @param buffer mapped file, null if it couldn't be opened
+     * @param firstDay local epoch day of the first day of the snapshot
+     * @param dayCount number of days in the snapshot
+     */
+    private BalanceSnapshot(@Nullable MappedByteBuffer buffer, int firstDay, int dayCount)
+    {
+        this.buffer = buffer;
+        this.firstDay = firstDay;
+        this.dayCount = dayCount;
+    }
+
+    /**
+     * Map the snapshot file for the months around the given date. If the file covers other days,
+     * it's reset. Its days are not available until {@link #validate(long)} is called.
+     *
+     * @param context
+     * @param today
+     * @return the snapshot, that will be empty if the file can't be opened
+     */
+    @NonNull
+    static BalanceSnapshot open(@NonNull Context context, @NonNull Date today)
+    {
+        int currentMonth = DateHelper.getMonthIndex(today);
+        int firstDay = DateHelper.getFirstLocalEpochDayOfMonth(currentMonth - MONTHS_BEFORE);
+        int dayCount = DateHelper.getLastLocalEpochDayOfMonth(currentMonth + MONTHS_AFTER) - firstDay + 1;
+
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile(new File(context.getFilesDir(), FILE_NAME), "rw");
+
+            // Mapping only grows the file: it has to be truncated when it covers fewer days than before
+            long size = HEADER_SIZE + dayCount * 9L;
+            if( file.length() != size )
+            {
+                file.setLength(size);
+            }
+
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            boolean reset = buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION || buffer.getInt(8) != firstDay || buffer.getInt(12) != dayCount;
+            if( reset )
+            {
+                Logger.debug("BalanceSnapshot: Resetting snapshot from day "+firstDay);
+
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, FORMAT_VERSION);
+                buffer.putInt(8, firstDay);
+                buffer.putInt(12, dayCount);
+                buffer.putLong(GENERATION_POSITION, -1);
+
+                for(int i = 0; i < dayCount; i++)
+                {
+                    buffer.put(HEADER_SIZE + dayCount * 8 + i, (byte) 0);
+                }
+            }
+
+            return new BalanceSnapshot(buffer, firstDay, dayCount);
+        }
+        catch (IOException e)
+        {
+            Logger.error("Error while opening balance snapshot", e);
+            return new BalanceSnapshot(null, firstDay, 0);
+        }
+        finally
+        {
+            if( file != null )
+            {
+                try
+                {
+                    file.close(); // The mapping stays valid
+                }
+                catch (IOException ignored) {}
+            }
+        }
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Check that the snapshot is up to date with DB, resetting it if it's not. Days are available
+     * once it's been called.
+     *
+     * @param generation current write generation of DB, -1 if unknown
+     */
+    synchronized void validate(long generation)
+    {
+        if( validated )
+        {
+            return;
+        }
+
+        if( buffer != null && (generation < 0 || buffer.getLong(GENERATION_POSITION) != generation) )
+        {
+            Logger.debug("BalanceSnapshot: Snapshot outdated, resetting it");
+            clearDays();
+        }
+
+        validated = true;
+    }
+
+    /**
+     * Get the balance of the given day
+     *
+     * @param day local epoch day
+     * @return the balance (DB value), {@link DBCache#BALANCE_NOT_CACHED} if not available
+     */
+    synchronized long getBalance(int day)
+    {
+        int index = getIndex(day);
+        if( index < 0 || (getFlags(index) & FLAG_BALANCE) == 0 )
+        {
+            return DBCache.BALANCE_NOT_CACHED;
+        }
+
+        return buffer.getLong(HEADER_SIZE + index * 8);
+    }
+
+    /**
+     * Does the given day have expenses
+     *
+     * @param day local epoch day
+     * @return true or false, null if not available
+     */
+    @Nullable
+    synchronized Boolean hasExpenses(int day)
+    {
+        int index = getIndex(day);
+        if( index < 0 )
+        {
+            return null;
+        }
+
+        byte flags = getFlags(index);
+        if( (flags & FLAG_EXPENSES) == 0 )
+        {
+            return null;
+        }
+
+        return (flags & FLAG_HAS_EXPENSES) != 0;
+    }
+
+    /**
+     * Save balances of consecutive days
+     *
+     * @param fromDay local epoch day of the first balance
+     * @param balances balances (DB value)
+     */
+    synchronized void putBalances(int fromDay, @NonNull long[] balances)
+    {
+        for(int i = 0; i < balances.length; i++)
+        {
+            int index = getIndex(fromDay + i);
+            if( index >= 0 )
+            {
+                buffer.putLong(HEADER_SIZE + index * 8, balances[i]);
+                setFlags(index, (byte) (getFlags(index) | FLAG_BALANCE));
+            }
+        }
+    }
+
+    /**
+     * Save whether days have expenses
+     *
+     * @param expenses expenses keyed by local epoch day
+     */
+    synchronized void putExpenses(@NonNull SparseArray<List<Expense>> expenses)
+    {
+        for(int i = 0; i < expenses.size(); i++)
+        {
+            putHasExpenses(expenses.keyAt(i), !expenses.valueAt(i).isEmpty());
+        }
+    }
+
+    /**
+     * Save whether the given day has expenses
+     *
+     * @param day local epoch day
+     * @param hasExpenses
+     */
+    synchronized void putHasExpenses(int day, boolean hasExpenses)
+    {
+        int index = getIndex(day);
+        if( index >= 0 )
+        {
+            byte flags = (byte) (getFlags(index) | FLAG_EXPENSES);
+            setFlags(index, hasExpenses ? (byte) (flags | FLAG_HAS_EXPENSES) : (byte) (flags & ~FLAG_HAS_EXPENSES));
+        }
+    }
+
+    /**
+     * Apply changes of a write into DB: balances are shifted by the amounts added and days with
+     * changed expenses are invalidated until {@link #putHasExpenses(int, boolean)} is called.
+     *
+     * @param changes
+     */
+    synchronized void applyChanges(@NonNull DayChanges changes)
+    {
+        clearIfNotValidated();
+
+        for(Map.Entry<Integer, Long> delta : changes.getDeltas().entrySet())
+        {
+            int day = delta.getKey();
+            long amount = delta.getValue();
+
+            int index = getIndex(day);
+            if( index >= 0 )
+            {
+                setFlags(index, (byte) (getFlags(index) & ~FLAG_EXPENSES));
+            }
+
+            if( amount != 0 && buffer != null )
+            {
+                for(int i = Math.max(0, day - firstDay); i < dayCount; i++)
+                {
+                    if( (getFlags(i) & FLAG_BALANCE) != 0 )
+                    {
+                        int position = HEADER_SIZE + i * 8;
+                        buffer.putLong(position, buffer.getLong(position) + amount);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the write generation of DB once all writes up to it have been applied
+     *
+     * @param generation
+     */
+    synchronized void setGeneration(long generation)
+    {
+        clearIfNotValidated();
+
+        if( buffer != null )
+        {
+            buffer.putLong(GENERATION_POSITION, generation);
+        }
+    }
+
+    /**
+     * Invalidate all days
+     */
+    synchronized void clear()
+    {
+        clearDays();
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Invalidate all days if the snapshot has not been validated yet: they may be outdated and
+     * can't be updated by a write, nor saved as up to date with its generation
+     */
+    private void clearIfNotValidated()
+    {
+        if( !validated )
+        {
+            clearDays();
+            validated = true;
+        }
+    }
+
+    /**
+     * Invalidate all days
+     */
+    private void clearDays()
+    {
+        for(int i = 0; i < dayCount; i++)
+        {
+            setFlags(i, (byte) 0);
+        }
+    }
+
+    /**
+     * Get the index of the given day in the snapshot
+     *
+     * @param day local epoch day
+     * @return the index, -1 if the day is not in the snapshot
+     */
+    private int getIndex(int day)
+    {
+        int index = day - firstDay;
+        if( buffer == null || !validated || index < 0 || index >= dayCount )
+        {
+            return -1;
+        }
+
+        return index;
+    }
+
+    /**
+     * Get flags of the day at the given index
+     *
+     * @param index
+     * @return
+     */
+    private byte getFlags(int index)
+    {
+        return buffer.get(HEADER_SIZE + dayCount * 8 + index);
+    }
+
+    /**
+     * Set flags of the day at the given index
+     *
+     * @param index
+     * @param flags
+     */
+    private void setFlags(int index, byte flags)
+    {
+        buffer.put(HEADER_SIZE + dayCount * 8 + index, flags);
+    }
+}
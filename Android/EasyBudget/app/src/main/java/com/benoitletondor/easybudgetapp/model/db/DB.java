@@ -19,15 +19,17 @@ package com.benoitletondor.easybudgetapp.model.db;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
-import android.support.v4.util.Pair;
+import android.util.SparseArray;
 
 import com.benoitletondor.easybudgetapp.helper.CurrencyHelper;
 import com.benoitletondor.easybudgetapp.helper.DateHelper;
+import com.benoitletondor.easybudgetapp.helper.DayKey;
 import com.benoitletondor.easybudgetapp.helper.Logger;
 import com.benoitletondor.easybudgetapp.model.Expense;
 import com.benoitletondor.easybudgetapp.model.MonthlyExpense;
@@ -35,9 +37,13 @@ import com.benoitletondor.easybudgetapp.model.MonthlyExpense;
 import org.json.JSONException;
 
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 /**
  * Database wrapper and DAO
@@ -46,19 +52,31 @@ import java.util.List;
  */
 public final class DB
 {
+    /**
+     * Manager of the shared connection
+     */
+    private final DBConnectionManager connectionManager;
     /**
      * The SQLLite DB
      */
     private final SQLiteDatabase database;
+    /**
+     * Statements compiled for the DB
+     */
+    private final DBStatements statements;
     /**
      * Saved context
      */
     private final Context context;
+    /**
+     * Has this DB been closed
+     */
+    private boolean closed = false;
 
 // -------------------------------------------->
 
     /**
-     * Create and open a new DB
+     * Get a DB using the connection shared by the whole application (opening it if needed)
      *
      * @param context
      * @throws SQLiteException
@@ -66,23 +84,25 @@ public final class DB
     public DB(@NonNull Context context) throws SQLiteException
     {
         this.context = context.getApplicationContext();
-        SQLiteDBHelper databaseHelper = new SQLiteDBHelper(this.context);
-		database = databaseHelper.getWritableDatabase();
+
+        connectionManager = DBConnectionManager.getInstance(this.context);
+		database = connectionManager.acquire();
+        statements = connectionManager.getStatements();
 	}
 
     /**
-     * Close the DB, no call to other methods should be made after this method
+     * Close the DB, no call to other methods should be made after this method. The shared
+     * connection stays opened for other DBs.
      */
-    public void close()
+    public synchronized void close()
     {
-        try
+        if( closed )
         {
-            database.close();
-        }
-        catch (Exception e)
-        {
-            Logger.error("Error while closing SQLite DB", e);
+            return;
         }
+
+        closed = true;
+        connectionManager.release();
     }
 
     /**
@@ -93,6 +113,10 @@ public final class DB
     {
         database.delete(SQLiteDBHelper.TABLE_EXPENSE, null, null);
         database.delete(SQLiteDBHelper.TABLE_MONTHLY_EXPENSE, null, null);
+        database.delete(SQLiteDBHelper.TABLE_DAY_BALANCE, null, null);
+        database.delete(SQLiteDBHelper.TABLE_MONTH_SUMMARY, null, null);
+
+        DBCache.getInstance(context).wipeAll();
     }
 
 // -------------------------------------------->
@@ -106,32 +130,70 @@ public final class DB
      */
     public boolean persistExpense(@NonNull Expense expense, boolean forcePersist)
     {
-        if( expense.getId() != null && !forcePersist )
+        DayChanges changes = beginWrite();
+        boolean persisted = false;
+
+        try
         {
-            int rowsAffected = database.update(SQLiteDBHelper.TABLE_EXPENSE, generateContentValuesForExpense(expense), SQLiteDBHelper.COLUMN_EXPENSE_DB_ID+"="+expense.getId(), null);
-            if( rowsAffected > 0 )
+            if( expense.getId() != null && !forcePersist )
             {
-                // Refresh cache for day
-                DBCache.getInstance(context).wipeAll(); // FIXME we should refresh for the new expense date & the old one
+                database.beginTransaction();
+                try
+                {
+                    // Remove the old version of the expense from balances before updating it
+                    String[] args = DBStatements.args(expense.getId());
+                    removeFromBalances(DBStatements.WHERE_EXPENSE_FOR_ID, args, changes);
+
+                    persisted = database.update(SQLiteDBHelper.TABLE_EXPENSE, generateContentValuesForExpense(expense), DBStatements.WHERE_EXPENSE_FOR_ID, args) == 1;
+                    if( persisted )
+                    {
+                        applyExpenseDelta(DayKey.fromDate(expense.getDate()), CurrencyHelper.getDBValueForDouble(expense.getAmount()), false, changes);
+                        database.setTransactionSuccessful();
+                    }
+                }
+                finally
+                {
+                    database.endTransaction();
+                }
             }
-
-            return rowsAffected == 1;
-        }
-        else
-        {
-            long id = database.insert(SQLiteDBHelper.TABLE_EXPENSE, null, generateContentValuesForExpense(expense));
-
-            if( id > 0 )
+            else
             {
-                // Refresh cache for day
-                DBCache.getInstance(context).refreshForDay(this, expense.getDate());
+                long id;
+
+                database.beginTransaction();
+                try
+                {
+                    id = insertExpense(expense, changes);
+                    if( id > 0 )
+                    {
+                        // An edited occurrence of a monthly expense is now stored and should not be computed anymore
+                        if( expense.isVirtual() )
+                        {
+                            excludeOccurrence(expense.getMonthlyId(), expense.getOccurrenceIndex(), changes);
+                        }
+
+                        database.setTransactionSuccessful();
+                    }
+                }
+                finally
+                {
+                    database.endTransaction();
+                }
 
-                expense.setId(id);
-                return true;
+                if( id > 0 )
+                {
+                    expense.setId(id);
+                    expense.setOccurrenceIndex(null);
+                    persisted = true;
+                }
             }
         }
+        finally
+        {
+            endWrite(changes, persisted);
+        }
 
-        return false;
+        return persisted;
     }
 
     /**
@@ -153,30 +215,21 @@ public final class DB
      */
     public boolean hasExpensesForDay(@NonNull Date day)
     {
-        Pair<Long, Long> range = DateHelper.getTimestampRangeForDay(day);
-        Date gmt = DateHelper.cleanGMTDate(day);
+        int epochDay = DateHelper.getLocalEpochDay(day);
 
         // Check cache
-        Boolean hasExpensesCached = DBCache.getInstance(context).hasExpensesForDay(gmt);
+        Boolean hasExpensesCached = DBCache.getInstance(context).hasExpensesForDay(epochDay);
         if( hasExpensesCached != null )
         {
             return hasExpensesCached;
         }
 
-        Cursor cursor = null;
-        try
-        {
-            cursor = database.rawQuery("SELECT COUNT(*) FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + SQLiteDBHelper.COLUMN_EXPENSE_DATE + " >= " + range.first + " AND "+SQLiteDBHelper.COLUMN_EXPENSE_DATE + " <= "+ range.second, null);
+        long startTime = DBMetrics.startTimer();
 
-            return cursor.moveToFirst() && cursor.getInt(0) > 0;
-        }
-        finally
-        {
-            if( cursor != null )
-            {
-                cursor.close();
-            }
-        }
+        boolean hasExpenses = statements.countExpensesForDay(epochDay) > 0 || RecurrenceEngine.hasOccurrencesForDays(getRecurringMonthlyExpenses(), epochDay, epochDay);
+
+        DBMetrics.recordTime(DBMetrics.Metric.DB_HAS_EXPENSES_FOR_DAY, startTime);
+        return hasExpenses;
     }
 
     /**
@@ -189,25 +242,26 @@ public final class DB
     @NonNull
     protected List<Expense> getExpensesForDay(@NonNull Date date, boolean fromCache)
     {
-        Pair<Long, Long> range = DateHelper.getTimestampRangeForDay(date);
-        Date gmt = DateHelper.cleanGMTDate(date);
+        int day = DateHelper.getLocalEpochDay(date);
 
         // Check cache
         if( fromCache )
         {
-            List<Expense> cachedExpenses = DBCache.getInstance(context).getExpensesForDay(gmt);
+            List<Expense> cachedExpenses = DBCache.getInstance(context).getExpensesForDay(day);
             if( cachedExpenses != null )
             {
                 return cachedExpenses;
             }
         }
 
+        long startTime = DBMetrics.startTimer();
+
         Cursor cursor = null;
         try
         {
             List<Expense> expenses = new ArrayList<>();
 
-            cursor = database.query(SQLiteDBHelper.TABLE_EXPENSE, null, SQLiteDBHelper.COLUMN_EXPENSE_DATE + " >= " + range.first + " AND " + SQLiteDBHelper.COLUMN_EXPENSE_DATE + " <= " + range.second, null, null, null, null, null);
+            cursor = database.rawQuery(DBStatements.SQL_EXPENSES_FOR_DAY, DBStatements.args(day));
             while( cursor.moveToNext() )
             {
                 try
@@ -220,6 +274,9 @@ public final class DB
                 }
             }
 
+            // Add occurrences of monthly expenses for this day
+            expenses.addAll(RecurrenceEngine.getOccurrencesForDays(getRecurringMonthlyExpenses(), day, day));
+
             return expenses;
         }
         finally
@@ -228,6 +285,8 @@ public final class DB
             {
                 cursor.close();
             }
+
+            DBMetrics.recordTime(DBMetrics.Metric.DB_EXPENSES_FOR_DAY, startTime);
         }
     }
 
@@ -252,21 +311,16 @@ public final class DB
     @NonNull
     public List<Expense> getExpensesForMonth(@NonNull Date firstDate)
     {
-        Pair<Long, Long> firstDateRange = DateHelper.getTimestampRangeForDay(firstDate);
-
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(firstDate);
-        cal.add(Calendar.MONTH, 1);
-        cal.add(Calendar.DAY_OF_MONTH, -1);
-
-        Pair<Long, Long> lastDateRange = DateHelper.getTimestampRangeForDay(cal.getTime());
+        long startTime = DBMetrics.startTimer();
+        int firstDay = DayKey.fromDate(firstDate);
+        int lastDay = DateHelper.getLastLocalEpochDayOfMonth(DateHelper.getMonthIndexForLocalEpochDay(firstDay));
 
         Cursor cursor = null;
         try
         {
             List<Expense> expenses = new ArrayList<>();
 
-            cursor = database.query(SQLiteDBHelper.TABLE_EXPENSE, null, SQLiteDBHelper.COLUMN_EXPENSE_DATE + " >= " + firstDateRange.first + " AND " + SQLiteDBHelper.COLUMN_EXPENSE_DATE + " <= " + lastDateRange.second+" ORDER BY "+SQLiteDBHelper.COLUMN_EXPENSE_DATE, null, null, null, null, null);
+            cursor = database.rawQuery(DBStatements.SQL_EXPENSES_FOR_RANGE_ORDERED, DBStatements.args(firstDay, lastDay));
             while( cursor.moveToNext() )
             {
                 try
@@ -279,6 +333,14 @@ public final class DB
                 }
             }
 
+            // Add occurrences of monthly expenses for this month
+            List<Expense> occurrences = RecurrenceEngine.getOccurrencesForDays(getRecurringMonthlyExpenses(), firstDay, lastDay);
+            if( !occurrences.isEmpty() )
+            {
+                expenses.addAll(occurrences);
+                sortExpensesByDate(expenses);
+            }
+
             return expenses;
         }
         finally
@@ -287,43 +349,42 @@ public final class DB
             {
                 cursor.close();
             }
+
+            DBMetrics.recordTime(DBMetrics.Metric.DB_EXPENSES_FOR_MONTH, startTime);
         }
     }
 
     /**
-     * Get a sum of all amount of expenses until the given day
+     * Get the totals of revenues and expenses of the given month, read from the month summary
+     * table without loading expenses
      *
-     * @param day
-     * @param fromCache should we use DBCache
-     * @return
+     * @param firstDate first day of the month at 00:00:000
+     * @return the summary of the month
      */
-    protected double getBalanceForDay(@NonNull Date day, boolean fromCache)
+    @NonNull
+    public MonthSummary getMonthSummary(@NonNull Date firstDate)
     {
-        Pair<Long, Long> range = DateHelper.getTimestampRangeForDay(day);
-        Date gmt = DateHelper.cleanGMTDate(day);
+        long startTime = DBMetrics.startTimer();
+        int firstDay = DayKey.fromDate(firstDate);
+        int month = DateHelper.getMonthIndexForLocalEpochDay(firstDay);
+        int lastDay = DateHelper.getLastLocalEpochDayOfMonth(month);
 
-        // Check cache
-        if( fromCache )
-        {
-            Double cachedBalance = DBCache.getInstance(context).getBalanceForDay(gmt);
-            if( cachedBalance != null )
-            {
-                return cachedBalance;
-            }
-        }
+        long revenuesTotal = 0;
+        long expensesTotal = 0;
+        int revenuesCount = 0;
+        int expensesCount = 0;
 
         Cursor cursor = null;
         try
         {
-            cursor = database.rawQuery("SELECT SUM(" + SQLiteDBHelper.COLUMN_EXPENSE_AMOUNT + ") FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + SQLiteDBHelper.COLUMN_EXPENSE_DATE + " <= " + range.second, null);
-
-            if(cursor.moveToFirst())
+            cursor = database.rawQuery(DBStatements.SQL_MONTH_SUMMARY, DBStatements.args(month));
+            if( cursor.moveToFirst() )
             {
-                int value = cursor.getInt(0);
-                return (double) value / 100.d;
+                revenuesTotal = cursor.getLong(0);
+                expensesTotal = cursor.getLong(1);
+                revenuesCount = cursor.getInt(2);
+                expensesCount = cursor.getInt(3);
             }
-
-            return 0;
         }
         finally
         {
@@ -332,58 +393,140 @@ public final class DB
                 cursor.close();
             }
         }
-    }
 
-    /**
-     * Get a sum of all amount of expenses until the given day
-     *
-     * @param day
-     * @return
-     */
-    public double getBalanceForDay(@NonNull Date day)
-    {
-        return getBalanceForDay(day, true);
+        // Add occurrences of monthly expenses, that are not stored
+        for(Expense occurrence : RecurrenceEngine.getOccurrencesForDays(getRecurringMonthlyExpenses(), firstDay, lastDay))
+        {
+            long amount = CurrencyHelper.getDBValueForDouble(occurrence.getAmount());
+            if( occurrence.isRevenue() )
+            {
+                revenuesTotal -= amount;
+                revenuesCount++;
+            }
+            else
+            {
+                expensesTotal += amount;
+                expensesCount++;
+            }
+        }
+
+        DBMetrics.recordTime(DBMetrics.Metric.DB_MONTH_SUMMARY, startTime);
+        return new MonthSummary(revenuesTotal, expensesTotal, revenuesCount, expensesCount);
     }
 
     /**
-     * Add a monthly expense
+     * Get a page of the revenues or of the expenses of the given month ordered by date, so that the
+     * report can load only visible rows. Positions are the ones of {@link #getExpensesForMonth(Date)}
+     * filtered by kind, from 0 to {@link MonthSummary#getRevenuesCount()} or {@link MonthSummary#getExpensesCount()}.
      *
-     * @param expense
-     * @return true on success, false on error
+     * @param firstDate first day of the month at 00:00:000
+     * @param revenues true to get revenues, false to get expenses
+     * @param offset position of the first row of the page
+     * @param count maximum number of rows of the page
+     * @return rows of the page, less than count at the end of the list
      */
-    public boolean addMonthlyExpense(@NonNull MonthlyExpense expense)
+    @NonNull
+    public List<Expense> getExpensesPageForMonth(@NonNull Date firstDate, boolean revenues, int offset, int count)
     {
-        long id = database.insert(SQLiteDBHelper.TABLE_MONTHLY_EXPENSE, null, generateContentValuesForMonthlyExpense(expense));
+        long startTime = DBMetrics.startTimer();
+        int firstDay = DayKey.fromDate(firstDate);
+        int lastDay = DateHelper.getLastLocalEpochDayOfMonth(DateHelper.getMonthIndexForLocalEpochDay(firstDay));
 
-        if( id > 0 )
+        // Occurrences of monthly expenses are not stored: they are placed after stored rows of their day
+        List<Expense> occurrences = new ArrayList<>();
+        for(Expense occurrence : RecurrenceEngine.getOccurrencesForDays(getRecurringMonthlyExpenses(), firstDay, lastDay))
         {
-            expense.setId(id);
-            return true;
+            if( occurrence.isRevenue() == revenues )
+            {
+                occurrences.add(occurrence);
+            }
         }
 
-        return false;
+        List<Integer> occurrencePositions = getOccurrencePositions(occurrences, firstDay, lastDay, revenues);
+
+        int occurrenceIndex = 0;
+        while( occurrenceIndex < occurrences.size() && occurrencePositions.get(occurrenceIndex) < offset )
+        {
+            occurrenceIndex++;
+        }
+
+        Cursor cursor = null;
+        try
+        {
+            List<Expense> expenses = new ArrayList<>(count);
+
+            cursor = database.rawQuery(DBStatements.SQL_KIND_PAGE_FOR_RANGE, DBStatements.args(firstDay, lastDay, revenues ? 1 : 0, count, offset - occurrenceIndex));
+
+            for(int position = offset; position < offset + count; position++)
+            {
+                if( occurrenceIndex < occurrences.size() && occurrencePositions.get(occurrenceIndex) == position )
+                {
+                    expenses.add(occurrences.get(occurrenceIndex));
+                    occurrenceIndex++;
+                }
+                else if( cursor.moveToNext() )
+                {
+                    expenses.add(ExpenseFromCursor(cursor));
+                }
+                else
+                {
+                    break;
+                }
+            }
+
+            return expenses;
+        }
+        finally
+        {
+            if( cursor != null )
+            {
+                cursor.close();
+            }
+
+            DBMetrics.recordTime(DBMetrics.Metric.DB_EXPENSES_PAGE, startTime);
+        }
     }
 
     /**
-     * Get all monthly expenses
+     * Get positions of occurrences of monthly expenses among stored rows of the same kind, each
+     * occurrence being placed after stored rows of its day. Stored rows are counted with a single
+     * query grouped by day.
      *
-     * @return
+     * @param occurrences occurrences of the given kind, sorted by date
+     * @param firstDay first local epoch day of the range (included)
+     * @param lastDay last local epoch day of the range (included)
+     * @param revenues true if occurrences are revenues, false if they're expenses
+     * @return position of each occurrence
      */
     @NonNull
-    public List<MonthlyExpense> getAllMonthlyExpenses()
+    private List<Integer> getOccurrencePositions(@NonNull List<Expense> occurrences, int firstDay, int lastDay, boolean revenues)
     {
+        List<Integer> positions = new ArrayList<>(occurrences.size());
+        if( occurrences.isEmpty() )
+        {
+            return positions;
+        }
+
         Cursor cursor = null;
         try
         {
-            List<MonthlyExpense> expenses = new ArrayList<>();
+            cursor = database.rawQuery(DBStatements.SQL_KIND_COUNTS_BY_DAY_FOR_RANGE, DBStatements.args(firstDay, lastDay, revenues ? 1 : 0));
 
-            cursor = database.query(SQLiteDBHelper.TABLE_MONTHLY_EXPENSE, null, null, null, null, null, null, null);
-            while( cursor.moveToNext() )
+            int storedBefore = 0;
+            boolean hasCount = cursor.moveToFirst();
+            for(Expense occurrence : occurrences)
             {
-                expenses.add(monthlyExpenseFromCursor(cursor));
+                int day = DayKey.fromDate(occurrence.getDate());
+                while( hasCount && cursor.getInt(0) <= day )
+                {
+                    storedBefore += cursor.getInt(1);
+                    hasCount = cursor.moveToNext();
+                }
+
+                positions.add(storedBefore + positions.size());
             }
 
-            return expenses;
+            return positions;
         }
         finally
         {
@@ -395,73 +538,123 @@ public final class DB
     }
 
     /**
-     * Delete this monthly expense
+     * Get a sum of all amount of expenses until the given day
      *
-     * @param monthlyExpense
-     * @return true on success, false on error
+     * @param day
+     * @param fromCache should we use DBCache and its balance index
+     * @return
      */
-    public boolean deleteMonthlyExpense(@NonNull MonthlyExpense monthlyExpense)
+    protected double getBalanceForDay(@NonNull Date day, boolean fromCache)
     {
-        return database.delete(SQLiteDBHelper.TABLE_MONTHLY_EXPENSE, SQLiteDBHelper.COLUMN_MONTHLY_DB_ID+"="+monthlyExpense.getId(), null) > 0;
+        int epochDay = DateHelper.getLocalEpochDay(day);
+
+        // Check cache
+        if( fromCache )
+        {
+            long cachedBalance = DBCache.getInstance(context).getBalanceForDay(epochDay);
+            if( cachedBalance != DBCache.BALANCE_NOT_CACHED )
+            {
+                return (double) cachedBalance / 100.d;
+            }
+        }
+
+        long startTime = DBMetrics.startTimer();
+
+        long value = fromCache ? getIndexedBalance(epochDay) : DBCache.BALANCE_NOT_CACHED;
+        if( value == DBCache.BALANCE_NOT_CACHED )
+        {
+            // Sum of stored expenses until this day
+            value = statements.getBalanceForDay(epochDay);
+
+            // Add occurrences of monthly expenses until this day
+            value += RecurrenceEngine.getAmountUntilDay(getRecurringMonthlyExpenses(), epochDay);
+        }
+
+        DBMetrics.recordTime(DBMetrics.Metric.DB_BALANCE_FOR_DAY, startTime);
+        return (double) value / 100.d;
     }
 
     /**
-     * Delete this expense
+     * Get a sum of all amount of expenses until the given day
      *
-     * @param expense
-     * @return true on success, false on error
+     * @param day
+     * @return
      */
-    public boolean deleteExpense(@NonNull Expense expense)
+    public double getBalanceForDay(@NonNull Date day)
     {
-        boolean delete = database.delete(SQLiteDBHelper.TABLE_EXPENSE, SQLiteDBHelper.COLUMN_EXPENSE_DB_ID+"="+expense.getId(), null) > 0;
-
-        if( delete )
-        {
-            // Refresh cache for day
-            DBCache.getInstance(context).refreshForDay(this, expense.getDate());
-        }
-
-        return delete;
+        return getBalanceForDay(day, true);
     }
 
     /**
-     * Delete all expense for this monthly expense
+     * Get the first day, starting from the given one, at the end of which the balance is below the
+     * given amount. Only days until the last occurrence of monthly expenses (and at least a year
+     * ahead) are looked at. Should not be called from the main thread: the balance index may be
+     * built, or days scanned from DB if it's not available.
      *
-     * @param monthlyExpense
-     * @return true on success, false on error
+     * @param from first day to look at
+     * @param amount balance to go below
+     * @return the day, null if the balance never goes below the amount
      */
-    public boolean deleteAllExpenseForMonthlyExpense(@NonNull MonthlyExpense monthlyExpense)
+    @Nullable
+    public Date getFirstDayWithBalanceBelow(@NonNull Date from, double amount)
     {
-        boolean deleted = database.delete(SQLiteDBHelper.TABLE_EXPENSE, SQLiteDBHelper.COLUMN_EXPENSE_MONTHLY_ID+"="+monthlyExpense.getId(), null) > 0;
+        int fromDay = DateHelper.getLocalEpochDay(from);
+
+        // Balance displayed to the user is the opposite of the sum of amounts
+        long threshold = -CurrencyHelper.getDBValueForDouble(amount);
 
-        if( deleted )
+        BalanceIndex index = DBCache.getInstance(context).getBalanceIndex(this);
+
+        long startTime = DBMetrics.startTimer();
+
+        int day;
+        if( index != null )
+        {
+            day = index.getFirstDayWithBalanceAbove(fromDay, threshold);
+        }
+        else
         {
-            DBCache.getInstance(context).wipeAll();
+            day = getFirstDayWithBalanceAboveFromDB(fromDay, threshold);
         }
 
-        return deleted;
+        DBMetrics.recordTime(DBMetrics.Metric.DB_FIRST_DAY_WITH_BALANCE_BELOW, startTime);
+        return day != BalanceIndex.NO_DAY ? DateHelper.getDateForLocalEpochDay(day) : null;
     }
 
     /**
-     * Get all expenses associated with this monthly expense
+     * Get all expenses between the given days grouped by day, with a single query. Expenses of a day
+     * are the same as {@link #getExpensesForDay(Date, boolean)} ones without cache.
      *
-     * @param monthlyExpense
-     * @return
+     * @param fromDay first local epoch day (included)
+     * @param toDay last local epoch day (included)
+     * @return expenses keyed by local epoch day, every day of the range has an entry (empty list if no expense)
      */
-    public List<Expense> getAllExpenseForMonthlyExpense(@NonNull MonthlyExpense monthlyExpense)
+    @NonNull
+    protected SparseArray<List<Expense>> getExpensesGroupedByDay(int fromDay, int toDay)
     {
+        long startTime = DBMetrics.startTimer();
+
+        SparseArray<List<Expense>> expenses = new SparseArray<>(toDay - fromDay + 1);
+        for(int day = fromDay; day <= toDay; day++)
+        {
+            expenses.append(day, new ArrayList<Expense>());
+        }
+
         Cursor cursor = null;
         try
         {
-            List<Expense> expenses = new ArrayList<>();
-
-            cursor = database.query(SQLiteDBHelper.TABLE_EXPENSE, null, SQLiteDBHelper.COLUMN_EXPENSE_MONTHLY_ID+"="+monthlyExpense.getId(), null, null, null, null, null);
+            cursor = database.rawQuery(DBStatements.SQL_EXPENSES_FOR_RANGE_ORDERED, DBStatements.args(fromDay, toDay));
             while( cursor.moveToNext() )
             {
-                expenses.add(ExpenseFromCursor(cursor));
+                try
+                {
+                    expenses.get(cursor.getInt(cursor.getColumnIndex(SQLiteDBHelper.COLUMN_EXPENSE_DAY))).add(ExpenseFromCursor(cursor));
+                }
+                catch (Exception e)
+                {
+                    Logger.error(false, "Error occurred querying DB for expenses grouped by day", e);
+                }
             }
-
-            return expenses;
         }
         finally
         {
@@ -470,50 +663,78 @@ public final class DB
                 cursor.close();
             }
         }
+
+        // Add occurrences of monthly expenses
+        for(Expense occurrence : RecurrenceEngine.getOccurrencesForDays(getRecurringMonthlyExpenses(), fromDay, toDay))
+        {
+            expenses.get(DateHelper.getLocalEpochDay(occurrence.getDate())).add(occurrence);
+        }
+
+        DBMetrics.recordTime(DBMetrics.Metric.DB_EXPENSES_GROUPED_BY_DAY, startTime);
+        return expenses;
     }
 
     /**
-     * Delete all expense for this monthly expense from the given date (not included)
+     * Get balances of every day between the given days, with a single query for the range and one
+     * for the balance before it. Balances are the same as {@link #getBalanceForDay(Date, boolean)}
+     * ones without cache.
      *
-     * @param monthlyExpense
-     * @param fromDate
-     * @return true on success, false on error
+     * @param fromDay first local epoch day (included)
+     * @param toDay last local epoch day (included)
+     * @return balances of each day (DB value), index 0 being the first day
      */
-    public boolean deleteAllExpenseForMonthlyExpenseFromDate(@NonNull MonthlyExpense monthlyExpense, @NonNull Date fromDate)
+    @NonNull
+    protected long[] getDailyBalances(int fromDay, int toDay)
     {
-        boolean deleted = database.delete(SQLiteDBHelper.TABLE_EXPENSE, SQLiteDBHelper.COLUMN_EXPENSE_MONTHLY_ID+"="+monthlyExpense.getId()+" AND "+SQLiteDBHelper.COLUMN_EXPENSE_DATE+">"+fromDate.getTime(), null) > 0;
+        long startTime = DBMetrics.startTimer();
+
+        // Deltas of each day of the range (DB values), summed into balances at the end
+        List<MonthlyExpense> monthlyExpenses = getRecurringMonthlyExpenses();
+        long[] deltas = getDayDeltas(fromDay, toDay, monthlyExpenses);
+
+        // Running balance starting from the balance of the day before the range
+        long balance = getBalanceUntilDay(fromDay - 1, monthlyExpenses);
 
-        if( deleted )
+        for(int i = 0; i < deltas.length; i++)
         {
-            DBCache.getInstance(context).wipeAll();
+            balance += deltas[i];
+            deltas[i] = balance;
         }
 
-        return  deleted;
+        DBMetrics.recordTime(DBMetrics.Metric.DB_DAILY_BALANCES, startTime);
+        return deltas;
     }
 
     /**
-     * Retrieve all expenses associated with this monthly expense happening after the given date (not included)
+     * Build the model of a calendar grid: expenses and balances of consecutive days, with a single
+     * range query on expenses and one for the balance before it.
      *
-     * @param monthlyExpense
-     * @param fromDate
-     * @return
+     * @param from day of the first cell
+     * @param dayCount number of cells
+     * @return the model
      */
-    public List<Expense> getAllExpensesForMonthlyExpenseFromDate(@NonNull MonthlyExpense monthlyExpense, @NonNull Date fromDate)
+    @NonNull
+    public MonthGridModel getMonthGridModel(@NonNull Date from, int dayCount)
     {
-        fromDate = DateHelper.cleanDate(fromDate);
+        long startTime = DBMetrics.startTimer();
+
+        int fromDay = DateHelper.getLocalEpochDay(from);
+        int toDay = fromDay + dayCount - 1;
+
+        boolean[] hasExpenses = new boolean[dayCount];
+        long[] balances = new long[dayCount];
 
         Cursor cursor = null;
         try
         {
-            List<Expense> expenses = new ArrayList<>();
-
-            cursor = database.query(SQLiteDBHelper.TABLE_EXPENSE, null, SQLiteDBHelper.COLUMN_EXPENSE_MONTHLY_ID+"="+monthlyExpense.getId()+" AND "+SQLiteDBHelper.COLUMN_EXPENSE_DATE+">"+fromDate.getTime(), null, null, null, null, null);
+            cursor = database.rawQuery(DBStatements.SQL_EXPENSE_AMOUNTS_FOR_RANGE, DBStatements.args(fromDay, toDay));
             while( cursor.moveToNext() )
             {
-                expenses.add(ExpenseFromCursor(cursor));
-            }
+                int index = cursor.getInt(0) - fromDay;
 
-            return expenses;
+                hasExpenses[index] = true;
+                balances[index] += cursor.getLong(1);
+            }
         }
         finally
         {
@@ -522,44 +743,562 @@ public final class DB
                 cursor.close();
             }
         }
+
+        List<MonthlyExpense> monthlyExpenses = getRecurringMonthlyExpenses();
+        for(Expense occurrence : RecurrenceEngine.getOccurrencesForDays(monthlyExpenses, fromDay, toDay))
+        {
+            int index = DateHelper.getLocalEpochDay(occurrence.getDate()) - fromDay;
+
+            hasExpenses[index] = true;
+            balances[index] += CurrencyHelper.getDBValueForDouble(occurrence.getAmount());
+        }
+
+        // Running balance starting from the balance of the day before the range
+        long balance = getBalanceUntilDay(fromDay - 1, monthlyExpenses);
+
+        for(int i = 0; i < dayCount; i++)
+        {
+            balance += balances[i];
+            balances[i] = balance;
+        }
+
+        DBMetrics.recordTime(DBMetrics.Metric.DB_MONTH_GRID_MODEL, startTime);
+        return new MonthGridModel(fromDay, hasExpenses, balances);
     }
 
     /**
-     * Delete all expense for this monthly expense before the given date (excluded)
+     * Add a monthly expense
      *
-     * @param monthlyExpense
-     * @param toDate
+     * @param expense
      * @return true on success, false on error
      */
-    public boolean deleteAllExpenseForMonthlyExpenseBeforeDate(@NonNull MonthlyExpense monthlyExpense, @NonNull Date toDate)
+    public boolean addMonthlyExpense(@NonNull MonthlyExpense expense)
     {
-        boolean deleted = database.delete(SQLiteDBHelper.TABLE_EXPENSE, SQLiteDBHelper.COLUMN_EXPENSE_MONTHLY_ID+"="+monthlyExpense.getId()+" AND "+SQLiteDBHelper.COLUMN_EXPENSE_DATE+"<"+toDate.getTime(), null) > 0;
+        DayChanges changes = beginWrite();
+        long id = -1;
 
-        if( deleted )
+        try
+        {
+            id = database.insert(SQLiteDBHelper.TABLE_MONTHLY_EXPENSE, null, generateContentValuesForMonthlyExpense(expense));
+            if( id > 0 )
+            {
+                addOccurrencesToChanges(expense, 0, expense.getOccurrences(), false, changes);
+            }
+        }
+        finally
         {
-            DBCache.getInstance(context).wipeAll();
+            endWrite(changes, id > 0);
+        }
+
+        if( id > 0 )
+        {
+            expense.setId(id);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Restore a monthly expense (with its id) as it was when it has been retrieved from DB,
+     * replacing the current version if any, along with its deleted stored expenses (inserted with
+     * their ids). Either everything is restored, or nothing.
+     *
+     * @param expense
+     * @param expenses stored expenses of the monthly expense to insert back
+     * @return true on success, false on error
+     */
+    public boolean restoreMonthlyExpense(@NonNull MonthlyExpense expense, @NonNull List<Expense> expenses)
+    {
+        long[] ids = new long[expenses.size()];
+        DayChanges changes = beginWrite();
+        boolean restored = false;
+
+        try
+        {
+            database.beginTransaction();
+            try
+            {
+                MonthlyExpense currentMonthlyExpense = findMonthlyExpenseForId(expense.getId());
+                if( currentMonthlyExpense != null )
+                {
+                    addOccurrencesToChanges(currentMonthlyExpense, 0, currentMonthlyExpense.getOccurrences(), true, changes);
+                }
+
+                if( database.insertWithOnConflict(SQLiteDBHelper.TABLE_MONTHLY_EXPENSE, null, generateContentValuesForMonthlyExpense(expense), SQLiteDatabase.CONFLICT_REPLACE) <= 0 )
+                {
+                    return false;
+                }
+
+                addOccurrencesToChanges(expense, 0, expense.getOccurrences(), false, changes);
+
+                for(int i = 0; i < expenses.size(); i++)
+                {
+                    ids[i] = insertExpense(expenses.get(i), changes);
+                    if( ids[i] <= 0 )
+                    {
+                        return false;
+                    }
+                }
+
+                database.setTransactionSuccessful();
+                restored = true;
+            }
+            catch (SQLException e)
+            {
+                Logger.error(false, "Error while restoring monthly expense into DB", e);
+                return false;
+            }
+            finally
+            {
+                database.endTransaction();
+            }
+        }
+        finally
+        {
+            endWrite(changes, restored);
+        }
+
+        for(int i = 0; i < expenses.size(); i++)
+        {
+            expenses.get(i).setId(ids[i]);
+        }
+
+        return true;
+    }
+
+    /**
+     * Get all monthly expenses
+     *
+     * @return
+     */
+    @NonNull
+    public List<MonthlyExpense> getAllMonthlyExpenses()
+    {
+        Cursor cursor = null;
+        try
+        {
+            List<MonthlyExpense> expenses = new ArrayList<>();
+
+            cursor = database.query(SQLiteDBHelper.TABLE_MONTHLY_EXPENSE, null, null, null, null, null, null, null);
+            while( cursor.moveToNext() )
+            {
+                expenses.add(monthlyExpenseFromCursor(cursor));
+            }
+
+            return expenses;
+        }
+        finally
+        {
+            if( cursor != null )
+            {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Delete this monthly expense
+     *
+     * @param monthlyExpense
+     * @return true on success, false on error
+     */
+    public boolean deleteMonthlyExpense(@NonNull MonthlyExpense monthlyExpense)
+    {
+        DayChanges changes = beginWrite();
+        boolean deleted = false;
+
+        try
+        {
+            database.beginTransaction();
+            try
+            {
+                MonthlyExpense currentMonthlyExpense = findMonthlyExpenseForId(monthlyExpense.getId());
+                if( currentMonthlyExpense != null )
+                {
+                    addOccurrencesToChanges(currentMonthlyExpense, 0, currentMonthlyExpense.getOccurrences(), true, changes);
+                }
+
+                deleted = database.delete(SQLiteDBHelper.TABLE_MONTHLY_EXPENSE, DBStatements.WHERE_MONTHLY_FOR_ID, DBStatements.args(monthlyExpense.getId())) > 0;
+                if( deleted )
+                {
+                    database.setTransactionSuccessful();
+                }
+            }
+            finally
+            {
+                database.endTransaction();
+            }
+        }
+        finally
+        {
+            endWrite(changes, deleted);
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Delete this expense
+     *
+     * @param expense
+     * @return true on success, false on error
+     */
+    public boolean deleteExpense(@NonNull Expense expense)
+    {
+        DayChanges changes = beginWrite();
+        boolean deleted = false;
+
+        try
+        {
+            if( expense.isVirtual() )
+            {
+                // Occurrence of a monthly expense: just stop computing it
+                deleted = excludeOccurrence(expense.getMonthlyId(), expense.getOccurrenceIndex(), changes);
+            }
+            else
+            {
+                deleted = deleteExpenses(DBStatements.WHERE_EXPENSE_FOR_ID, DBStatements.args(expense.getId()), changes) > 0;
+            }
+        }
+        finally
+        {
+            endWrite(changes, deleted);
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Delete all expense for this monthly expense (stored ones and computed occurrences)
+     *
+     * @param monthlyExpense
+     * @return true on success, false on error
+     */
+    public boolean deleteAllExpenseForMonthlyExpense(@NonNull MonthlyExpense monthlyExpense)
+    {
+        DayChanges changes = beginWrite();
+        boolean deleted = false;
+
+        try
+        {
+            database.beginTransaction();
+            try
+            {
+                deleted = deleteExpenses(DBStatements.WHERE_EXPENSES_FOR_MONTHLY, DBStatements.args(monthlyExpense.getId()), changes) > 0;
+                deleted = keepOccurrences(monthlyExpense.getId(), 0, changes) || deleted;
+
+                database.setTransactionSuccessful();
+            }
+            finally
+            {
+                database.endTransaction();
+            }
+        }
+        finally
+        {
+            endWrite(changes, deleted);
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Get all expenses stored in DB associated with this monthly expense (computed occurrences
+     * are not returned)
+     *
+     * @param monthlyExpense
+     * @return
+     */
+    public List<Expense> getAllExpenseForMonthlyExpense(@NonNull MonthlyExpense monthlyExpense)
+    {
+        Cursor cursor = null;
+        try
+        {
+            List<Expense> expenses = new ArrayList<>();
+
+            cursor = database.rawQuery(DBStatements.SQL_EXPENSES_FOR_MONTHLY, DBStatements.args(monthlyExpense.getId()));
+            while( cursor.moveToNext() )
+            {
+                expenses.add(ExpenseFromCursor(cursor));
+            }
+
+            return expenses;
+        }
+        finally
+        {
+            if( cursor != null )
+            {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Delete all expense for this monthly expense from the given date (not included), stored ones
+     * and computed occurrences
+     *
+     * @param monthlyExpense
+     * @param fromDate
+     * @return true on success, false on error
+     */
+    public boolean deleteAllExpenseForMonthlyExpenseFromDate(@NonNull MonthlyExpense monthlyExpense, @NonNull Date fromDate)
+    {
+        DayChanges changes = beginWrite();
+        boolean deleted = false;
+
+        try
+        {
+            database.beginTransaction();
+            try
+            {
+                deleted = deleteExpenses(DBStatements.WHERE_EXPENSES_FOR_MONTHLY_AFTER_DATE, DBStatements.args(monthlyExpense.getId(), fromDate.getTime()), changes) > 0;
+
+                MonthlyExpense currentMonthlyExpense = findMonthlyExpenseForId(monthlyExpense.getId());
+                if( currentMonthlyExpense != null )
+                {
+                    int occurrencesToKeep = RecurrenceEngine.getLastOccurrenceIndexForDay(currentMonthlyExpense, DateHelper.getLocalEpochDay(fromDate)) + 1;
+                    deleted = keepOccurrences(currentMonthlyExpense.getId(), occurrencesToKeep, changes) || deleted;
+                }
+
+                database.setTransactionSuccessful();
+            }
+            finally
+            {
+                database.endTransaction();
+            }
+        }
+        finally
+        {
+            endWrite(changes, deleted);
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Retrieve all expenses stored in DB associated with this monthly expense happening after the
+     * given date (not included)
+     *
+     * @param monthlyExpense
+     * @param fromDate
+     * @return
+     */
+    public List<Expense> getAllExpensesForMonthlyExpenseFromDate(@NonNull MonthlyExpense monthlyExpense, @NonNull Date fromDate)
+    {
+        fromDate = DateHelper.cleanDate(fromDate);
+
+        Cursor cursor = null;
+        try
+        {
+            List<Expense> expenses = new ArrayList<>();
+
+            cursor = database.rawQuery(DBStatements.SQL_EXPENSES_FOR_MONTHLY_AFTER_DATE, DBStatements.args(monthlyExpense.getId(), fromDate.getTime()));
+            while( cursor.moveToNext() )
+            {
+                expenses.add(ExpenseFromCursor(cursor));
+            }
+
+            return expenses;
+        }
+        finally
+        {
+            if( cursor != null )
+            {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Delete all expense for this monthly expense before the given date (excluded), stored ones
+     * and computed occurrences
+     *
+     * @param monthlyExpense
+     * @param toDate
+     * @return true on success, false on error
+     */
+    public boolean deleteAllExpenseForMonthlyExpenseBeforeDate(@NonNull MonthlyExpense monthlyExpense, @NonNull Date toDate)
+    {
+        DayChanges changes = beginWrite();
+        boolean deleted = false;
+
+        try
+        {
+            database.beginTransaction();
+            try
+            {
+                deleted = deleteExpenses(DBStatements.WHERE_EXPENSES_FOR_MONTHLY_BEFORE_DATE, DBStatements.args(monthlyExpense.getId(), toDate.getTime()), changes) > 0;
+
+                MonthlyExpense currentMonthlyExpense = findMonthlyExpenseForId(monthlyExpense.getId());
+                if( currentMonthlyExpense != null )
+                {
+                    int lastIndexToExclude = RecurrenceEngine.getLastOccurrenceIndexForDay(currentMonthlyExpense, DateHelper.getLocalEpochDay(toDate) - 1);
+                    deleted = excludeOccurrences(currentMonthlyExpense, lastIndexToExclude, changes) || deleted;
+                }
+
+                database.setTransactionSuccessful();
+            }
+            finally
+            {
+                database.endTransaction();
+            }
+        }
+        finally
+        {
+            endWrite(changes, deleted);
         }
 
         return deleted;
     }
 
     /**
-     * Check if there are expenses before this date for the given monthly expense
+     * Check if there are expenses before this date for the given monthly expense
+     *
+     * @param monthlyExpense
+     * @param toDate
+     * @return
+     */
+    public boolean hasExpensesForMonthlyExpenseBeforeDate(@NonNull MonthlyExpense monthlyExpense, @NonNull Date toDate)
+    {
+        toDate = DateHelper.cleanDate(toDate);
+
+        if( statements.countExpensesForMonthlyBeforeDate(monthlyExpense.getId(), toDate.getTime()) > 0 )
+        {
+            return true;
+        }
+
+        return RecurrenceEngine.getNumberOfOccurrencesUntilDay(monthlyExpense, DateHelper.getLocalEpochDay(toDate) - 1) > 0;
+    }
+
+    /**
+     * Retrieve all expenses stored in DB associated with this monthly expense happening before the
+     * given date
+     *
+     * @param monthlyExpense
+     * @param toDate
+     * @return
+     */
+    public List<Expense> getAllExpensesForMonthlyExpenseBeforeDate(@NonNull MonthlyExpense monthlyExpense, @NonNull Date toDate)
+    {
+        toDate = DateHelper.cleanDate(toDate);
+
+        Cursor cursor = null;
+        try
+        {
+            List<Expense> expenses = new ArrayList<>();
+
+            cursor = database.rawQuery(DBStatements.SQL_EXPENSES_FOR_MONTHLY_BEFORE_DATE, DBStatements.args(monthlyExpense.getId(), toDate.getTime()));
+            while( cursor.moveToNext() )
+            {
+                expenses.add(ExpenseFromCursor(cursor));
+            }
+
+            return expenses;
+        }
+        finally
+        {
+            if( cursor != null )
+            {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Get the number of writes into DB so far
+     *
+     * @return
+     */
+    long getWriteGeneration()
+    {
+        return statements.getWriteGeneration();
+    }
+
+    /**
+     * Find the monthly expense for the given ID
+     *
+     * @param id
+     * @return monthly expense if found, null otherwise
+     */
+    @Nullable
+    public MonthlyExpense findMonthlyExpenseForId(long id)
+    {
+        Cursor cursor = null;
+        try
+        {
+            cursor = database.rawQuery(DBStatements.SQL_MONTHLY_FOR_ID, DBStatements.args(id));
+
+            if(cursor.moveToFirst())
+            {
+                return monthlyExpenseFromCursor(cursor);
+            }
+
+            return null;
+        }
+        finally
+        {
+            if( cursor != null )
+            {
+                cursor.close();
+            }
+        }
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Get all monthly expenses that have occurrences computed on the fly
+     *
+     * @return
+     */
+    @NonNull
+    private List<MonthlyExpense> getRecurringMonthlyExpenses()
+    {
+        Cursor cursor = null;
+        try
+        {
+            List<MonthlyExpense> expenses = new ArrayList<>();
+
+            cursor = database.rawQuery(DBStatements.SQL_RECURRING_MONTHLY, null);
+            while( cursor.moveToNext() )
+            {
+                expenses.add(monthlyExpenseFromCursor(cursor));
+            }
+
+            return expenses;
+        }
+        finally
+        {
+            if( cursor != null )
+            {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Get the amount of each day between the given days: stored expenses and occurrences of the
+     * given monthly expenses, with a single query
      *
-     * @param monthlyExpense
-     * @param toDate
-     * @return
+     * @param fromDay first local epoch day (included)
+     * @param toDay last local epoch day (included)
+     * @param monthlyExpenses monthly expenses that have occurrences computed on the fly
+     * @return amount of each day (DB value), index 0 being the first day
      */
-    public boolean hasExpensesForMonthlyExpenseBeforeDate(@NonNull MonthlyExpense monthlyExpense, @NonNull Date toDate)
+    @NonNull
+    private long[] getDayDeltas(int fromDay, int toDay, @NonNull List<MonthlyExpense> monthlyExpenses)
     {
-        toDate = DateHelper.cleanDate(toDate);
+        long[] deltas = new long[toDay - fromDay + 1];
 
         Cursor cursor = null;
         try
         {
-            cursor = database.rawQuery("SELECT COUNT(*) FROM "+SQLiteDBHelper.TABLE_EXPENSE+" WHERE "+SQLiteDBHelper.COLUMN_EXPENSE_MONTHLY_ID+"="+monthlyExpense.getId()+" AND "+SQLiteDBHelper.COLUMN_EXPENSE_DATE+"<"+toDate.getTime()+" LIMIT 1", null);
-
-            return cursor.moveToFirst() && cursor.getInt(0) > 0;
+            cursor = database.rawQuery(DBStatements.SQL_DAY_DELTAS_FOR_RANGE, DBStatements.args(fromDay, toDay));
+            while( cursor.moveToNext() )
+            {
+                deltas[cursor.getInt(0) - fromDay] += cursor.getLong(1);
+            }
         }
         finally
         {
@@ -568,61 +1307,379 @@ public final class DB
                 cursor.close();
             }
         }
+
+        for(Expense occurrence : RecurrenceEngine.getOccurrencesForDays(monthlyExpenses, fromDay, toDay))
+        {
+            deltas[DateHelper.getLocalEpochDay(occurrence.getDate()) - fromDay] += CurrencyHelper.getDBValueForDouble(occurrence.getAmount());
+        }
+
+        return deltas;
     }
 
     /**
-     * Retrieve all expenses associated with this monthly expense happening before the given date
+     * Get the balance at the end of the given day from the {@link BalanceIndex}, or from DB if the
+     * day is not indexed
      *
-     * @param monthlyExpense
-     * @param toDate
-     * @return
+     * @param day local epoch day
+     * @param monthlyExpenses monthly expenses that have occurrences computed on the fly
+     * @return the balance (DB value)
      */
-    public List<Expense> getAllExpensesForMonthlyExpenseBeforeDate(@NonNull MonthlyExpense monthlyExpense, @NonNull Date toDate)
+    private long getBalanceUntilDay(int day, @NonNull List<MonthlyExpense> monthlyExpenses)
     {
-        toDate = DateHelper.cleanDate(toDate);
+        long balance = getIndexedBalance(day);
+        if( balance != DBCache.BALANCE_NOT_CACHED )
+        {
+            return balance;
+        }
 
-        Cursor cursor = null;
-        try
+        return statements.getBalanceForDay(day) + RecurrenceEngine.getAmountUntilDay(monthlyExpenses, day);
+    }
+
+    /**
+     * Get the balance at the end of the given day from the {@link BalanceIndex}, without building
+     * it: it's built on the loader executor of {@link DBCache} when missing
+     *
+     * @param day local epoch day
+     * @return the balance (DB value), {@link DBCache#BALANCE_NOT_CACHED} if the day is not indexed
+     * or if the index is not built yet
+     */
+    private long getIndexedBalance(int day)
+    {
+        BalanceIndex index = DBCache.getInstance(context).peekBalanceIndex();
+        if( index == null )
         {
-            List<Expense> expenses = new ArrayList<>();
+            return DBCache.BALANCE_NOT_CACHED;
+        }
 
-            cursor = database.query(SQLiteDBHelper.TABLE_EXPENSE, null, SQLiteDBHelper.COLUMN_EXPENSE_MONTHLY_ID+"="+monthlyExpense.getId()+" AND "+SQLiteDBHelper.COLUMN_EXPENSE_DATE+"<"+toDate.getTime(), null, null, null, null, null);
-            while( cursor.moveToNext() )
+        return index.getBalance(day);
+    }
+
+    /**
+     * Find the first day above the threshold by scanning amounts of days from DB, when the
+     * {@link BalanceIndex} is not available. Same days as the index ones are looked at.
+     *
+     * @param fromDay first local epoch day to look at
+     * @param threshold balance to exceed (DB value)
+     * @return local epoch day, {@link BalanceIndex#NO_DAY} if no day matches
+     */
+    private int getFirstDayWithBalanceAboveFromDB(int fromDay, long threshold)
+    {
+        List<MonthlyExpense> monthlyExpenses = getRecurringMonthlyExpenses();
+
+        int lastDay = getForecastLastDay(DateHelper.getLocalEpochDay(new Date()) + DBCache.BALANCE_INDEX_MIN_FORECAST_DAYS, monthlyExpenses);
+        if( lastDay < fromDay )
+        {
+            return BalanceIndex.NO_DAY;
+        }
+
+        long[] deltas = getDayDeltas(fromDay, lastDay, monthlyExpenses);
+        long balance = statements.getBalanceForDay(fromDay - 1) + RecurrenceEngine.getAmountUntilDay(monthlyExpenses, fromDay - 1);
+
+        for(int i = 0; i < deltas.length; i++)
+        {
+            balance += deltas[i];
+            if( balance > threshold )
             {
-                expenses.add(ExpenseFromCursor(cursor));
+                return fromDay + i;
             }
+        }
 
-            return expenses;
+        return BalanceIndex.NO_DAY;
+    }
+
+    /**
+     * Get the last day of forecasts: the last occurrence of monthly expenses, or the given day if
+     * they don't go beyond it
+     *
+     * @param minLastDay local epoch day
+     * @param monthlyExpenses monthly expenses that have occurrences computed on the fly
+     * @return local epoch day
+     */
+    private static int getForecastLastDay(int minLastDay, @NonNull List<MonthlyExpense> monthlyExpenses)
+    {
+        int lastDay = minLastDay;
+        for(MonthlyExpense monthlyExpense : monthlyExpenses)
+        {
+            if( monthlyExpense.getOccurrences() > 0 )
+            {
+                lastDay = Math.max(lastDay, DateHelper.getLocalEpochDay(monthlyExpense.getOccurrenceDate(monthlyExpense.getOccurrences() - 1)));
+            }
         }
-        finally
+
+        return lastDay;
+    }
+
+    /**
+     * Build a {@link BalanceIndex} with a single ordered scan of day balances
+     *
+     * @param firstDay local epoch day of the first indexed day
+     * @param minLastDay local epoch day of the last indexed day if no occurrence of monthly expense happens after it
+     * @return the index, covering days until the last occurrence of monthly expenses
+     */
+    @NonNull
+    BalanceIndex loadBalanceIndex(int firstDay, int minLastDay)
+    {
+        long startTime = DBMetrics.startTimer();
+
+        List<MonthlyExpense> monthlyExpenses = getRecurringMonthlyExpenses();
+
+        // Index days until the recurrence horizon
+        int lastDay = Math.min(getForecastLastDay(minLastDay, monthlyExpenses), firstDay + BalanceIndex.MAX_DAYS - 1);
+
+        long[] deltas = getDayDeltas(firstDay, lastDay, monthlyExpenses);
+        long baseBalance = statements.getBalanceForDay(firstDay - 1) + RecurrenceEngine.getAmountUntilDay(monthlyExpenses, firstDay - 1);
+
+        BalanceIndex index = new BalanceIndex(firstDay, baseBalance, deltas);
+
+        DBMetrics.recordTime(DBMetrics.Metric.DB_BALANCE_INDEX, startTime);
+        return index;
+    }
+
+    /**
+     * Stop computing the occurrence at the given index of the monthly expense (because it has been
+     * deleted or because it's now stored)
+     *
+     * @param monthlyId
+     * @param index
+     * @param changes changes of the current write
+     * @return true if the occurrence was computed and is not anymore
+     */
+    private boolean excludeOccurrence(long monthlyId, int index, @NonNull DayChanges changes)
+    {
+        MonthlyExpense monthlyExpense = findMonthlyExpenseForId(monthlyId);
+        if( monthlyExpense == null || index >= monthlyExpense.getOccurrences() || monthlyExpense.isOccurrenceExcluded(index) )
         {
-            if( cursor != null )
+            return false;
+        }
+
+        addOccurrencesToChanges(monthlyExpense, index, index + 1, true, changes);
+
+        SortedSet<Integer> excludedOccurrences = new TreeSet<>(monthlyExpense.getExcludedOccurrences());
+        excludedOccurrences.add(index);
+        updateOccurrences(monthlyId, monthlyExpense.getOccurrences(), excludedOccurrences);
+
+        return true;
+    }
+
+    /**
+     * Stop computing all occurrences of the monthly expense up to the given index (included)
+     *
+     * @param monthlyExpense current version of the monthly expense
+     * @param lastIndex
+     * @param changes changes of the current write
+     * @return true if at least one occurrence has been removed
+     */
+    private boolean excludeOccurrences(@NonNull MonthlyExpense monthlyExpense, int lastIndex, @NonNull DayChanges changes)
+    {
+        int toIndex = Math.min(lastIndex + 1, monthlyExpense.getOccurrences());
+        addOccurrencesToChanges(monthlyExpense, 0, toIndex, true, changes);
+
+        SortedSet<Integer> excludedOccurrences = new TreeSet<>(monthlyExpense.getExcludedOccurrences());
+
+        boolean removed = false;
+        for(int index = 0; index < toIndex; index++)
+        {
+            removed = excludedOccurrences.add(index) || removed;
+        }
+
+        if( removed )
+        {
+            updateOccurrences(monthlyExpense.getId(), monthlyExpense.getOccurrences(), excludedOccurrences);
+        }
+
+        return removed;
+    }
+
+    /**
+     * Only keep the given number of first occurrences of the monthly expense
+     *
+     * @param monthlyId
+     * @param occurrences number of occurrences to keep
+     * @param changes changes of the current write
+     * @return true if at least one occurrence has been removed
+     */
+    private boolean keepOccurrences(long monthlyId, int occurrences, @NonNull DayChanges changes)
+    {
+        MonthlyExpense monthlyExpense = findMonthlyExpenseForId(monthlyId);
+        if( monthlyExpense == null || occurrences >= monthlyExpense.getOccurrences() )
+        {
+            return false;
+        }
+
+        addOccurrencesToChanges(monthlyExpense, occurrences, monthlyExpense.getOccurrences(), true, changes);
+
+        SortedSet<Integer> excludedOccurrences = monthlyExpense.getExcludedOccurrences();
+        boolean removed = monthlyExpense.getOccurrences() - occurrences > excludedOccurrences.tailSet(occurrences).size();
+
+        updateOccurrences(monthlyId, occurrences, excludedOccurrences.headSet(occurrences));
+        return removed;
+    }
+
+    /**
+     * Update computed occurrences of a monthly expense
+     *
+     * @param monthlyId
+     * @param occurrences
+     * @param excludedOccurrences
+     */
+    private void updateOccurrences(long monthlyId, int occurrences, @NonNull Set<Integer> excludedOccurrences)
+    {
+        final ContentValues values = new ContentValues();
+        values.put(SQLiteDBHelper.COLUMN_MONTHLY_OCCURRENCES, occurrences);
+        values.put(SQLiteDBHelper.COLUMN_MONTHLY_EXCLUDED, serializeOccurrences(excludedOccurrences));
+        values.put(SQLiteDBHelper.COLUMN_MONTHLY_MODIFIED, excludedOccurrences.isEmpty() ? 0 : 1);
+
+        database.update(SQLiteDBHelper.TABLE_MONTHLY_EXPENSE, values, DBStatements.WHERE_MONTHLY_FOR_ID, DBStatements.args(monthlyId));
+    }
+
+    /**
+     * Record the computed occurrences of the monthly expense between the given indexes as added
+     * or removed
+     *
+     * @param monthlyExpense
+     * @param fromIndex first index (included)
+     * @param toIndex last index (excluded)
+     * @param removed are the occurrences removed or added
+     * @param changes changes of the current write
+     */
+    private static void addOccurrencesToChanges(@NonNull MonthlyExpense monthlyExpense, int fromIndex, int toIndex, boolean removed, @NonNull DayChanges changes)
+    {
+        long amount = CurrencyHelper.getDBValueForDouble(monthlyExpense.getAmount());
+
+        for(int index = fromIndex; index < toIndex; index++)
+        {
+            if( !monthlyExpense.isOccurrenceExcluded(index) )
             {
-                cursor.close();
+                changes.add(DateHelper.getLocalEpochDay(monthlyExpense.getOccurrenceDate(index)), removed ? -amount : amount);
             }
         }
     }
 
     /**
-     * Find the monthly expense for the given ID
+     * Sort the given expenses by date
      *
-     * @param id
-     * @return monthly expense if found, null otherwise
+     * @param expenses
      */
-    @Nullable
-    public MonthlyExpense findMonthlyExpenseForId(long id)
+    static void sortExpensesByDate(@NonNull List<Expense> expenses)
     {
-        Cursor cursor = null;
+        Collections.sort(expenses, new Comparator<Expense>()
+        {
+            @Override
+            public int compare(Expense lhs, Expense rhs)
+            {
+                return lhs.getDate().compareTo(rhs.getDate());
+            }
+        });
+    }
+
+    /**
+     * Start a write: cached data loaded from now on won't be used until the write ends
+     *
+     * @return the object to record changes of the write into
+     */
+    @NonNull
+    private DayChanges beginWrite()
+    {
+        DBCache cache = DBCache.getInstance(context);
+        cache.beginWrite();
+
         try
         {
-            cursor = database.query(SQLiteDBHelper.TABLE_MONTHLY_EXPENSE, null, SQLiteDBHelper.COLUMN_MONTHLY_DB_ID + " = " + id, null, null, null, null, "1");
+            // Incremented before the write so that a snapshot not updated with it is detected
+            cache.setWriteGeneration(statements.incrementWriteGeneration());
+        }
+        catch (RuntimeException e)
+        {
+            cache.endWrite(this, new DayChanges());
+            throw e;
+        }
 
-            if(cursor.moveToFirst())
+        return new DayChanges();
+    }
+
+    /**
+     * End a write started with {@link #beginWrite()}, updating cached data with its changes and
+     * publishing them to {@link DBChangeBus} if it succeeded
+     *
+     * @param changes changes of the write
+     * @param success has the write been committed
+     */
+    private void endWrite(@NonNull DayChanges changes, boolean success)
+    {
+        DBMetrics.recordTime(DBMetrics.Metric.DB_WRITE, changes.getStartTime());
+        DBCache.getInstance(context).endWrite(this, success ? changes : new DayChanges());
+
+        if( success )
+        {
+            DBChangeBus.getInstance().publish(changes);
+        }
+    }
+
+    /**
+     * Insert an expense and add it to day balances and month summaries. Should be called within a transaction.
+     *
+     * @param expense
+     * @param changes changes of the current write
+     * @return the id of the inserted expense, -1 on error
+     */
+    private long insertExpense(@NonNull Expense expense, @NonNull DayChanges changes)
+    {
+        long amount = CurrencyHelper.getDBValueForDouble(expense.getAmount());
+
+        int day = DayKey.fromDate(expense.getDate());
+
+        long id = statements.insertExpense(expense.getId(), expense.getTitle(), amount, expense.getDate().getTime(), day, expense.getMonthlyId());
+        if( id > 0 )
+        {
+            applyExpenseDelta(day, amount, false, changes);
+        }
+
+        return id;
+    }
+
+    /**
+     * Delete expenses matching the given selection and update day balances accordingly
+     *
+     * @param selection where clause on the expense table (one of the {@link DBStatements} ones)
+     * @param selectionArgs
+     * @param changes changes of the current write
+     * @return number of deleted expenses
+     */
+    private int deleteExpenses(@NonNull String selection, @NonNull String[] selectionArgs, @NonNull DayChanges changes)
+    {
+        database.beginTransaction();
+        try
+        {
+            removeFromBalances(selection, selectionArgs, changes);
+            int deleted = database.delete(SQLiteDBHelper.TABLE_EXPENSE, selection, selectionArgs);
+
+            database.setTransactionSuccessful();
+            return deleted;
+        }
+        finally
+        {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Remove amounts of expenses matching the given selection from day balances and month summaries.
+     * Should be called within a transaction, before the expenses are actually deleted or updated.
+     *
+     * @param selection where clause on the expense table (one of the {@link DBStatements} ones)
+     * @param selectionArgs
+     * @param changes changes of the current write
+     */
+    private void removeFromBalances(@NonNull String selection, @NonNull String[] selectionArgs, @NonNull DayChanges changes)
+    {
+        Cursor cursor = null;
+        try
+        {
+            cursor = database.rawQuery("SELECT " + SQLiteDBHelper.COLUMN_EXPENSE_DAY + ", " + SQLiteDBHelper.COLUMN_EXPENSE_AMOUNT + " FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + selection, selectionArgs);
+            while( cursor.moveToNext() )
             {
-                return monthlyExpenseFromCursor(cursor);
+                applyExpenseDelta(cursor.getInt(0), cursor.getLong(1), true, changes);
             }
-
-            return null;
         }
         finally
         {
@@ -633,6 +1690,68 @@ public final class DB
         }
     }
 
+    /**
+     * Add or remove an expense to day balances and month summaries. Should be called within a transaction.
+     *
+     * @param day local epoch day of the expense
+     * @param amount amount of the expense (DB value)
+     * @param removed true if the expense is removed, false if it's added
+     * @param changes changes of the current write
+     */
+    private void applyExpenseDelta(int day, long amount, boolean removed, @NonNull DayChanges changes)
+    {
+        applyDayBalanceDelta(day, removed ? -amount : amount, changes);
+        applyMonthSummaryDelta(DateHelper.getMonthIndexForLocalEpochDay(day), amount, removed ? -1 : 1);
+    }
+
+    /**
+     * Add or remove an expense to the totals of its month. Should be called within a transaction.
+     *
+     * @param month year * 12 + month
+     * @param amount amount of the expense (DB value)
+     * @param count 1 if the expense is added, -1 if it's removed
+     */
+    private void applyMonthSummaryDelta(int month, long amount, int count)
+    {
+        boolean revenue = amount < 0;
+
+        long revenuesDelta = revenue ? -amount * count : 0;
+        long expensesDelta = revenue ? 0 : amount * count;
+        int revenuesCountDelta = revenue ? count : 0;
+        int expensesCountDelta = revenue ? 0 : count;
+
+        // First expense of the month
+        if( statements.addToMonthTotals(month, revenuesDelta, expensesDelta, revenuesCountDelta, expensesCountDelta) == 0 )
+        {
+            statements.insertMonthSummary(month, revenuesDelta, expensesDelta, revenuesCountDelta, expensesCountDelta);
+        }
+    }
+
+    /**
+     * Add the given amount to the delta of the day. Only this row is written: balances are derived
+     * from deltas and month summaries when read. Should be called within a transaction.
+     *
+     * @param day local epoch day
+     * @param amount amount to add (DB value)
+     * @param changes changes of the current write
+     */
+    private void applyDayBalanceDelta(int day, long amount, @NonNull DayChanges changes)
+    {
+        // Record the day even without amount since its expenses changed
+        changes.add(day, amount);
+
+        if( amount == 0 )
+        {
+            return;
+        }
+
+        // First expense of the day
+        if( statements.addToDayDelta(day, amount) == 0 )
+        {
+            statements.insertDayBalance(day, amount);
+        }
+    }
+
 // -------------------------------------------->
 
     /**
@@ -682,6 +1801,7 @@ public final class DB
 
         values.put(SQLiteDBHelper.COLUMN_EXPENSE_TITLE, expense.getTitle());
         values.put(SQLiteDBHelper.COLUMN_EXPENSE_DATE, expense.getDate().getTime());
+        values.put(SQLiteDBHelper.COLUMN_EXPENSE_DAY, DayKey.fromDate(expense.getDate()));
         values.put(SQLiteDBHelper.COLUMN_EXPENSE_AMOUNT, CurrencyHelper.getDBValueForDouble(expense.getAmount()));
 
         if( expense.isMonthly() )
@@ -707,8 +1827,10 @@ public final class DB
             cursor.getLong(cursor.getColumnIndex(SQLiteDBHelper.COLUMN_MONTHLY_DB_ID)),
             cursor.getString(cursor.getColumnIndex(SQLiteDBHelper.COLUMN_MONTHLY_TITLE)),
             (double) cursor.getInt(cursor.getColumnIndex(SQLiteDBHelper.COLUMN_MONTHLY_AMOUNT)) / 100.d,
-            new Date(cursor.getInt(cursor.getColumnIndex(SQLiteDBHelper.COLUMN_MONTHLY_RECURRING_DATE))),
-            cursor.getInt(cursor.getColumnIndex(SQLiteDBHelper.COLUMN_MONTHLY_MODIFIED)) == 1
+            new Date(cursor.getLong(cursor.getColumnIndex(SQLiteDBHelper.COLUMN_MONTHLY_RECURRING_DATE))),
+            cursor.getInt(cursor.getColumnIndex(SQLiteDBHelper.COLUMN_MONTHLY_MODIFIED)) == 1,
+            cursor.getInt(cursor.getColumnIndex(SQLiteDBHelper.COLUMN_MONTHLY_OCCURRENCES)),
+            deserializeOccurrences(cursor.getString(cursor.getColumnIndex(SQLiteDBHelper.COLUMN_MONTHLY_EXCLUDED)))
         );
     }
 
@@ -733,7 +1855,60 @@ public final class DB
         values.put(SQLiteDBHelper.COLUMN_MONTHLY_RECURRING_DATE, expense.getRecurringDate().getTime());
         values.put(SQLiteDBHelper.COLUMN_MONTHLY_AMOUNT, CurrencyHelper.getDBValueForDouble(expense.getAmount()));
         values.put(SQLiteDBHelper.COLUMN_MONTHLY_MODIFIED, expense.isModified() ? 1 : 0);
+        values.put(SQLiteDBHelper.COLUMN_MONTHLY_OCCURRENCES, expense.getOccurrences());
+        values.put(SQLiteDBHelper.COLUMN_MONTHLY_EXCLUDED, serializeOccurrences(expense.getExcludedOccurrences()));
 
         return values;
     }
+
+    /**
+     * Serialize occurrence indexes for DB
+     *
+     * @param occurrences
+     * @return comma separated indexes, null if empty
+     */
+    @Nullable
+    private static String serializeOccurrences(@NonNull Set<Integer> occurrences)
+    {
+        if( occurrences.isEmpty() )
+        {
+            return null;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for(Integer occurrence : occurrences)
+        {
+            if( builder.length() > 0 )
+            {
+                builder.append(',');
+            }
+
+            builder.append(occurrence);
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Deserialize occurrence indexes from DB
+     *
+     * @param value comma separated indexes (can be null)
+     * @return
+     */
+    @NonNull
+    private static Set<Integer> deserializeOccurrences(@Nullable String value)
+    {
+        Set<Integer> occurrences = new TreeSet<>();
+        if( value == null || value.isEmpty() )
+        {
+            return occurrences;
+        }
+
+        for(String occurrence : value.split(","))
+        {
+            occurrences.add(Integer.parseInt(occurrence));
+        }
+
+        return occurrences;
+    }
 }
@@ -16,309 +16,1256 @@
 
 package com.benoitletondor.easybudgetapp.model.db;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.support.v4.util.SimpleArrayMap;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.benoitletondor.easybudgetapp.helper.DateHelper;
 import com.benoitletondor.easybudgetapp.helper.Logger;
+import com.benoitletondor.easybudgetapp.helper.ParameterKeys;
+import com.benoitletondor.easybudgetapp.helper.Parameters;
 import com.benoitletondor.easybudgetapp.model.Expense;
 
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Cache for SQLite database
+ * Cache for SQLite database.<br>
+ * <br>
+ * Data is cached per month and looked up by local epoch day (see {@link DateHelper#getLocalEpochDay(Date)}),
+ * balances being stored as DB values, so a cache hit doesn't allocate anything.<br>
+ * <br>
+ * Balances and days with expenses of the months around the current one are also persisted into a
+ * {@link BalanceSnapshot}, used on cache misses until the month is loaded so that the calendar
+ * can be drawn right after a cold start.<br>
+ * <br>
+ * Balances of any day, cached or not, are computed by a {@link BalanceIndex} kept up to date with
+ * writes into DB.
  *
  * @author Benoit LETONDOR
  */
 public class DBCache
 {
+    /**
+     * Value returned by {@link #getBalanceForDay(int)} if the balance is not cached
+     */
+    public static final long BALANCE_NOT_CACHED = Long.MIN_VALUE;
+
+    /**
+     * Pending load flag for expenses of a month
+     */
+    private static final int LOAD_EXPENSES = 1;
+    /**
+     * Pending load flag for balances of a month
+     */
+    private static final int LOAD_BALANCES = 2;
+    /**
+     * Flag set when new data has been cached by one of the loads of a month
+     */
+    private static final int LOAD_CACHED_DATA = 4;
+    /**
+     * Shift applied to {@link #LOAD_EXPENSES} and {@link #LOAD_BALANCES} to flag a pending load as
+     * a prefetch that can be cancelled
+     */
+    private static final int LOAD_PREFETCH_SHIFT = 3;
+    /**
+     * Default maximum number of months kept in cache
+     */
+    private static final int DEFAULT_MAX_CACHED_MONTHS = 12;
+    /**
+     * Number of months before and after the visible one that are never evicted
+     */
+    private static final int PINNED_MONTHS_AROUND_VISIBLE = 1;
+    /**
+     * Number of months before and after the visible one that are prefetched
+     */
+    private static final int PREFETCH_MONTHS_AROUND_VISIBLE = 2;
+    /**
+     * Value of {@link #visibleMonthIndex} when no month is visible
+     */
+    private static final int NO_VISIBLE_MONTH = -1;
+    /**
+     * Number of threads loading data from DB
+     */
+    private static final int LOADER_THREADS = 2;
+    /**
+     * Priority of loads of the visible month
+     */
+    private static final int PRIORITY_VISIBLE = 0;
+    /**
+     * Priority of loads triggered by a cache miss
+     */
+    private static final int PRIORITY_MISS = 1;
+    /**
+     * Priority of prefetches of months next to the visible one, farther months having a lower priority
+     */
+    private static final int PRIORITY_PREFETCH = 2;
+    /**
+     * Minimum number of days after today covered by the {@link BalanceIndex}
+     */
+    static final int BALANCE_INDEX_MIN_FORECAST_DAYS = 366;
+    /**
+     * Key of the task building the {@link BalanceIndex}, negative not to collide with month load keys
+     */
+    private static final int BALANCE_INDEX_LOAD_KEY = -1;
+    /**
+     * Key of the task validating the {@link BalanceSnapshot}
+     */
+    private static final int SNAPSHOT_VALIDATION_KEY = -2;
+    /**
+     * Key of tasks looking for the first day with a balance below an amount
+     */
+    private static final int FIRST_DAY_WITH_BALANCE_BELOW_LOAD_KEY = -3;
+
     /**
      * Saved application context
      */
     private final Context context;
     /**
-     * Map that contains expenses saved per day
+     * Cached months keyed by month index (see {@link DateHelper#getMonthIndex(Date)})
+     */
+    private final SparseArray<CachedMonth> months = new SparseArray<>();
+    /**
+     * Maximum number of months kept in cache, least recently used ones are evicted first
+     */
+    private int maxCachedMonths = DEFAULT_MAX_CACHED_MONTHS;
+    /**
+     * Index of the month currently displayed, its neighbours are never evicted
+     */
+    private int visibleMonthIndex = NO_VISIBLE_MONTH;
+    /**
+     * Incremented on each access to a cached month, to find the least recently used one
+     */
+    private long accessCounter = 0;
+    /**
+     * Executor loading data from DB, visible month first
+     */
+    private final PriorityLoadExecutor executor = new PriorityLoadExecutor(LOADER_THREADS, "DBCache");
+    /**
+     * Lock for {@link #pendingWrites} and {@link #writeVersion}
+     */
+    private final Object writeLock = new Object();
+    /**
+     * Number of writes into DB currently running
+     */
+    private int pendingWrites = 0;
+    /**
+     * Incremented each time a write into DB starts or ends, to discard data loaded concurrently
+     */
+    private int writeVersion = 0;
+    /**
+     * Highest write generation of DB (see {@link DBStatements#incrementWriteGeneration()}) of the
+     * writes started so far, saved into the snapshot once no write is pending
+     */
+    private long writeGeneration = -1;
+    /**
+     * Loads pending for each month (flags {@link #LOAD_EXPENSES} and {@link #LOAD_BALANCES}, shifted
+     * by {@link #LOAD_PREFETCH_SHIFT} for prefetches) keyed by month index, so that misses for a
+     * month that is being loaded share the same load
+     */
+    private final SparseIntArray pendingLoads = new SparseIntArray();
+    /**
+     * Listeners notified when a month is cached
+     */
+    private final List<OnMonthCachedListener> listeners = new ArrayList<>();
+    /**
+     * Handler to notify listeners on the main thread
+     */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * On-disk snapshot of balances used on cache misses
+     */
+    private final BalanceSnapshot snapshot;
+    /**
+     * In-memory index of balances of every day, null until it's built or after a wipe
+     */
+    @Nullable
+    private volatile BalanceIndex balanceIndex;
+    /**
+     * Lock held while building {@link #balanceIndex}, so that it's built only once
+     */
+    private final Object balanceIndexLock = new Object();
+    /**
+     * Is a task building {@link #balanceIndex} scheduled on the executor
+     */
+    private final AtomicBoolean balanceIndexLoadPending = new AtomicBoolean(false);
+
+// ------------------------------------->
+
+    /**
+     *
+     * @param context
+     */
+    private DBCache(@NonNull Context context)
+    {
+        this.context = context.getApplicationContext();
+        this.snapshot = BalanceSnapshot.open(this.context, new Date());
+
+        // Checking the snapshot needs DB: done by a loader, before loads of months
+        executor.execute(new ValidateSnapshotRunnable(this.context));
+    }
+
+    /**
+     * Load data for the given month if not already cached
+     *
+     * @param date the month we wanna load data for (no need to clear the date before)
+     */
+    public void loadMonth(@NonNull Date date)
+    {
+        Logger.debug("DBCache: Request to cache month: "+date);
+
+        int monthIndex = DateHelper.getMonthIndex(date);
+        scheduleLoad(monthIndex, LOAD_EXPENSES, PRIORITY_VISIBLE);
+        scheduleLoad(monthIndex, LOAD_BALANCES, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Set the month currently displayed and load it if needed: it won't be evicted from cache, nor
+     * its neighbours. The months around are then prefetched, prefetches of months that are not
+     * around the visible one anymore when they start being cancelled.
+     *
+     * @param date a date of the month
+     */
+    public void setVisibleMonth(@NonNull Date date)
+    {
+        int monthIndex = DateHelper.getMonthIndex(date);
+
+        synchronized (months)
+        {
+            visibleMonthIndex = monthIndex;
+        }
+
+        // Visible month first, then closest months first
+        scheduleLoad(monthIndex, LOAD_EXPENSES, PRIORITY_VISIBLE);
+        scheduleLoad(monthIndex, LOAD_BALANCES, PRIORITY_VISIBLE);
+
+        for(int distance = 1; distance <= PREFETCH_MONTHS_AROUND_VISIBLE; distance++)
+        {
+            int priority = PRIORITY_PREFETCH + distance - 1;
+
+            scheduleLoad(monthIndex + distance, LOAD_EXPENSES, priority);
+            scheduleLoad(monthIndex + distance, LOAD_BALANCES, priority);
+            scheduleLoad(monthIndex - distance, LOAD_EXPENSES, priority);
+            scheduleLoad(monthIndex - distance, LOAD_BALANCES, priority);
+        }
+    }
+
+    /**
+     * Set the maximum number of months kept in cache. It can't be less than the visible month and
+     * the months prefetched around it.
+     *
+     * @param maxCachedMonths
+     */
+    public void setMaxCachedMonths(int maxCachedMonths)
+    {
+        synchronized (months)
+        {
+            this.maxCachedMonths = Math.max(maxCachedMonths, 2 * PREFETCH_MONTHS_AROUND_VISIBLE + 1);
+            evictMonths(this.maxCachedMonths);
+        }
+    }
+
+    /**
+     * Release cached months according to the memory pressure, see {@link ComponentCallbacks2#onTrimMemory(int)}.
+     * The visible month and its neighbours are kept. The DB connection is closed too if the app is
+     * in background.
+     *
+     * @param level
+     */
+    public void onTrimMemory(int level)
+    {
+        synchronized (months)
+        {
+            if( level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL )
+            {
+                evictMonths(0);
+            }
+            else if( level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW )
+            {
+                evictMonths(maxCachedMonths / 2);
+            }
+        }
+
+        // Close the DB connection while the app is in background, it's kept opened otherwise
+        if( level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND )
+        {
+            DBConnectionManager.getInstance(context).closeIfUnused();
+        }
+    }
+
+    /**
+     * Get metrics of loads run so far
+     *
+     * @return
+     */
+    @NonNull
+    public LoadMetrics getLoadMetrics()
+    {
+        return executor.getMetrics();
+    }
+
+    /**
+     * Add a listener that will be notified on the main thread each time a month is cached.
+     * Should be called from the main thread.
+     *
+     * @param listener
+     */
+    public void addOnMonthCachedListener(@NonNull OnMonthCachedListener listener)
+    {
+        if( !listeners.contains(listener) )
+        {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove a listener added with {@link #addOnMonthCachedListener(OnMonthCachedListener)}.
+     * Should be called from the main thread.
+     *
+     * @param listener
+     */
+    public void removeOnMonthCachedListener(@NonNull OnMonthCachedListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Look for the first day, starting from today, at the end of which the balance is below the
+     * given amount (see {@link DB#getFirstDayWithBalanceBelow(Date, double)}) on the loader executor,
+     * so that the balance index is built there if needed
+     *
+     * @param amount balance to go below
+     * @param listener listener notified on the main thread once the day is found
      */
-    private final SimpleArrayMap<Date, List<Expense>> expenses = new SimpleArrayMap<>();
+    public void loadFirstDayWithBalanceBelow(double amount, @NonNull OnFirstDayWithBalanceBelowLoadedListener listener)
+    {
+        executor.execute(new LoadFirstDayWithBalanceBelowRunnable(context, amount, listener));
+    }
+
     /**
-     * Map that contains balances saved per day
+     * Signal that a write into DB starts: data loaded from DB until it ends will be discarded
      */
-    private final SimpleArrayMap<Date, Double> balances = new SimpleArrayMap<>();
+    void beginWrite()
+    {
+        synchronized (writeLock)
+        {
+            pendingWrites++;
+            writeVersion++;
+        }
+    }
+
     /**
-     * Single thread executor to load data from DB
+     * Set the write generation of DB of a write started with {@link #beginWrite()}. Should be called
+     * after {@link #beginWrite()}, so that the generation is not saved into the snapshot before the
+     * write is applied to it.
+     *
+     * @param generation
+     */
+    void setWriteGeneration(long generation)
+    {
+        synchronized (writeLock)
+        {
+            writeGeneration = Math.max(writeGeneration, generation);
+        }
+    }
+
+    /**
+     * Signal that a write into DB ended and instantly update cached data with its changes: balances
+     * of cached days are shifted by the amounts added and only changed days are reloaded. The write
+     * is signaled as ended only once changes are applied, so that data loaded from DB meanwhile,
+     * that may already contain them, is discarded instead of being shifted twice.
+     *
+     * @param db database link
+     * @param changes changes of the write, empty if it failed
      */
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    void endWrite(@NonNull DB db, @NonNull DayChanges changes)
+    {
+        try
+        {
+            if( !changes.isEmpty() )
+            {
+                applyChanges(db, changes);
+            }
+        }
+        finally
+        {
+            synchronized (writeLock)
+            {
+                // All writes started so far are applied to the snapshot
+                if( pendingWrites == 1 && writeGeneration >= 0 )
+                {
+                    snapshot.setGeneration(writeGeneration);
+                }
+
+                pendingWrites--;
+                writeVersion++;
+            }
+        }
+    }
+
+    /**
+     * Instantly wipe all cached data
+     */
+    public void wipeAll()
+    {
+        Logger.debug("DBCache: Refreshing all");
+
+        synchronized (writeLock)
+        {
+            writeVersion++;
+            balanceIndex = null;
+        }
+
+        synchronized (months)
+        {
+            months.clear();
+        }
+
+        snapshot.clear();
+    }
+
+// ------------------------------------->
+
+    /**
+     * Get cached expenses for the day
+     *
+     * @param day local epoch day
+     * @return list of expense if cached data is available, null otherwise
+     */
+    @Nullable
+    public List<Expense> getExpensesForDay(int day)
+    {
+        List<Expense> expensesForDay = lookupExpensesForDay(day);
+        DBMetrics.increment(expensesForDay != null ? DBMetrics.Metric.CACHE_EXPENSES_HIT : DBMetrics.Metric.CACHE_EXPENSES_MISS);
+
+        return expensesForDay;
+    }
+
+    /**
+     * Does this day contains expense (if cached)
+     *
+     * @param day local epoch day
+     * @return true or false if data is cached, null otherwise
+     */
+    @Nullable
+    public Boolean hasExpensesForDay(int day)
+    {
+        List<Expense> expensesForDay = lookupExpensesForDay(day);
+        if( expensesForDay != null )
+        {
+            DBMetrics.increment(DBMetrics.Metric.CACHE_EXPENSES_HIT);
+            return !expensesForDay.isEmpty();
+        }
+
+        DBMetrics.increment(DBMetrics.Metric.CACHE_EXPENSES_MISS);
+
+        // Month is being loaded, use the snapshot meanwhile
+        Boolean hasExpenses = snapshot.hasExpenses(day);
+        if( hasExpenses != null )
+        {
+            DBMetrics.increment(DBMetrics.Metric.CACHE_SNAPSHOT_HIT);
+        }
+
+        return hasExpenses;
+    }
+
+    /**
+     * Get cached expenses for the day without recording metrics, scheduling the load of the month
+     * if it's not cached. Callers record the hit or miss once.
+     *
+     * @param day local epoch day
+     * @return list of expense if cached data is available, null otherwise
+     */
+    @Nullable
+    private List<Expense> lookupExpensesForDay(int day)
+    {
+        int monthIndex = DateHelper.getMonthIndexForLocalEpochDay(day);
+
+        synchronized (months)
+        {
+            CachedMonth month = months.get(monthIndex);
+            if( month != null && month.expenses != null )
+            {
+                month.lastAccess = ++accessCounter;
+                return month.expenses.get(day);
+            }
+        }
+
+        scheduleLoad(monthIndex, LOAD_EXPENSES, PRIORITY_MISS);
+        return null;
+    }
+
+    /**
+     * Get balance for the given day if cached
+     *
+     * @param day local epoch day
+     * @return balance (DB value) if cached or in snapshot, {@link #BALANCE_NOT_CACHED} otherwise
+     */
+    public long getBalanceForDay(int day)
+    {
+        int monthIndex = DateHelper.getMonthIndexForLocalEpochDay(day);
+
+        synchronized (months)
+        {
+            CachedMonth month = months.get(monthIndex);
+            if( month != null && month.balances != null )
+            {
+                month.lastAccess = ++accessCounter;
+                DBMetrics.increment(DBMetrics.Metric.CACHE_BALANCE_HIT);
+                return month.balances[day - month.firstDay];
+            }
+        }
+
+        DBMetrics.increment(DBMetrics.Metric.CACHE_BALANCE_MISS);
+        scheduleLoad(monthIndex, LOAD_BALANCES, PRIORITY_MISS);
+
+        // Use the snapshot until the month is loaded
+        long balance = snapshot.getBalance(day);
+        if( balance != BALANCE_NOT_CACHED )
+        {
+            DBMetrics.increment(DBMetrics.Metric.CACHE_SNAPSHOT_HIT);
+        }
+
+        return balance;
+    }
+
+    /**
+     * Get the index of balances if it's already built, without building it. If it's not, its build
+     * is scheduled on the loader executor so that next calls can use it.
+     *
+     * @return the index, null if it's not built yet
+     */
+    @Nullable
+    BalanceIndex peekBalanceIndex()
+    {
+        BalanceIndex index = balanceIndex;
+        if( index == null )
+        {
+            scheduleBalanceIndexLoad();
+        }
+
+        return index;
+    }
+
+    /**
+     * Get the index of balances, building it from DB on first call (from the init date of the app
+     * to the recurrence horizon). Building it reads every day from DB: should only be called from
+     * loader threads, use {@link #peekBalanceIndex()} otherwise.
+     *
+     * @param db database link
+     * @return the index, null if it can't be built because a write into DB is pending
+     */
+    @Nullable
+    BalanceIndex getBalanceIndex(@NonNull DB db)
+    {
+        BalanceIndex index = balanceIndex;
+        if( index != null )
+        {
+            return index;
+        }
+
+        synchronized (balanceIndexLock)
+        {
+            index = balanceIndex;
+            if( index != null )
+            {
+                return index;
+            }
+
+            int version = getWriteVersion();
+            if( version < 0 )
+            {
+                return null;
+            }
+
+            long now = System.currentTimeMillis();
+            int firstDay = DateHelper.getLocalEpochDay(Parameters.getInstance(context).getLong(ParameterKeys.INIT_DATE, now));
+            int minLastDay = DateHelper.getLocalEpochDay(now) + BALANCE_INDEX_MIN_FORECAST_DAYS;
+
+            index = db.loadBalanceIndex(firstDay, minLastDay);
+
+            // Don't keep it if a write happened while building it: the write is not applied to it
+            synchronized (writeLock)
+            {
+                if( !isWriteVersion(version) )
+                {
+                    return null;
+                }
+
+                balanceIndex = index;
+            }
+
+            Logger.debug("DBCache: Balance index built from day "+firstDay);
+            return index;
+        }
+    }
+
+// --------------------------------------->
+
+    /**
+     * Apply changes of a write into DB to the balance index, the snapshot and cached months. Should
+     * be called while the write is pending.
+     *
+     * @param db database link
+     * @param changes changes of the write
+     */
+    private void applyChanges(@NonNull DB db, @NonNull DayChanges changes)
+    {
+        Logger.debug("DBCache: Updating for "+changes.getDeltas().size()+" changed days");
+
+        // Can't be replaced while a write is pending
+        BalanceIndex index = balanceIndex;
+        if( index != null )
+        {
+            index.applyChanges(changes);
+        }
+
+        snapshot.applyChanges(changes);
+
+        List<Integer> cachedDays = new ArrayList<>();
+
+        synchronized (months)
+        {
+            for(Map.Entry<Integer, Long> delta : changes.getDeltas().entrySet())
+            {
+                int day = delta.getKey();
+                long amount = delta.getValue();
+
+                // Shift balances of this day and every day after
+                if( amount != 0 )
+                {
+                    for(int i = 0; i < months.size(); i++)
+                    {
+                        CachedMonth month = months.valueAt(i);
+                        if( month.balances == null )
+                        {
+                            continue;
+                        }
+
+                        for(int dayIndex = Math.max(0, day - month.firstDay); dayIndex < month.balances.length; dayIndex++)
+                        {
+                            month.balances[dayIndex] += amount;
+                        }
+                    }
+                }
+
+                CachedMonth month = months.get(DateHelper.getMonthIndexForLocalEpochDay(day));
+                if( month != null && month.expenses != null )
+                {
+                    cachedDays.add(day);
+                }
+            }
+        }
+
+        if( cachedDays.isEmpty() )
+        {
+            return;
+        }
+
+        // Reload expenses of changed cached days without holding the lock, so that reads from the
+        // main thread are not blocked by queries
+        SparseArray<List<Expense>> expenses = new SparseArray<>(cachedDays.size());
+        for(int day : cachedDays)
+        {
+            expenses.put(day, db.getExpensesForDay(DateHelper.getDateForLocalEpochDay(day), false));
+        }
+
+        synchronized (months)
+        {
+            for(int i = 0; i < expenses.size(); i++)
+            {
+                int day = expenses.keyAt(i);
+
+                // The month may have been evicted meanwhile
+                CachedMonth month = months.get(DateHelper.getMonthIndexForLocalEpochDay(day));
+                if( month != null && month.expenses != null )
+                {
+                    month.expenses.put(day, expenses.valueAt(i));
+                    snapshot.putHasExpenses(day, !expenses.valueAt(i).isEmpty());
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the write generation of DB, to check that the snapshot is up to date
+     *
+     * @param context
+     * @return the generation, -1 if it can't be read
+     */
+    private static long readWriteGeneration(@NonNull Context context)
+    {
+        DB db = null;
+        try
+        {
+            db = new DB(context);
+            return db.getWriteGeneration();
+        }
+        catch (Exception e)
+        {
+            Logger.error("Error while reading DB write generation", e);
+            return -1;
+        }
+        finally
+        {
+            if( db != null )
+            {
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * Get the version of cached data to check before saving data loaded from DB
+     *
+     * @return the current version, -1 if a write is pending
+     */
+    private int getWriteVersion()
+    {
+        synchronized (writeLock)
+        {
+            return pendingWrites > 0 ? -1 : writeVersion;
+        }
+    }
+
+    /**
+     * Can data loaded from DB with the given version be saved (no write happened since)
+     *
+     * @param version version returned by {@link #getWriteVersion()} before loading data
+     * @return
+     */
+    private boolean isWriteVersion(int version)
+    {
+        synchronized (writeLock)
+        {
+            return version >= 0 && pendingWrites == 0 && version == writeVersion;
+        }
+    }
+
+    /**
+     * Get the cached month for the given index, creating it if needed and evicting the least recently
+     * used months if there are too many. Should be called with {@link #months} lock held.
+     *
+     * @param monthIndex
+     * @param firstDay local epoch day of the first day of the month
+     * @return
+     */
+    @NonNull
+    private CachedMonth getOrCreateMonth(int monthIndex, int firstDay)
+    {
+        CachedMonth month = months.get(monthIndex);
+        if( month == null )
+        {
+            month = new CachedMonth(firstDay);
+            months.put(monthIndex, month);
+        }
+
+        month.lastAccess = ++accessCounter;
+        evictMonths(maxCachedMonths);
+
+        return month;
+    }
+
+    /**
+     * Evict least recently used months until there are at most the given number of months cached,
+     * the visible month and its neighbours excepted. Should be called with {@link #months} lock held.
+     *
+     * @param maxMonths
+     */
+    private void evictMonths(int maxMonths)
+    {
+        while( months.size() > maxMonths )
+        {
+            int evictedIndex = -1;
+            for(int i = 0; i < months.size(); i++)
+            {
+                if( isPinned(months.keyAt(i)) )
+                {
+                    continue;
+                }
+
+                if( evictedIndex == -1 || months.valueAt(i).lastAccess < months.valueAt(evictedIndex).lastAccess )
+                {
+                    evictedIndex = i;
+                }
+            }
 
-// ------------------------------------->
+            if( evictedIndex == -1 )
+            {
+                return;
+            }
 
-    /**
-     *
-     * @param context
-     */
-    private DBCache(@NonNull Context context)
-    {
-        this.context = context.getApplicationContext();
+            Logger.debug("DBCache: Evicting month: "+months.keyAt(evictedIndex));
+            months.removeAt(evictedIndex);
+            DBMetrics.increment(DBMetrics.Metric.CACHE_EVICTION);
+        }
     }
 
     /**
-     * Load data for the given month if not already cached
+     * Is the given month the visible one or one of its neighbours. Should be called with
+     * {@link #months} lock held.
      *
-     * @param date the month we wanna load data for (no need to clear the date before)
+     * @param monthIndex
+     * @return
      */
-    public void loadMonth(@NonNull Date date)
+    private boolean isPinned(int monthIndex)
     {
-        Logger.debug("DBCache: Request to cache month: "+date);
-
-        executor.execute(new LoadMonthRunnable(context, date));
-        executor.execute(new LoadBalanceMonthRunnable(context, date));
+        return visibleMonthIndex != NO_VISIBLE_MONTH && Math.abs(monthIndex - visibleMonthIndex) <= PINNED_MONTHS_AROUND_VISIBLE;
     }
 
     /**
-     * Instantly refresh cached data for the given day
+     * Schedule a load of the given month, unless the same load is already pending. In that case,
+     * the pending load is given the priority if it's higher.
      *
-     * @param db database link
-     * @param date cleaned date for the day
+     * @param monthIndex index of the month to load
+     * @param load {@link #LOAD_EXPENSES} or {@link #LOAD_BALANCES}
+     * @param priority priority of the load, prefetches ({@link #PRIORITY_PREFETCH} and lower) will
+     *                 be cancelled if the month is not around the visible one anymore when they start
      */
-    public void refreshForDay(@NonNull DB db, @NonNull Date date)
+    private void scheduleLoad(int monthIndex, int load, int priority)
     {
-        Logger.debug("DBCache: Refreshing for day: "+date);
+        boolean prefetch = priority >= PRIORITY_PREFETCH;
+        int prefetchFlag = load << LOAD_PREFETCH_SHIFT;
+        int key = getLoadKey(monthIndex, load);
 
-        synchronized (balances)
+        synchronized (pendingLoads)
         {
-            balances.clear(); // TODO be smarter than delete all ?
-        }
+            int pending = pendingLoads.get(monthIndex);
+            if( (pending & load) != 0 )
+            {
+                // The data is needed now: the pending prefetch must not be cancelled
+                if( !prefetch )
+                {
+                    pendingLoads.put(monthIndex, pending & ~prefetchFlag);
+                }
 
-        synchronized (expenses)
-        {
-            expenses.put(DateHelper.cleanGMTDate(date), db.getExpensesForDay(date, false));
+                executor.promote(key, priority);
+                return;
+            }
+
+            pendingLoads.put(monthIndex, pending | load | (prefetch ? prefetchFlag : 0));
         }
+
+        executor.execute(load == LOAD_EXPENSES ? new LoadMonthRunnable(context, monthIndex, key, priority) : new LoadBalanceMonthRunnable(context, monthIndex, key, priority));
     }
 
     /**
-     * Instantly wipe all cached data
+     * Schedule the build of the {@link BalanceIndex} on the loader executor, if not already scheduled
      */
-    public void wipeAll()
+    private void scheduleBalanceIndexLoad()
     {
-        Logger.debug("DBCache: Refreshing all");
-
-        synchronized (balances)
-        {
-            balances.clear();
-        }
-
-        synchronized (expenses)
+        if( balanceIndexLoadPending.compareAndSet(false, true) )
         {
-            expenses.clear();
+            executor.execute(new LoadBalanceIndexRunnable(context));
         }
     }
 
-// ------------------------------------->
-
     /**
-     * Get cached expenses for the day
+     * Get the key of a load task, to find it in the executor queue
      *
-     * @param date cleaned date for the day
-     * @return list of expense if cached data is available, null otherwise
+     * @param monthIndex index of the month to load
+     * @param load {@link #LOAD_EXPENSES} or {@link #LOAD_BALANCES}
+     * @return
      */
-    @Nullable
-    public List<Expense> getExpensesForDay(@NonNull Date date)
+    private static int getLoadKey(int monthIndex, int load)
     {
-        synchronized (expenses)
-        {
-            if( expenses.containsKey(date) )
-            {
-                return expenses.get(date);
-            }
-
-            executor.execute(new LoadMonthRunnable(context, date));
-            return null;
-        }
+        return monthIndex << 2 | load;
     }
 
     /**
-     * Does this day contains expense (if cached)
+     * Called by loaders when they're done. Listeners are notified if this was the last pending load
+     * of the month and new data has been cached for it.
      *
-     * @param date cleaned date for the day
-     * @return true or false if data is cached, null otherwise
+     * @param monthIndex index of the loaded month
+     * @param load {@link #LOAD_EXPENSES} or {@link #LOAD_BALANCES}
+     * @param cached has new data been cached
      */
-    @Nullable
-    public Boolean hasExpensesForDay(@NonNull Date date)
+    private void onLoadFinished(int monthIndex, int load, boolean cached)
     {
-        synchronized (expenses)
+        boolean notify;
+
+        synchronized (pendingLoads)
         {
-            List<Expense> expensesForDay = expenses.get(date);
-            if( expensesForDay == null )
+            int pending = pendingLoads.get(monthIndex) & ~(load | load << LOAD_PREFETCH_SHIFT);
+            if( cached )
             {
-                executor.execute(new LoadMonthRunnable(context, date));
-                return null;
+                pending |= LOAD_CACHED_DATA;
             }
 
-            return !expensesForDay.isEmpty();
+            notify = (pending & (LOAD_EXPENSES | LOAD_BALANCES)) == 0;
+            if( notify )
+            {
+                pendingLoads.delete(monthIndex);
+                notify = (pending & LOAD_CACHED_DATA) != 0;
+            }
+            else
+            {
+                pendingLoads.put(monthIndex, pending);
+            }
+        }
+
+        if( notify )
+        {
+            final Date month = DateHelper.getFirstDayOfMonth(monthIndex);
+            mainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for(OnMonthCachedListener listener : new ArrayList<>(listeners))
+                    {
+                        listener.onMonthCached(month);
+                    }
+                }
+            });
         }
     }
 
     /**
-     * Get balance for the given day if cached
+     * Is the given load a prefetch of a month that is not around the visible one anymore
      *
-     * @param day cleaned date for the day
-     * @return balance if cached, null otherwise
+     * @param monthIndex index of the month to load
+     * @param load {@link #LOAD_EXPENSES} or {@link #LOAD_BALANCES}
+     * @return true if the load should be cancelled
      */
-    @Nullable
-    public Double getBalanceForDay(@NonNull Date day)
+    private boolean isPrefetchCancelled(int monthIndex, int load)
     {
-        synchronized (balances)
+        synchronized (pendingLoads)
         {
-            if( balances.containsKey(day) )
+            if( (pendingLoads.get(monthIndex) & load << LOAD_PREFETCH_SHIFT) == 0 )
             {
-                return balances.get(day);
+                return false;
             }
+        }
 
-            executor.execute(new LoadBalanceMonthRunnable(context, day));
-            return null;
+        synchronized (months)
+        {
+            return visibleMonthIndex == NO_VISIBLE_MONTH || Math.abs(monthIndex - visibleMonthIndex) > PREFETCH_MONTHS_AROUND_VISIBLE;
         }
     }
 
 // --------------------------------------->
 
     /**
-     * Runnable that loads data for a month in cache
+     * Data cached for a month
+     */
+    private static final class CachedMonth
+    {
+        /**
+         * Local epoch day of the first day of the month
+         */
+        private final int firstDay;
+        /**
+         * Expenses keyed by local epoch day, null if not loaded
+         */
+        private SparseArray<List<Expense>> expenses;
+        /**
+         * Balances (DB value) of each day of the month, index 0 being the first day, null if not loaded
+         */
+        private long[] balances;
+        /**
+         * Value of {@link #accessCounter} when the month was last accessed
+         */
+        private long lastAccess;
+
+        private CachedMonth(int firstDay)
+        {
+            this.firstDay = firstDay;
+        }
+    }
+
+    /**
+     * Task that loads data for a month in cache
      */
-    private class LoadMonthRunnable implements Runnable
+    private class LoadMonthRunnable extends PriorityLoadExecutor.Task
     {
         /**
-         * Date containing the month to load
+         * Index of the month to load
          */
-        private Date month;
+        private int monthIndex;
         /**
          * Saved context to get DB
          */
         private Context context;
 
-        private LoadMonthRunnable(@NonNull Context context, @NonNull Date month)
+        private LoadMonthRunnable(@NonNull Context context, int monthIndex, int key, int priority)
         {
-            this.month = month;
+            super(key, priority);
+
+            this.monthIndex = monthIndex;
             this.context = context;
         }
 
         @Override
-        public void run()
+        protected void doRun()
         {
             DB db = null;
+            boolean cached = false;
+            long startTime = DBMetrics.startTimer();
             try
             {
-                // Init a calendar to the given date, setting the day of month to 1
-                Calendar cal = Calendar.getInstance();
-                cal.setTime(DateHelper.cleanDate(month));
-                cal.set(Calendar.DAY_OF_MONTH, 1);
-
-                synchronized (expenses)
+                synchronized (months)
                 {
-                    if (expenses.containsKey(DateHelper.cleanGMTDate(cal.getTime())))
+                    CachedMonth month = months.get(monthIndex);
+                    if( month != null && month.expenses != null )
                     {
                         return;
                     }
                 }
 
+                if( isPrefetchCancelled(monthIndex, LOAD_EXPENSES) )
+                {
+                    Logger.debug("DBCache: Prefetch cancelled for month: "+monthIndex);
+                    DBMetrics.increment(DBMetrics.Metric.CACHE_PREFETCH_CANCELLED);
+                    return;
+                }
+
+                int version = getWriteVersion();
                 db = new DB(context.getApplicationContext());
 
-                // Save the month we wanna load cache for
-                int month = cal.get(Calendar.MONTH);
+                Logger.debug("DBCache: Caching data for month: "+monthIndex);
 
-                Logger.debug("DBCache: Caching data for month: "+month);
+                // Load the whole month at once
+                int firstDay = DateHelper.getFirstLocalEpochDayOfMonth(monthIndex);
+                SparseArray<List<Expense>> expensesForMonth = db.getExpensesGroupedByDay(firstDay, DateHelper.getLastLocalEpochDayOfMonth(monthIndex));
 
-                // Iterate over day of month (while are still on that month)
-                while( cal.get(Calendar.MONTH) == month )
+                synchronized (months)
                 {
-                    Date date = cal.getTime();
-                    List<Expense> expensesForDay = db.getExpensesForDay(date, false);
-
-                    synchronized (expenses)
+                    // Data may be outdated if the DB has been written while loading it
+                    if( !isWriteVersion(version) )
                     {
-                        expenses.put(DateHelper.cleanGMTDate(date), expensesForDay);
+                        Logger.debug("DBCache: DB written while caching month: "+monthIndex);
+                        return;
                     }
 
-                    cal.add(Calendar.DAY_OF_MONTH, 1);
+                    getOrCreateMonth(monthIndex, firstDay).expenses = expensesForMonth;
+                    snapshot.putExpenses(expensesForMonth);
                 }
 
-                Logger.debug("DBCache: Data cached for month: "+month);
+                cached = true;
+                Logger.debug("DBCache: Data cached for month: "+monthIndex);
             }
             finally
             {
                 if( db != null )
                 {
                     db.close();
+                    DBMetrics.recordTime(DBMetrics.Metric.CACHE_LOAD_EXPENSES, startTime);
                 }
+
+                onLoadFinished(monthIndex, LOAD_EXPENSES, cached);
             }
         }
     }
 
     /**
-     * Runnable that loads balance data for a month in cache
+     * Task that loads balance data for a month in cache
      */
-    private class LoadBalanceMonthRunnable implements Runnable
+    private class LoadBalanceMonthRunnable extends PriorityLoadExecutor.Task
     {
         /**
-         * Date containing the month to load
+         * Index of the month to load
          */
-        private Date month;
+        private int monthIndex;
         /**
          * Saved context to get DB
          */
         private Context context;
 
-        private LoadBalanceMonthRunnable(@NonNull Context context, @NonNull Date month)
+        private LoadBalanceMonthRunnable(@NonNull Context context, int monthIndex, int key, int priority)
         {
-            this.month = month;
+            super(key, priority);
+
+            this.monthIndex = monthIndex;
             this.context = context;
         }
 
         @Override
-        public void run()
+        protected void doRun()
         {
             DB db = null;
+            boolean cached = false;
+            long startTime = DBMetrics.startTimer();
             try
             {
-                // Init a calendar to the given date, setting the day of month to 1
-                Calendar cal = Calendar.getInstance();
-                cal.setTime(DateHelper.cleanDate(month));
-                cal.set(Calendar.DAY_OF_MONTH, 1);
-
-                synchronized (balances)
+                synchronized (months)
                 {
-                    if (balances.containsKey(DateHelper.cleanGMTDate(cal.getTime())))
+                    CachedMonth month = months.get(monthIndex);
+                    if( month != null && month.balances != null )
                     {
                         return;
                     }
                 }
 
+                if( isPrefetchCancelled(monthIndex, LOAD_BALANCES) )
+                {
+                    Logger.debug("DBCache: Prefetch cancelled for month: "+monthIndex);
+                    DBMetrics.increment(DBMetrics.Metric.CACHE_PREFETCH_CANCELLED);
+                    return;
+                }
+
+                int version = getWriteVersion();
                 db = new DB(context.getApplicationContext());
 
-                // Save the month we wanna load cache for
-                int month = cal.get(Calendar.MONTH);
+                Logger.debug("DBCache: Caching balance data for month: "+monthIndex);
 
-                Logger.debug("DBCache: Caching balance data for month: "+month);
+                // Load the whole month at once
+                int firstDay = DateHelper.getFirstLocalEpochDayOfMonth(monthIndex);
+                long[] balancesForMonth = db.getDailyBalances(firstDay, DateHelper.getLastLocalEpochDayOfMonth(monthIndex));
 
-                // Iterate over day of month (while are still on that month)
-                while( cal.get(Calendar.MONTH) == month )
+                synchronized (months)
                 {
-                    Date date = cal.getTime();
-                    double balanceForDay = db.getBalanceForDay(date, false);
-
-                    synchronized (balances)
+                    // Data may be outdated if the DB has been written while loading it
+                    if( !isWriteVersion(version) )
                     {
-                        balances.put(DateHelper.cleanGMTDate(date), balanceForDay);
+                        Logger.debug("DBCache: DB written while caching balances of month: "+monthIndex);
+                        return;
                     }
 
-                    cal.add(Calendar.DAY_OF_MONTH, 1);
+                    getOrCreateMonth(monthIndex, firstDay).balances = balancesForMonth;
+                    snapshot.putBalances(firstDay, balancesForMonth);
+                }
+
+                cached = true;
+                Logger.debug("DBCache: Data balance cached for month: "+monthIndex);
+            }
+            finally
+            {
+                if( db != null )
+                {
+                    db.close();
+                    DBMetrics.recordTime(DBMetrics.Metric.CACHE_LOAD_BALANCES, startTime);
+                }
+
+                onLoadFinished(monthIndex, LOAD_BALANCES, cached);
+            }
+        }
+    }
+
+    /**
+     * Task that checks that the {@link BalanceSnapshot} is up to date with DB
+     */
+    private class ValidateSnapshotRunnable extends PriorityLoadExecutor.Task
+    {
+        /**
+         * Saved context to get DB
+         */
+        private Context context;
+
+        private ValidateSnapshotRunnable(@NonNull Context context)
+        {
+            super(SNAPSHOT_VALIDATION_KEY, PRIORITY_VISIBLE);
+
+            this.context = context;
+        }
+
+        @Override
+        protected void doRun()
+        {
+            snapshot.validate(readWriteGeneration(context));
+        }
+    }
+
+    /**
+     * Task that looks for the first day with a balance below an amount
+     */
+    private class LoadFirstDayWithBalanceBelowRunnable extends PriorityLoadExecutor.Task
+    {
+        /**
+         * Saved context to get DB
+         */
+        private Context context;
+        /**
+         * Balance to go below
+         */
+        private double amount;
+        /**
+         * Listener to notify with the day
+         */
+        private OnFirstDayWithBalanceBelowLoadedListener listener;
+
+        private LoadFirstDayWithBalanceBelowRunnable(@NonNull Context context, double amount, @NonNull OnFirstDayWithBalanceBelowLoadedListener listener)
+        {
+            super(FIRST_DAY_WITH_BALANCE_BELOW_LOAD_KEY, PRIORITY_MISS);
+
+            this.context = context;
+            this.amount = amount;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void doRun()
+        {
+            final Date day;
+
+            DB db = null;
+            try
+            {
+                db = new DB(context.getApplicationContext());
+                day = db.getFirstDayWithBalanceBelow(new Date(), amount);
+            }
+            catch (Exception e)
+            {
+                Logger.error("Error while looking for first day with balance below "+amount, e);
+                return;
+            }
+            finally
+            {
+                if( db != null )
+                {
+                    db.close();
+                }
+            }
+
+            mainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    listener.onFirstDayWithBalanceBelowLoaded(day);
+                }
+            });
+        }
+    }
+
+    /**
+     * Task that builds the {@link BalanceIndex}
+     */
+    private class LoadBalanceIndexRunnable extends PriorityLoadExecutor.Task
+    {
+        /**
+         * Saved context to get DB
+         */
+        private Context context;
+
+        private LoadBalanceIndexRunnable(@NonNull Context context)
+        {
+            super(BALANCE_INDEX_LOAD_KEY, PRIORITY_PREFETCH);
+
+            this.context = context;
+        }
+
+        @Override
+        protected void doRun()
+        {
+            DB db = null;
+            try
+            {
+                if( balanceIndex != null )
+                {
+                    return;
                 }
 
-                Logger.debug("DBCache: Data balance cached for month: "+month);
+                db = new DB(context.getApplicationContext());
+                getBalanceIndex(db);
             }
             finally
             {
@@ -326,10 +1273,124 @@ public class DBCache
                 {
                     db.close();
                 }
+
+                // Index not kept if a write happened while building it: next peek will schedule it again
+                balanceIndexLoadPending.set(false);
             }
         }
     }
 
+// --------------------------------------->
+
+    /**
+     * Metrics of loads run by the cache
+     */
+    public static final class LoadMetrics
+    {
+        /**
+         * Number of loads run, cancelled ones included
+         */
+        private final long executedLoads;
+        /**
+         * Number of loads waiting in queue
+         */
+        private final int queuedLoads;
+        /**
+         * Total time spent by loads in queue (ns)
+         */
+        private final long totalQueueWait;
+        /**
+         * Longest time spent by a load in queue (ns)
+         */
+        private final long maxQueueWait;
+        /**
+         * Total time spent running loads (ns)
+         */
+        private final long totalRunTime;
+        /**
+         * Longest time spent running a load (ns)
+         */
+        private final long maxRunTime;
+
+        LoadMetrics(long executedLoads, int queuedLoads, long totalQueueWait, long maxQueueWait, long totalRunTime, long maxRunTime)
+        {
+            this.executedLoads = executedLoads;
+            this.queuedLoads = queuedLoads;
+            this.totalQueueWait = totalQueueWait;
+            this.maxQueueWait = maxQueueWait;
+            this.totalRunTime = totalRunTime;
+            this.maxRunTime = maxRunTime;
+        }
+
+        public long getExecutedLoads()
+        {
+            return executedLoads;
+        }
+
+        public int getQueuedLoads()
+        {
+            return queuedLoads;
+        }
+
+        /**
+         * @return average time spent by a load in queue (ms)
+         */
+        public double getAverageQueueWait()
+        {
+            return executedLoads == 0 ? 0 : totalQueueWait / 1000000.d / executedLoads;
+        }
+
+        /**
+         * @return longest time spent by a load in queue (ms)
+         */
+        public double getMaxQueueWait()
+        {
+            return maxQueueWait / 1000000.d;
+        }
+
+        /**
+         * @return average time spent running a load (ms)
+         */
+        public double getAverageRunTime()
+        {
+            return executedLoads == 0 ? 0 : totalRunTime / 1000000.d / executedLoads;
+        }
+
+        /**
+         * @return longest time spent running a load (ms)
+         */
+        public double getMaxRunTime()
+        {
+            return maxRunTime / 1000000.d;
+        }
+    }
+
+    /**
+     * Listener notified when data of a month has been cached
+     */
+    public interface OnMonthCachedListener
+    {
+        /**
+         * Called on the main thread when data of the given month has been cached
+         *
+         * @param month first day of the month
+         */
+        void onMonthCached(@NonNull Date month);
+    }
+
+    /**
+     * Listener notified with the result of {@link #loadFirstDayWithBalanceBelow(double, OnFirstDayWithBalanceBelowLoadedListener)}
+     */
+    public interface OnFirstDayWithBalanceBelowLoadedListener
+    {
+        /**
+         * Called on the main thread once the day has been looked for
+         *
+         * @param day the day, null if the balance never goes below the amount
+         */
+        void onFirstDayWithBalanceBelowLoaded(@Nullable Date day);
+    }
+
 // --------------------------------------->
 
     /**
@@ -0,0 +1,142 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import com.benoitletondor.easybudgetapp.helper.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stream of {@link DBChangeEvent} published by {@link DB} after each successful write (inserts,
+ * updates, deletes and bulk monthly deletes). Events are delivered on the main thread, in the
+ * order of the writes, once {@link DBCache} has been updated.
+ *
+ * @author Benoit LETONDOR
+ */
+public final class DBChangeBus
+{
+    /**
+     * Listeners notified of changes
+     */
+    private final List<OnDBChangeListener> listeners = new ArrayList<>();
+    /**
+     * Handler to notify listeners on the main thread
+     */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+// -------------------------------------------->
+
+    private DBChangeBus()
+    {
+
+    }
+
+    /**
+     * Add a listener that will be notified on the main thread after each write into DB.
+     * Should be called from the main thread.
+     *
+     * @param listener
+     */
+    public void addOnDBChangeListener(@NonNull OnDBChangeListener listener)
+    {
+        if( !listeners.contains(listener) )
+        {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove a listener added with {@link #addOnDBChangeListener(OnDBChangeListener)}.
+     * Should be called from the main thread.
+     *
+     * @param listener
+     */
+    public void removeOnDBChangeListener(@NonNull OnDBChangeListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Publish changes of a write into DB, can be called from any thread
+     *
+     * @param changes changes of the write, nothing is published if empty
+     */
+    void publish(@NonNull DayChanges changes)
+    {
+        if( changes.isEmpty() )
+        {
+            return;
+        }
+
+        final DBChangeEvent event = new DBChangeEvent(changes);
+        Logger.debug("DBChangeBus: Publishing changes from day "+event.getFromDay()+" to "+event.getToDay());
+
+        mainHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for(OnDBChangeListener listener : new ArrayList<>(listeners))
+                {
+                    listener.onDBChange(event);
+                }
+            }
+        });
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Listener notified of writes into DB
+     */
+    public interface OnDBChangeListener
+    {
+        /**
+         * Called on the main thread after a write into DB
+         *
+         * @param event changes of the write
+         */
+        void onDBChange(@NonNull DBChangeEvent event);
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Singleton instance
+     */
+    private static DBChangeBus instance;
+
+    /**
+     * Instance accessor
+     *
+     * @return
+     */
+    public synchronized static DBChangeBus getInstance()
+    {
+        if( instance == null )
+        {
+            instance = new DBChangeBus();
+        }
+
+        return instance;
+    }
+}
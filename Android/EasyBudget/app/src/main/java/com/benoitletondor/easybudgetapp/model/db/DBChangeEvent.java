@@ -0,0 +1,156 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Event published by {@link DBChangeBus} after a write into DB, describing which days changed so
+ * that views can update only what needs to be.<br>
+ * <br>
+ * Days are local epoch days (see {@link com.benoitletondor.easybudgetapp.helper.DateHelper#getLocalEpochDay(java.util.Date)})
+ * and amounts are DB values, positive for expenses.
+ *
+ * @author Benoit LETONDOR
+ */
+public final class DBChangeEvent
+{
+    /**
+     * Days whose expenses changed, ordered
+     */
+    private final int[] days;
+    /**
+     * Amount added to each day of {@link #days}
+     */
+    private final long[] deltas;
+    /**
+     * Sum of {@link #deltas} up to each day of {@link #days} included
+     */
+    private final long[] cumulativeDeltas;
+
+// -------------------------------------------->
+
+    /**
+     *
+     * @param changes changes of the write, must not be empty
+     */
+    DBChangeEvent(@NonNull DayChanges changes)
+    {
+        int size = changes.getDeltas().size();
+
+        days = new int[size];
+        deltas = new long[size];
+        cumulativeDeltas = new long[size];
+
+        int i = 0;
+        long cumulativeDelta = 0;
+        for(Map.Entry<Integer, Long> delta : changes.getDeltas().entrySet())
+        {
+            cumulativeDelta += delta.getValue();
+
+            days[i] = delta.getKey();
+            deltas[i] = delta.getValue();
+            cumulativeDeltas[i] = cumulativeDelta;
+            i++;
+        }
+    }
+
+    /**
+     * Get the first day whose expenses changed
+     *
+     * @return local epoch day
+     */
+    public int getFromDay()
+    {
+        return days[0];
+    }
+
+    /**
+     * Get the last day whose expenses changed
+     *
+     * @return local epoch day
+     */
+    public int getToDay()
+    {
+        return days[days.length - 1];
+    }
+
+    /**
+     * Get the total amount added by the write, which is also the change of the balance of every day
+     * after {@link #getToDay()}
+     *
+     * @return amount (DB value)
+     */
+    public long getAmountDelta()
+    {
+        return cumulativeDeltas[cumulativeDeltas.length - 1];
+    }
+
+    /**
+     * Have expenses of the given day changed (added, removed or edited)
+     *
+     * @param day local epoch day
+     * @return
+     */
+    public boolean hasExpensesChanged(int day)
+    {
+        return Arrays.binarySearch(days, day) >= 0;
+    }
+
+    /**
+     * Get the amount added to the expenses of the given day
+     *
+     * @param day local epoch day
+     * @return amount (DB value), 0 if the day didn't change
+     */
+    public long getDayDelta(int day)
+    {
+        int index = Arrays.binarySearch(days, day);
+        return index >= 0 ? deltas[index] : 0;
+    }
+
+    /**
+     * Get the change of the balance of the given day
+     *
+     * @param day local epoch day
+     * @return amount (DB value)
+     */
+    public long getBalanceDelta(int day)
+    {
+        int index = Arrays.binarySearch(days, day);
+        if( index < 0 )
+        {
+            index = -index - 2; // Last changed day before this one
+        }
+
+        return index >= 0 ? cumulativeDeltas[index] : 0;
+    }
+
+    /**
+     * Does the given day need to be redrawn: its expenses or its balance changed
+     *
+     * @param day local epoch day
+     * @return
+     */
+    public boolean isDayChanged(int day)
+    {
+        return hasExpensesChanged(day) || getBalanceDelta(day) != 0;
+    }
+}
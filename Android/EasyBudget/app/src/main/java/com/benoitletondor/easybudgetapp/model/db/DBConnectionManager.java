@@ -0,0 +1,226 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import com.benoitletondor.easybudgetapp.helper.Logger;
+
+/**
+ * Application scoped manager of the SQLite connection shared by all {@link DB} instances.<br>
+ * <br>
+ * The connection is opened by the first {@link #acquire()} and kept opened for the application
+ * lifetime, so that short-lived {@link DB}s don't reopen the DB and recompile statements. It's only
+ * closed on memory pressure when no {@link DB} is using it (see {@link #closeIfUnused()}).
+ * Write-ahead logging is enabled so that background loaders can read while the UI thread writes.
+ *
+ * @author Benoit LETONDOR
+ */
+final class DBConnectionManager
+{
+    /**
+     * Helper that opens the DB
+     */
+    private final SQLiteDBHelper databaseHelper;
+    /**
+     * The opened DB, null if not opened
+     */
+    private SQLiteDatabase database;
+    /**
+     * Statements compiled for the opened DB, null if not opened
+     */
+    private DBStatements statements;
+    /**
+     * Number of {@link DB} currently using the connection
+     */
+    private int references = 0;
+    /**
+     * Is this manager replaced by another one, in which case the connection is closed as soon as
+     * it's not used anymore
+     */
+    private boolean replaced = false;
+
+// -------------------------------------------->
+
+    /**
+     *
+     * @param context
+     * @param inMemory true to use an empty in-memory DB instead of the application one
+     */
+    private DBConnectionManager(@NonNull Context context, boolean inMemory)
+    {
+        databaseHelper = new SQLiteDBHelper(context.getApplicationContext(), inMemory);
+        databaseHelper.setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Get the shared DB, opening it if needed. Each call must be balanced by a call to {@link #release()}.
+     *
+     * @return an opened DB
+     * @throws SQLiteException
+     */
+    @NonNull
+    synchronized SQLiteDatabase acquire() throws SQLiteException
+    {
+        if( database == null )
+        {
+            database = databaseHelper.getWritableDatabase();
+            statements = new DBStatements(database);
+
+            Logger.debug("DBConnectionManager: DB opened");
+        }
+
+        references++;
+        return database;
+    }
+
+    /**
+     * Get the statements compiled for the shared DB. Should only be called between {@link #acquire()}
+     * and {@link #release()}.
+     *
+     * @return
+     */
+    @NonNull
+    synchronized DBStatements getStatements()
+    {
+        if( statements == null )
+        {
+            throw new IllegalStateException("DB is not opened");
+        }
+
+        return statements;
+    }
+
+    /**
+     * Release the shared DB. The connection stays opened for next users, unless this manager has
+     * been replaced.
+     */
+    synchronized void release()
+    {
+        if( references <= 0 )
+        {
+            Logger.warning("DBConnectionManager: release called without acquire");
+            return;
+        }
+
+        references--;
+        if( references == 0 && replaced )
+        {
+            close();
+        }
+    }
+
+    /**
+     * Close the shared DB if no {@link DB} is using it, to release memory. It will be opened again
+     * by the next {@link #acquire()}.
+     */
+    synchronized void closeIfUnused()
+    {
+        if( references == 0 )
+        {
+            close();
+        }
+    }
+
+    /**
+     * Close the shared DB if opened. Should only be called when there's no reference left.
+     */
+    private void close()
+    {
+        if( database == null )
+        {
+            return;
+        }
+
+        try
+        {
+            statements.close();
+            databaseHelper.close();
+        }
+        catch (Exception e)
+        {
+            Logger.error("Error while closing SQLite DB", e);
+        }
+        finally
+        {
+            statements = null;
+            database = null;
+        }
+
+        Logger.debug("DBConnectionManager: DB closed");
+    }
+
+    /**
+     * Mark this manager as replaced by another one: its connection is closed now if not used,
+     * or on its last {@link #release()}.
+     */
+    private synchronized void replace()
+    {
+        replaced = true;
+        if( references == 0 )
+        {
+            close();
+        }
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Singleton instance
+     */
+    private static DBConnectionManager instance;
+
+    /**
+     * Instance accessor
+     *
+     * @param context
+     * @return
+     */
+    synchronized static DBConnectionManager getInstance(@NonNull Context context)
+    {
+        if( instance == null )
+        {
+            instance = new DBConnectionManager(context, false);
+        }
+
+        return instance;
+    }
+
+    /**
+     * Make {@link DB}s created from now on use an empty in-memory DB, or the application one again
+     * (<b>for test purpose</b>). DBs already created keep their connection, which is closed when the
+     * last of them is. {@link DBCache} is wiped since its data comes from the previous DB.
+     *
+     * @param context
+     * @param inMemory true to use an in-memory DB, false to use the application one
+     */
+    @VisibleForTesting
+    synchronized static void useInMemoryDatabase(@NonNull Context context, boolean inMemory)
+    {
+        if( instance != null )
+        {
+            instance.replace();
+        }
+
+        instance = new DBConnectionManager(context, inMemory);
+        DBCache.getInstance(context).wipeAll();
+    }
+}
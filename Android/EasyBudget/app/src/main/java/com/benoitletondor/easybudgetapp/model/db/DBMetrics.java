@@ -0,0 +1,267 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.benoitletondor.easybudgetapp.helper.Logger;
+
+import java.util.Locale;
+
+/**
+ * Counters and latency histograms of {@link DB} queries and {@link DBCache} operations, to spot
+ * performance regressions from the dev preferences.<br>
+ * <br>
+ * Latencies are recorded in power of 2 microseconds buckets, so percentiles are the upper bound
+ * of the bucket they fall in.
+ *
+ * @author Benoit LETONDOR
+ */
+public final class DBMetrics
+{
+    /**
+     * Recorded metrics
+     */
+    public enum Metric
+    {
+        CACHE_EXPENSES_HIT("Cache expenses hit"),
+        CACHE_EXPENSES_MISS("Cache expenses miss"),
+        CACHE_BALANCE_HIT("Cache balance hit"),
+        CACHE_BALANCE_MISS("Cache balance miss"),
+        CACHE_EVICTION("Cache month eviction"),
+        CACHE_PREFETCH_CANCELLED("Cache prefetch cancelled"),
+        CACHE_SNAPSHOT_HIT("Cache miss served by snapshot"),
+        CACHE_LOAD_EXPENSES("Cache expenses month load"),
+        CACHE_LOAD_BALANCES("Cache balances month load"),
+        DB_HAS_EXPENSES_FOR_DAY("DB hasExpensesForDay"),
+        DB_EXPENSES_FOR_DAY("DB getExpensesForDay"),
+        DB_EXPENSES_FOR_MONTH("DB getExpensesForMonth"),
+        DB_BALANCE_FOR_DAY("DB getBalanceForDay"),
+        DB_EXPENSES_GROUPED_BY_DAY("DB getExpensesGroupedByDay"),
+        DB_DAILY_BALANCES("DB getDailyBalances"),
+        DB_MONTH_GRID_MODEL("DB getMonthGridModel"),
+        DB_MONTH_SUMMARY("DB getMonthSummary"),
+        DB_EXPENSES_PAGE("DB getExpensesPageForMonth"),
+        DB_BALANCE_INDEX("DB loadBalanceIndex"),
+        DB_FIRST_DAY_WITH_BALANCE_BELOW("DB getFirstDayWithBalanceBelow"),
+        DB_WRITE("DB write");
+
+        /**
+         * Name displayed in reports
+         */
+        private final String name;
+
+        Metric(@NonNull String name)
+        {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Number of latency buckets, the last one containing every latency above 2^(BUCKETS-1) microseconds
+     */
+    private static final int BUCKETS = 24;
+
+    /**
+     * Lock for counters and histograms
+     */
+    private static final Object lock = new Object();
+    /**
+     * Number of events of each metric, indexed by ordinal
+     */
+    private static final long[] counts = new long[Metric.values().length];
+    /**
+     * Latency histograms of each metric, indexed by ordinal: bucket i counts latencies lower than 2^i microseconds
+     */
+    private static final long[][] histograms = new long[Metric.values().length][BUCKETS];
+    /**
+     * Highest latency of each metric (ns), indexed by ordinal
+     */
+    private static final long[] maxLatencies = new long[Metric.values().length];
+
+// -------------------------------------------->
+
+    private DBMetrics()
+    {
+
+    }
+
+    /**
+     * Count an event of the given metric
+     *
+     * @param metric
+     */
+    static void increment(@NonNull Metric metric)
+    {
+        synchronized (lock)
+        {
+            counts[metric.ordinal()]++;
+        }
+    }
+
+    /**
+     * Get the start time to give to {@link #recordTime(Metric, long)}
+     *
+     * @return
+     */
+    static long startTimer()
+    {
+        return System.nanoTime();
+    }
+
+    /**
+     * Count an event of the given metric and record its latency
+     *
+     * @param metric
+     * @param startTime time returned by {@link #startTimer()} when the event started
+     */
+    static void recordTime(@NonNull Metric metric, long startTime)
+    {
+        long latency = System.nanoTime() - startTime;
+
+        // Bucket i contains latencies lower than 2^i microseconds
+        long micros = latency / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+
+        synchronized (lock)
+        {
+            counts[metric.ordinal()]++;
+            histograms[metric.ordinal()][bucket]++;
+            maxLatencies[metric.ordinal()] = Math.max(maxLatencies[metric.ordinal()], latency);
+        }
+    }
+
+    /**
+     * Reset all metrics
+     */
+    public static void reset()
+    {
+        synchronized (lock)
+        {
+            for(int i = 0; i < counts.length; i++)
+            {
+                counts[i] = 0;
+                maxLatencies[i] = 0;
+
+                for(int bucket = 0; bucket < BUCKETS; bucket++)
+                {
+                    histograms[i][bucket] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a human readable report of all metrics, including {@link DBCache} loads queue metrics
+     *
+     * @param context
+     * @return a report, one metric per line
+     */
+    @NonNull
+    public static String getReport(@NonNull Context context)
+    {
+        StringBuilder report = new StringBuilder();
+
+        synchronized (lock)
+        {
+            for(Metric metric : Metric.values())
+            {
+                long count = counts[metric.ordinal()];
+                report.append(metric.name).append(": ").append(count);
+
+                long[] histogram = histograms[metric.ordinal()];
+                if( count > 0 && getTimedCount(histogram) > 0 )
+                {
+                    report.append(String.format(Locale.US, " (p50 %.3fms, p99 %.3fms, max %.3fms)",
+                        getPercentile(histogram, 0.5d),
+                        getPercentile(histogram, 0.99d),
+                        maxLatencies[metric.ordinal()] / 1000000.d));
+                }
+
+                report.append('\n');
+            }
+        }
+
+        DBCache.LoadMetrics loadMetrics = DBCache.getInstance(context).getLoadMetrics();
+        report.append(String.format(Locale.US, "Cache loads: %d run, %d queued (wait avg %.3fms, max %.3fms; run avg %.3fms, max %.3fms)",
+            loadMetrics.getExecutedLoads(),
+            loadMetrics.getQueuedLoads(),
+            loadMetrics.getAverageQueueWait(),
+            loadMetrics.getMaxQueueWait(),
+            loadMetrics.getAverageRunTime(),
+            loadMetrics.getMaxRunTime()));
+
+        return report.toString();
+    }
+
+    /**
+     * Dump the report of all metrics into logs
+     *
+     * @param context
+     */
+    public static void log(@NonNull Context context)
+    {
+        for(String line : getReport(context).split("\n"))
+        {
+            Logger.info(false, "DBMetrics: " + line);
+        }
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Get the number of latencies recorded into the histogram
+     *
+     * @param histogram
+     * @return
+     */
+    private static long getTimedCount(@NonNull long[] histogram)
+    {
+        long count = 0;
+        for(long bucketCount : histogram)
+        {
+            count += bucketCount;
+        }
+
+        return count;
+    }
+
+    /**
+     * Get the given percentile of latencies recorded into the histogram
+     *
+     * @param histogram
+     * @param percentile between 0 and 1
+     * @return upper bound of the bucket containing the percentile (ms)
+     */
+    private static double getPercentile(@NonNull long[] histogram, double percentile)
+    {
+        long threshold = (long) Math.ceil(getTimedCount(histogram) * percentile);
+
+        long count = 0;
+        for(int bucket = 0; bucket < BUCKETS; bucket++)
+        {
+            count += histogram[bucket];
+            if( count >= threshold )
+            {
+                return (1L << bucket) / 1000.d;
+            }
+        }
+
+        return (1L << (BUCKETS - 1)) / 1000.d;
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.benoitletondor.easybudgetapp.helper.DateHelper;
+import com.benoitletondor.easybudgetapp.helper.Logger;
+
+/**
+ * SQL of the queries made by {@link DB} and statements compiled once per connection for the hot ones.<br>
+ * <br>
+ * All queries take their values as bound arguments ({@code ?}) so that their SQL never changes:
+ * scalar queries and writes are compiled once as {@link SQLiteStatement}s, cursor queries are
+ * given to {@link SQLiteDatabase#rawQuery(String, String[])} as templates and are reused from the
+ * SQLite statement cache of the connection.
+ *
+ * @author Benoit LETONDOR
+ */
+final class DBStatements
+{
+    /**
+     * Where clause for expenses of a day (local epoch day)
+     */
+    static final String WHERE_EXPENSES_FOR_DAY = SQLiteDBHelper.COLUMN_EXPENSE_DAY + " = ?";
+    /**
+     * Where clause for expenses of a day range (from local epoch day, to local epoch day)
+     */
+    static final String WHERE_EXPENSES_FOR_RANGE = SQLiteDBHelper.COLUMN_EXPENSE_DAY + " >= ? AND " + SQLiteDBHelper.COLUMN_EXPENSE_DAY + " <= ?";
+    /**
+     * Where clause for revenues or expenses only of a day range (from, to, 1 for revenues or 0 for expenses)
+     */
+    static final String WHERE_KIND_FOR_RANGE = WHERE_EXPENSES_FOR_RANGE + " AND (" + SQLiteDBHelper.COLUMN_EXPENSE_AMOUNT + " < 0) = ?";
+    /**
+     * Where clause for an expense (id)
+     */
+    static final String WHERE_EXPENSE_FOR_ID = SQLiteDBHelper.COLUMN_EXPENSE_DB_ID + " = ?";
+    /**
+     * Where clause for expenses of a monthly expense (monthly id)
+     */
+    static final String WHERE_EXPENSES_FOR_MONTHLY = SQLiteDBHelper.COLUMN_EXPENSE_MONTHLY_ID + " = ?";
+    /**
+     * Where clause for expenses of a monthly expense after a date (monthly id, date)
+     */
+    static final String WHERE_EXPENSES_FOR_MONTHLY_AFTER_DATE = SQLiteDBHelper.COLUMN_EXPENSE_MONTHLY_ID + " = ? AND " + SQLiteDBHelper.COLUMN_EXPENSE_DATE + " > ?";
+    /**
+     * Where clause for expenses of a monthly expense before a date (monthly id, date)
+     */
+    static final String WHERE_EXPENSES_FOR_MONTHLY_BEFORE_DATE = SQLiteDBHelper.COLUMN_EXPENSE_MONTHLY_ID + " = ? AND " + SQLiteDBHelper.COLUMN_EXPENSE_DATE + " < ?";
+    /**
+     * Where clause for a monthly expense (id)
+     */
+    static final String WHERE_MONTHLY_FOR_ID = SQLiteDBHelper.COLUMN_MONTHLY_DB_ID + " = ?";
+
+// -------------------------------------------->
+
+    /**
+     * Expenses of a day (day)
+     */
+    static final String SQL_EXPENSES_FOR_DAY = "SELECT * FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + WHERE_EXPENSES_FOR_DAY;
+    /**
+     * Number of expenses of a day (day)
+     */
+    static final String SQL_COUNT_EXPENSES_FOR_DAY = "SELECT COUNT(*) FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + WHERE_EXPENSES_FOR_DAY;
+    /**
+     * Expenses of a day range ordered by date (from, to)
+     */
+    static final String SQL_EXPENSES_FOR_RANGE_ORDERED = "SELECT * FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + WHERE_EXPENSES_FOR_RANGE + " ORDER BY " + SQLiteDBHelper.COLUMN_EXPENSE_DAY + ", " + SQLiteDBHelper.COLUMN_EXPENSE_DATE;
+    /**
+     * Day and amount of expenses of a day range (from, to)
+     */
+    static final String SQL_EXPENSE_AMOUNTS_FOR_RANGE = "SELECT " + SQLiteDBHelper.COLUMN_EXPENSE_DAY + ", " + SQLiteDBHelper.COLUMN_EXPENSE_AMOUNT + " FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + WHERE_EXPENSES_FOR_RANGE;
+    /**
+     * Page of revenues or expenses only of a day range ordered by date (from, to, 1 for revenues or 0 for expenses, limit, offset)
+     */
+    static final String SQL_KIND_PAGE_FOR_RANGE = "SELECT * FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + WHERE_KIND_FOR_RANGE + " ORDER BY " + SQLiteDBHelper.COLUMN_EXPENSE_DAY + ", " + SQLiteDBHelper.COLUMN_EXPENSE_DATE + ", " + SQLiteDBHelper.COLUMN_EXPENSE_DB_ID + " LIMIT ? OFFSET ?";
+    /**
+     * Day and number of revenues or expenses only of each day of a day range with some, ordered by day (from, to, 1 for revenues or 0 for expenses)
+     */
+    static final String SQL_KIND_COUNTS_BY_DAY_FOR_RANGE = "SELECT " + SQLiteDBHelper.COLUMN_EXPENSE_DAY + ", COUNT(*) FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + WHERE_KIND_FOR_RANGE + " GROUP BY " + SQLiteDBHelper.COLUMN_EXPENSE_DAY + " ORDER BY " + SQLiteDBHelper.COLUMN_EXPENSE_DAY;
+    /**
+     * Expenses of a monthly expense (monthly id)
+     */
+    static final String SQL_EXPENSES_FOR_MONTHLY = "SELECT * FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + WHERE_EXPENSES_FOR_MONTHLY;
+    /**
+     * Expenses of a monthly expense after a date (monthly id, date)
+     */
+    static final String SQL_EXPENSES_FOR_MONTHLY_AFTER_DATE = "SELECT * FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + WHERE_EXPENSES_FOR_MONTHLY_AFTER_DATE;
+    /**
+     * Expenses of a monthly expense before a date (monthly id, date)
+     */
+    static final String SQL_EXPENSES_FOR_MONTHLY_BEFORE_DATE = "SELECT * FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + WHERE_EXPENSES_FOR_MONTHLY_BEFORE_DATE;
+    /**
+     * Number of expenses of a monthly expense before a date (monthly id, date)
+     */
+    static final String SQL_COUNT_EXPENSES_FOR_MONTHLY_BEFORE_DATE = "SELECT COUNT(*) FROM " + SQLiteDBHelper.TABLE_EXPENSE + " WHERE " + WHERE_EXPENSES_FOR_MONTHLY_BEFORE_DATE;
+    /**
+     * Insert an expense (id or null, title, amount, date, day, monthly id or null)
+     */
+    static final String SQL_INSERT_EXPENSE = "INSERT INTO " + SQLiteDBHelper.TABLE_EXPENSE + " ("
+        + SQLiteDBHelper.COLUMN_EXPENSE_DB_ID + ", "
+        + SQLiteDBHelper.COLUMN_EXPENSE_TITLE + ", "
+        + SQLiteDBHelper.COLUMN_EXPENSE_AMOUNT + ", "
+        + SQLiteDBHelper.COLUMN_EXPENSE_DATE + ", "
+        + SQLiteDBHelper.COLUMN_EXPENSE_DAY + ", "
+        + SQLiteDBHelper.COLUMN_EXPENSE_MONTHLY_ID + ") VALUES (?, ?, ?, ?, ?, ?)";
+    /**
+     * Monthly expense (id)
+     */
+    static final String SQL_MONTHLY_FOR_ID = "SELECT * FROM " + SQLiteDBHelper.TABLE_MONTHLY_EXPENSE + " WHERE " + WHERE_MONTHLY_FOR_ID + " LIMIT 1";
+    /**
+     * Monthly expenses with occurrences computed on the fly
+     */
+    static final String SQL_RECURRING_MONTHLY = "SELECT * FROM " + SQLiteDBHelper.TABLE_MONTHLY_EXPENSE + " WHERE " + SQLiteDBHelper.COLUMN_MONTHLY_OCCURRENCES + " > 0";
+    /**
+     * Balance at the end of a day, 0 if there's no expense until this day: totals of the months
+     * before the one of the day plus deltas of the days of its month until it (month, first day of
+     * the month, day)
+     */
+    static final String SQL_BALANCE_FOR_DAY = "SELECT COALESCE((SELECT SUM(" + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_EXPENSES + " - " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_REVENUES + ") FROM " + SQLiteDBHelper.TABLE_MONTH_SUMMARY + " WHERE " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_MONTH + " < ?), 0)"
+        + " + COALESCE((SELECT SUM(" + SQLiteDBHelper.COLUMN_DAY_BALANCE_DELTA + ") FROM " + SQLiteDBHelper.TABLE_DAY_BALANCE + " WHERE " + SQLiteDBHelper.COLUMN_DAY_BALANCE_DAY + " >= ? AND " + SQLiteDBHelper.COLUMN_DAY_BALANCE_DAY + " <= ?), 0)";
+    /**
+     * Day and delta of day balance rows of a day range, ordered by day (from, to)
+     */
+    static final String SQL_DAY_DELTAS_FOR_RANGE = "SELECT " + SQLiteDBHelper.COLUMN_DAY_BALANCE_DAY + ", " + SQLiteDBHelper.COLUMN_DAY_BALANCE_DELTA + " FROM " + SQLiteDBHelper.TABLE_DAY_BALANCE + " WHERE " + SQLiteDBHelper.COLUMN_DAY_BALANCE_DAY + " >= ? AND " + SQLiteDBHelper.COLUMN_DAY_BALANCE_DAY + " <= ? ORDER BY " + SQLiteDBHelper.COLUMN_DAY_BALANCE_DAY;
+    /**
+     * Revenues total, expenses total, revenues count and expenses count of a month (month)
+     */
+    static final String SQL_MONTH_SUMMARY = "SELECT " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_REVENUES + ", " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_EXPENSES + ", " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_REVENUES_COUNT + ", " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_EXPENSES_COUNT + " FROM " + SQLiteDBHelper.TABLE_MONTH_SUMMARY + " WHERE " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_MONTH + " = ?";
+    /**
+     * Insert a month summary row (month, revenues, expenses, revenues count, expenses count)
+     */
+    static final String SQL_INSERT_MONTH_SUMMARY = "INSERT INTO " + SQLiteDBHelper.TABLE_MONTH_SUMMARY + " ("
+        + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_MONTH + ", "
+        + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_REVENUES + ", "
+        + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_EXPENSES + ", "
+        + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_REVENUES_COUNT + ", "
+        + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_EXPENSES_COUNT + ") VALUES (?, ?, ?, ?, ?)";
+    /**
+     * Add amounts and numbers to the totals of a month (revenues, expenses, revenues count, expenses count, month)
+     */
+    static final String SQL_ADD_TO_MONTH_TOTALS = "UPDATE " + SQLiteDBHelper.TABLE_MONTH_SUMMARY + " SET "
+        + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_REVENUES + " = " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_REVENUES + " + ?, "
+        + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_EXPENSES + " = " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_EXPENSES + " + ?, "
+        + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_REVENUES_COUNT + " = " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_REVENUES_COUNT + " + ?, "
+        + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_EXPENSES_COUNT + " = " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_EXPENSES_COUNT + " + ? "
+        + "WHERE " + SQLiteDBHelper.COLUMN_MONTH_SUMMARY_MONTH + " = ?";
+    /**
+     * Insert a day balance row (day, delta)
+     */
+    static final String SQL_INSERT_DAY_BALANCE = "INSERT INTO " + SQLiteDBHelper.TABLE_DAY_BALANCE + " (" + SQLiteDBHelper.COLUMN_DAY_BALANCE_DAY + ", " + SQLiteDBHelper.COLUMN_DAY_BALANCE_DELTA + ") VALUES (?, ?)";
+    /**
+     * Add an amount to the delta of a day (amount, day)
+     */
+    static final String SQL_ADD_TO_DAY_DELTA = "UPDATE " + SQLiteDBHelper.TABLE_DAY_BALANCE + " SET " + SQLiteDBHelper.COLUMN_DAY_BALANCE_DELTA + " = " + SQLiteDBHelper.COLUMN_DAY_BALANCE_DELTA + " + ? WHERE " + SQLiteDBHelper.COLUMN_DAY_BALANCE_DAY + " = ?";
+    /**
+     * Write generation of DB
+     */
+    static final String SQL_WRITE_GENERATION = "SELECT " + SQLiteDBHelper.COLUMN_WRITE_GENERATION_GENERATION + " FROM " + SQLiteDBHelper.TABLE_WRITE_GENERATION;
+    /**
+     * Increment the write generation of DB
+     */
+    static final String SQL_INCREMENT_WRITE_GENERATION = "UPDATE " + SQLiteDBHelper.TABLE_WRITE_GENERATION + " SET " + SQLiteDBHelper.COLUMN_WRITE_GENERATION_GENERATION + " = " + SQLiteDBHelper.COLUMN_WRITE_GENERATION_GENERATION + " + 1";
+
+// -------------------------------------------->
+
+    private final SQLiteStatement countExpensesForDay;
+    private final SQLiteStatement countExpensesForMonthlyBeforeDate;
+    private final SQLiteStatement balanceForDay;
+    private final SQLiteStatement insertExpense;
+    private final SQLiteStatement insertDayBalance;
+    private final SQLiteStatement addToDayDelta;
+    private final SQLiteStatement insertMonthSummary;
+    private final SQLiteStatement addToMonthTotals;
+    private final SQLiteStatement writeGeneration;
+    private final SQLiteStatement incrementWriteGeneration;
+
+// -------------------------------------------->
+
+    /**
+     * Compile statements for the given connection
+     *
+     * @param database
+     */
+    DBStatements(@NonNull SQLiteDatabase database)
+    {
+        countExpensesForDay = database.compileStatement(SQL_COUNT_EXPENSES_FOR_DAY);
+        countExpensesForMonthlyBeforeDate = database.compileStatement(SQL_COUNT_EXPENSES_FOR_MONTHLY_BEFORE_DATE);
+        balanceForDay = database.compileStatement(SQL_BALANCE_FOR_DAY);
+        insertExpense = database.compileStatement(SQL_INSERT_EXPENSE);
+        insertDayBalance = database.compileStatement(SQL_INSERT_DAY_BALANCE);
+        addToDayDelta = database.compileStatement(SQL_ADD_TO_DAY_DELTA);
+        insertMonthSummary = database.compileStatement(SQL_INSERT_MONTH_SUMMARY);
+        addToMonthTotals = database.compileStatement(SQL_ADD_TO_MONTH_TOTALS);
+        writeGeneration = database.compileStatement(SQL_WRITE_GENERATION);
+        incrementWriteGeneration = database.compileStatement(SQL_INCREMENT_WRITE_GENERATION);
+    }
+
+    /**
+     * Release compiled statements, no call to other methods should be made after this method
+     */
+    void close()
+    {
+        try
+        {
+            countExpensesForDay.close();
+            countExpensesForMonthlyBeforeDate.close();
+            balanceForDay.close();
+            insertExpense.close();
+            insertDayBalance.close();
+            addToDayDelta.close();
+            insertMonthSummary.close();
+            addToMonthTotals.close();
+            writeGeneration.close();
+            incrementWriteGeneration.close();
+        }
+        catch (Exception e)
+        {
+            Logger.error("Error while closing SQLite statements", e);
+        }
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Build arguments of a cursor query template
+     *
+     * @param values
+     * @return
+     */
+    @NonNull
+    static String[] args(long... values)
+    {
+        String[] args = new String[values.length];
+        for(int i = 0; i < values.length; i++)
+        {
+            args[i] = String.valueOf(values[i]);
+        }
+
+        return args;
+    }
+
+    /**
+     * Number of expenses of the given day
+     *
+     * @param day local epoch day
+     * @return
+     */
+    long countExpensesForDay(int day)
+    {
+        synchronized (countExpensesForDay)
+        {
+            countExpensesForDay.bindLong(1, day);
+            return countExpensesForDay.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * Number of expenses of the given monthly expense before the given timestamp (excluded)
+     *
+     * @param monthlyId
+     * @param date
+     * @return
+     */
+    long countExpensesForMonthlyBeforeDate(long monthlyId, long date)
+    {
+        synchronized (countExpensesForMonthlyBeforeDate)
+        {
+            countExpensesForMonthlyBeforeDate.bindLong(1, monthlyId);
+            countExpensesForMonthlyBeforeDate.bindLong(2, date);
+            return countExpensesForMonthlyBeforeDate.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * Sum of all stored expenses until the end of the given day, read from month summaries and
+     * day deltas: it costs one row per month before the one of the day, plus one per day of its
+     * month with expenses
+     *
+     * @param day local epoch day
+     * @return the balance (DB value)
+     */
+    long getBalanceForDay(int day)
+    {
+        int month = DateHelper.getMonthIndexForLocalEpochDay(day);
+
+        synchronized (balanceForDay)
+        {
+            balanceForDay.bindLong(1, month);
+            balanceForDay.bindLong(2, DateHelper.getFirstLocalEpochDayOfMonth(month));
+            balanceForDay.bindLong(3, day);
+            return balanceForDay.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * Insert an expense
+     *
+     * @param id id of the expense, null to generate one
+     * @param title
+     * @param amount DB value
+     * @param date
+     * @param day local epoch day of the date
+     * @param monthlyId can be null
+     * @return the id of the inserted row, -1 on error
+     */
+    long insertExpense(@Nullable Long id, @NonNull String title, long amount, long date, int day, @Nullable Long monthlyId)
+    {
+        synchronized (insertExpense)
+        {
+            insertExpense.clearBindings();
+
+            if( id != null )
+            {
+                insertExpense.bindLong(1, id);
+            }
+
+            insertExpense.bindString(2, title);
+            insertExpense.bindLong(3, amount);
+            insertExpense.bindLong(4, date);
+            insertExpense.bindLong(5, day);
+
+            if( monthlyId != null )
+            {
+                insertExpense.bindLong(6, monthlyId);
+            }
+
+            return insertExpense.executeInsert();
+        }
+    }
+
+    /**
+     * Insert a day balance row
+     *
+     * @param day local epoch day
+     * @param delta DB value
+     */
+    void insertDayBalance(int day, long delta)
+    {
+        synchronized (insertDayBalance)
+        {
+            insertDayBalance.bindLong(1, day);
+            insertDayBalance.bindLong(2, delta);
+            insertDayBalance.executeInsert();
+        }
+    }
+
+    /**
+     * Add an amount to the delta of the given day
+     *
+     * @param day local epoch day
+     * @param amount DB value
+     * @return number of updated rows, 0 if the day has no row
+     */
+    int addToDayDelta(int day, long amount)
+    {
+        synchronized (addToDayDelta)
+        {
+            addToDayDelta.bindLong(1, amount);
+            addToDayDelta.bindLong(2, day);
+            return addToDayDelta.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Insert a month summary row
+     *
+     * @param month year * 12 + month
+     * @param revenues DB value, >= 0
+     * @param expenses DB value, >= 0
+     * @param revenuesCount
+     * @param expensesCount
+     */
+    void insertMonthSummary(int month, long revenues, long expenses, int revenuesCount, int expensesCount)
+    {
+        synchronized (insertMonthSummary)
+        {
+            insertMonthSummary.bindLong(1, month);
+            insertMonthSummary.bindLong(2, revenues);
+            insertMonthSummary.bindLong(3, expenses);
+            insertMonthSummary.bindLong(4, revenuesCount);
+            insertMonthSummary.bindLong(5, expensesCount);
+            insertMonthSummary.executeInsert();
+        }
+    }
+
+    /**
+     * Add amounts and numbers to the totals of the given month
+     *
+     * @param month year * 12 + month
+     * @param revenues DB value
+     * @param expenses DB value
+     * @param revenuesCount
+     * @param expensesCount
+     * @return number of updated rows, 0 if the month has no row
+     */
+    int addToMonthTotals(int month, long revenues, long expenses, int revenuesCount, int expensesCount)
+    {
+        synchronized (addToMonthTotals)
+        {
+            addToMonthTotals.bindLong(1, revenues);
+            addToMonthTotals.bindLong(2, expenses);
+            addToMonthTotals.bindLong(3, revenuesCount);
+            addToMonthTotals.bindLong(4, expensesCount);
+            addToMonthTotals.bindLong(5, month);
+            return addToMonthTotals.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Get the write generation of DB
+     *
+     * @return
+     */
+    long getWriteGeneration()
+    {
+        synchronized (incrementWriteGeneration)
+        {
+            return writeGeneration.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * Increment the write generation of DB
+     *
+     * @return the new generation
+     */
+    long incrementWriteGeneration()
+    {
+        synchronized (incrementWriteGeneration)
+        {
+            incrementWriteGeneration.executeUpdateDelete();
+            return writeGeneration.simpleQueryForLong();
+        }
+    }
+}
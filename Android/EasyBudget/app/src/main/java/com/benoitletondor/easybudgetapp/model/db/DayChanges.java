@@ -0,0 +1,87 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Days changed by a write into DB, with the amount added to each of them (stored expenses and
+ * computed occurrences of monthly expenses).
+ *
+ * @author Benoit LETONDOR
+ */
+final class DayChanges
+{
+    /**
+     * Amount added to each changed day (DB value), a day can be changed with a 0 amount
+     * (title edited for example)
+     */
+    private final TreeMap<Integer, Long> deltas = new TreeMap<>();
+    /**
+     * Time when the write started (see {@link DBMetrics#startTimer()})
+     */
+    private final long startTime = DBMetrics.startTimer();
+
+// -------------------------------------------->
+
+    /**
+     * Record that expenses of the given day changed
+     *
+     * @param day local epoch day
+     * @param amount amount added to the day (DB value), can be 0
+     */
+    void add(int day, long amount)
+    {
+        Long delta = deltas.get(day);
+        deltas.put(day, delta != null ? delta + amount : amount);
+    }
+
+    /**
+     * Is there any changed day
+     *
+     * @return
+     */
+    boolean isEmpty()
+    {
+        return deltas.isEmpty();
+    }
+
+    /**
+     * Get the time when the write started
+     *
+     * @return value of {@link DBMetrics#startTimer()}
+     */
+    long getStartTime()
+    {
+        return startTime;
+    }
+
+    /**
+     * Get amounts added to changed days
+     *
+     * @return amount (DB value) keyed by local epoch day, ordered by day
+     */
+    @NonNull
+    SortedMap<Integer, Long> getDeltas()
+    {
+        return Collections.unmodifiableSortedMap(deltas);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Immutable data of the consecutive days displayed by a calendar grid (6 weeks for a month), built
+ * in a single pass by {@link DB#getMonthGridModel(java.util.Date, int)} so that cells can be bound
+ * by index without any lookup.
+ *
+ * @author Benoit LETONDOR
+ */
+public final class MonthGridModel
+{
+    /**
+     * Color class of a day without expenses
+     */
+    public static final byte COLOR_NONE = 0;
+    /**
+     * Color class of a day with expenses and some money left (balance DB value not above 0)
+     */
+    public static final byte COLOR_POSITIVE = 1;
+    /**
+     * Color class of a day with expenses and more spent than earned (balance DB value above 0)
+     */
+    public static final byte COLOR_NEGATIVE = 2;
+
+    /**
+     * Local epoch day of the first cell
+     */
+    private final int firstDay;
+    /**
+     * Does the day of each cell have expenses
+     */
+    private final boolean[] hasExpenses;
+    /**
+     * End of day balance of each cell (DB value, positive when more has been spent than earned)
+     */
+    private final long[] balances;
+    /**
+     * Color class of each cell
+     */
+    private final byte[] colors;
+
+// -------------------------------------------->
+
+    /**
+     *
+     * @param firstDay local epoch day of the first cell
+     * @param hasExpenses does the day of each cell have expenses
+     * @param balances end of day balance of each cell (DB value)
+     */
+    MonthGridModel(int firstDay, @NonNull boolean[] hasExpenses, @NonNull long[] balances)
+    {
+        this.firstDay = firstDay;
+        this.hasExpenses = hasExpenses;
+        this.balances = balances;
+        this.colors = new byte[balances.length];
+
+        for(int i = 0; i < balances.length; i++)
+        {
+            colors[i] = !hasExpenses[i] ? COLOR_NONE : (balances[i] > 0 ? COLOR_NEGATIVE : COLOR_POSITIVE);
+        }
+    }
+
+    /**
+     * Get the local epoch day of the first cell
+     *
+     * @return
+     */
+    public int getFirstDay()
+    {
+        return firstDay;
+    }
+
+    /**
+     * Get the number of cells
+     *
+     * @return
+     */
+    public int getCellCount()
+    {
+        return balances.length;
+    }
+
+    /**
+     * Does the day of the given cell have expenses
+     *
+     * @param index index of the cell
+     * @return
+     */
+    public boolean hasExpenses(int index)
+    {
+        return hasExpenses[index];
+    }
+
+    /**
+     * Get the end of day balance of the given cell
+     *
+     * @param index index of the cell
+     * @return balance (DB value), positive when more has been spent than earned
+     */
+    public long getBalance(int index)
+    {
+        return balances[index];
+    }
+
+    /**
+     * Get the color class of the given cell
+     *
+     * @param index index of the cell
+     * @return {@link #COLOR_NONE}, {@link #COLOR_POSITIVE} or {@link #COLOR_NEGATIVE}
+     */
+    public byte getColor(int index)
+    {
+        return colors[index];
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *   Copyright 2016 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.support.annotation.NonNull;
+
+import com.benoitletondor.easybudgetapp.model.Expense;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Data needed to display the monthly report of a month right away: its {@link MonthSummary} and
+ * the first page of its revenues and of its expenses. Built by {@link MonthlyReportLoader}.
+ *
+ * @author Benoit LETONDOR
+ */
+public final class MonthReport
+{
+    /**
+     * Number of rows of a page of revenues or expenses
+     */
+    public static final int PAGE_SIZE = 30;
+
+    /**
+     * Totals of the month
+     */
+    @NonNull
+    private final MonthSummary summary;
+    /**
+     * First page of revenues
+     */
+    @NonNull
+    private final List<Expense> firstRevenues;
+    /**
+     * First page of expenses
+     */
+    @NonNull
+    private final List<Expense> firstExpenses;
+
+// -------------------------------------------->
+
+    /**
+     *
+     * @param summary totals of the month
+     * @param firstRevenues first page of revenues
+     * @param firstExpenses first page of expenses
+     */
+    MonthReport(@NonNull MonthSummary summary, @NonNull List<Expense> firstRevenues, @NonNull List<Expense> firstExpenses)
+    {
+        this.summary = summary;
+        this.firstRevenues = Collections.unmodifiableList(firstRevenues);
+        this.firstExpenses = Collections.unmodifiableList(firstExpenses);
+    }
+
+    /**
+     * Get the totals of the month
+     *
+     * @return
+     */
+    @NonNull
+    public MonthSummary getSummary()
+    {
+        return summary;
+    }
+
+    /**
+     * Get the first {@link #PAGE_SIZE} revenues of the month
+     *
+     * @return
+     */
+    @NonNull
+    public List<Expense> getFirstRevenues()
+    {
+        return firstRevenues;
+    }
+
+    /**
+     * Get the first {@link #PAGE_SIZE} expenses of the month
+     *
+     * @return
+     */
+    @NonNull
+    public List<Expense> getFirstExpenses()
+    {
+        return firstExpenses;
+    }
+}
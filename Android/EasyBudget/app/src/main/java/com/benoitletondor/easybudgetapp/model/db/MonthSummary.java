@@ -0,0 +1,120 @@
+/*
+ *   Copyright 2016 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+/**
+ * Immutable totals of the expenses and revenues of a month, as displayed in the monthly report
+ * header, computed by {@link DB#getMonthSummary(java.util.Date)} without loading any expense.
+ *
+ * @author Benoit LETONDOR
+ */
+public final class MonthSummary
+{
+    /**
+     * Sum of revenues (DB value, always >= 0)
+     */
+    private final long revenuesTotal;
+    /**
+     * Sum of expenses (DB value, always >= 0)
+     */
+    private final long expensesTotal;
+    /**
+     * Number of revenues
+     */
+    private final int revenuesCount;
+    /**
+     * Number of expenses
+     */
+    private final int expensesCount;
+
+// -------------------------------------------->
+
+    /**
+     *
+     * @param revenuesTotal sum of revenues (DB value, >= 0)
+     * @param expensesTotal sum of expenses (DB value, >= 0)
+     * @param revenuesCount number of revenues
+     * @param expensesCount number of expenses
+     */
+    MonthSummary(long revenuesTotal, long expensesTotal, int revenuesCount, int expensesCount)
+    {
+        this.revenuesTotal = revenuesTotal;
+        this.expensesTotal = expensesTotal;
+        this.revenuesCount = revenuesCount;
+        this.expensesCount = expensesCount;
+    }
+
+    /**
+     * Get the sum of revenues of the month
+     *
+     * @return amount, always >= 0
+     */
+    public double getRevenuesAmount()
+    {
+        return revenuesTotal / 100.d;
+    }
+
+    /**
+     * Get the sum of expenses of the month
+     *
+     * @return amount, always >= 0
+     */
+    public double getExpensesAmount()
+    {
+        return expensesTotal / 100.d;
+    }
+
+    /**
+     * Get the balance of the month: revenues minus expenses
+     *
+     * @return amount, negative if more has been spent than earned
+     */
+    public double getBalance()
+    {
+        return (revenuesTotal - expensesTotal) / 100.d;
+    }
+
+    /**
+     * Get the number of revenues of the month
+     *
+     * @return
+     */
+    public int getRevenuesCount()
+    {
+        return revenuesCount;
+    }
+
+    /**
+     * Get the number of expenses of the month
+     *
+     * @return
+     */
+    public int getExpensesCount()
+    {
+        return expensesCount;
+    }
+
+    /**
+     * Does the month have neither expenses nor revenues
+     *
+     * @return
+     */
+    public boolean isEmpty()
+    {
+        return revenuesCount == 0 && expensesCount == 0;
+    }
+}
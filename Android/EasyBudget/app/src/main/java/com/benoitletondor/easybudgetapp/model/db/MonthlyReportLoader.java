@@ -0,0 +1,386 @@
+/*
+ *   Copyright 2016 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
+import android.util.SparseIntArray;
+
+import com.benoitletondor.easybudgetapp.helper.DateHelper;
+import com.benoitletondor.easybudgetapp.helper.Logger;
+import com.benoitletondor.easybudgetapp.model.Expense;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Loader of {@link MonthReport}s for the monthly report screen. Reports are built on a shared
+ * {@link PriorityLoadExecutor}, the displayed month first, and the last ones are kept in memory so
+ * that swiping to a month next to the displayed one shows it right away.<br>
+ * <br>
+ * Cached reports of months changed by a write into DB are dropped. All methods should be called
+ * from the main thread.
+ *
+ * @author Benoit LETONDOR
+ */
+public final class MonthlyReportLoader implements DBChangeBus.OnDBChangeListener
+{
+    /**
+     * Number of reports kept in memory
+     */
+    private static final int CACHED_REPORTS = 6;
+    /**
+     * Number of threads building reports
+     */
+    private static final int LOADER_THREADS = 2;
+    /**
+     * Number of months before and after the displayed one that are prefetched
+     */
+    private static final int PREFETCH_MONTHS_AROUND_VISIBLE = 1;
+    /**
+     * Priority of loads of the displayed month
+     */
+    private static final int PRIORITY_VISIBLE = 0;
+    /**
+     * Priority of prefetches of months next to the displayed one
+     */
+    private static final int PRIORITY_PREFETCH = 1;
+
+    /**
+     * Saved application context
+     */
+    private final Context context;
+    /**
+     * Executor building reports
+     */
+    private final PriorityLoadExecutor executor = new PriorityLoadExecutor(LOADER_THREADS, "MonthlyReportLoader");
+    /**
+     * Last built reports keyed by month index (see {@link DateHelper#getMonthIndex(Date)})
+     */
+    private final LruCache<Integer, MonthReport> reports = new LruCache<>(CACHED_REPORTS);
+    /**
+     * Priority of pending loads keyed by month index
+     */
+    private final SparseIntArray pendingLoads = new SparseIntArray();
+    /**
+     * Incremented on each write into DB, to discard reports built concurrently
+     */
+    private int writeVersion = 0;
+    /**
+     * Listeners notified when a report is loaded
+     */
+    private final List<OnMonthReportLoadedListener> listeners = new ArrayList<>();
+    /**
+     * Handler to deliver reports on the main thread
+     */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+// -------------------------------------------->
+
+    /**
+     *
+     * @param context
+     */
+    private MonthlyReportLoader(@NonNull Context context)
+    {
+        this.context = context.getApplicationContext();
+
+        DBChangeBus.getInstance().addOnDBChangeListener(this);
+    }
+
+    /**
+     * Get the report of the given month if it's in memory, or load it before any prefetch and
+     * notify listeners when it's loaded
+     *
+     * @param month first day of the month
+     * @return the report, null if it's being loaded
+     */
+    @Nullable
+    public MonthReport getReport(@NonNull Date month)
+    {
+        int monthIndex = DateHelper.getMonthIndex(month);
+
+        MonthReport report = reports.get(monthIndex);
+        if( report != null )
+        {
+            return report;
+        }
+
+        load(monthIndex, PRIORITY_VISIBLE);
+        return null;
+    }
+
+    /**
+     * Load reports of months next to the given one if they're not in memory, to be called once the
+     * given month is displayed
+     *
+     * @param month first day of the displayed month
+     */
+    public void prefetchAround(@NonNull Date month)
+    {
+        int monthIndex = DateHelper.getMonthIndex(month);
+
+        for(int i = 1; i <= PREFETCH_MONTHS_AROUND_VISIBLE; i++)
+        {
+            for(int prefetchIndex : new int[]{monthIndex - i, monthIndex + i})
+            {
+                if( reports.get(prefetchIndex) == null )
+                {
+                    load(prefetchIndex, PRIORITY_PREFETCH);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a listener that will be notified on the main thread when a report is loaded
+     *
+     * @param listener
+     */
+    public void addOnMonthReportLoadedListener(@NonNull OnMonthReportLoadedListener listener)
+    {
+        if( !listeners.contains(listener) )
+        {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove a listener added with {@link #addOnMonthReportLoadedListener(OnMonthReportLoadedListener)}
+     *
+     * @param listener
+     */
+    public void removeOnMonthReportLoadedListener(@NonNull OnMonthReportLoadedListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void onDBChange(@NonNull DBChangeEvent event)
+    {
+        writeVersion++;
+
+        int fromMonth = DateHelper.getMonthIndexForLocalEpochDay(event.getFromDay());
+        int toMonth = DateHelper.getMonthIndexForLocalEpochDay(event.getToDay());
+
+        for(Integer monthIndex : reports.snapshot().keySet())
+        {
+            if( monthIndex >= fromMonth && monthIndex <= toMonth )
+            {
+                reports.remove(monthIndex);
+            }
+        }
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Load the report of the given month, or give a higher priority to its pending load
+     *
+     * @param monthIndex
+     * @param priority {@link #PRIORITY_VISIBLE} or {@link #PRIORITY_PREFETCH}
+     */
+    private void load(int monthIndex, int priority)
+    {
+        int pendingPriority = pendingLoads.get(monthIndex, -1);
+        if( pendingPriority >= 0 )
+        {
+            if( priority < pendingPriority && executor.promote(monthIndex, priority) )
+            {
+                pendingLoads.put(monthIndex, priority);
+            }
+
+            return;
+        }
+
+        pendingLoads.put(monthIndex, priority);
+        executor.execute(new LoadReportTask(monthIndex, priority, writeVersion));
+    }
+
+    /**
+     * Called on the main thread when a report has been built
+     *
+     * @param monthIndex
+     * @param version value of {@link #writeVersion} when the load started
+     * @param report
+     */
+    private void onReportLoaded(int monthIndex, int version, @NonNull MonthReport report)
+    {
+        int priority = pendingLoads.get(monthIndex);
+        pendingLoads.delete(monthIndex);
+
+        // The report may be outdated if the DB has been written while building it
+        if( version != writeVersion )
+        {
+            Logger.debug("MonthlyReportLoader: DB written while loading month: "+monthIndex);
+            load(monthIndex, priority);
+            return;
+        }
+
+        reports.put(monthIndex, report);
+
+        Date month = DateHelper.getFirstDayOfMonth(monthIndex);
+        for(OnMonthReportLoadedListener listener : new ArrayList<>(listeners))
+        {
+            listener.onMonthReportLoaded(month, report);
+        }
+    }
+
+    /**
+     * Called on the main thread when a report couldn't be built. The month isn't loading anymore so
+     * that it can be requested again with {@link #getReport(Date)}.
+     *
+     * @param monthIndex
+     */
+    private void onReportFailed(int monthIndex)
+    {
+        pendingLoads.delete(monthIndex);
+
+        Date month = DateHelper.getFirstDayOfMonth(monthIndex);
+        for(OnMonthReportLoadedListener listener : new ArrayList<>(listeners))
+        {
+            listener.onMonthReportLoadFailed(month);
+        }
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Task that builds the report of a month
+     */
+    private class LoadReportTask extends PriorityLoadExecutor.Task
+    {
+        /**
+         * Index of the month to load
+         */
+        private final int monthIndex;
+        /**
+         * Value of {@link #writeVersion} when the load has been requested
+         */
+        private final int version;
+
+        private LoadReportTask(int monthIndex, int priority, int version)
+        {
+            super(monthIndex, priority);
+
+            this.monthIndex = monthIndex;
+            this.version = version;
+        }
+
+        @Override
+        protected void doRun()
+        {
+            Date month = DateHelper.getFirstDayOfMonth(monthIndex);
+
+            final MonthReport report;
+            DB db = null;
+            try
+            {
+                db = new DB(context);
+
+                MonthSummary summary = db.getMonthSummary(month);
+
+                List<Expense> firstRevenues = summary.getRevenuesCount() > 0 ? db.getExpensesPageForMonth(month, true, 0, MonthReport.PAGE_SIZE) : Collections.<Expense>emptyList();
+                List<Expense> firstExpenses = summary.getExpensesCount() > 0 ? db.getExpensesPageForMonth(month, false, 0, MonthReport.PAGE_SIZE) : Collections.<Expense>emptyList();
+
+                report = new MonthReport(summary, firstRevenues, firstExpenses);
+            }
+            catch (Exception e)
+            {
+                Logger.error("Error while loading report of month: "+monthIndex, e);
+
+                mainHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        onReportFailed(monthIndex);
+                    }
+                });
+                return;
+            }
+            finally
+            {
+                if( db != null )
+                {
+                    db.close();
+                }
+            }
+
+            mainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    onReportLoaded(monthIndex, version, report);
+                }
+            });
+        }
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Listener notified when a report is loaded or fails to load
+     */
+    public interface OnMonthReportLoadedListener
+    {
+        /**
+         * Called on the main thread when the report of a month is loaded
+         *
+         * @param month first day of the month
+         * @param report
+         */
+        void onMonthReportLoaded(@NonNull Date month, @NonNull MonthReport report);
+
+        /**
+         * Called on the main thread when the report of a month couldn't be loaded
+         *
+         * @param month first day of the month
+         */
+        void onMonthReportLoadFailed(@NonNull Date month);
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Singleton instance
+     */
+    private static MonthlyReportLoader instance;
+
+    /**
+     * Instance accessor, should be called from the main thread
+     *
+     * @param context
+     * @return
+     */
+    public synchronized static MonthlyReportLoader getInstance(@NonNull Context context)
+    {
+        if( instance == null )
+        {
+            instance = new MonthlyReportLoader(context);
+        }
+
+        return instance;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small pool of background threads running {@link DBCache} and {@link MonthlyReportLoader} loads
+ * by priority: tasks with the lowest priority value run first, tasks with the same priority in
+ * submission order. Time spent by tasks in queue and running is measured.
+ *
+ * @author Benoit LETONDOR
+ */
+final class PriorityLoadExecutor
+{
+    /**
+     * Executor running tasks
+     */
+    private final ThreadPoolExecutor executor;
+    /**
+     * Incremented for each submitted task, to run tasks with the same priority in order
+     */
+    private final AtomicLong sequence = new AtomicLong();
+    /**
+     * Lock for metrics
+     */
+    private final Object metricsLock = new Object();
+    /**
+     * Number of tasks run
+     */
+    private long executedTasks = 0;
+    /**
+     * Total time spent by tasks in queue (ns)
+     */
+    private long totalQueueWait = 0;
+    /**
+     * Longest time spent by a task in queue (ns)
+     */
+    private long maxQueueWait = 0;
+    /**
+     * Total time spent running tasks (ns)
+     */
+    private long totalRunTime = 0;
+    /**
+     * Longest time spent running a task (ns)
+     */
+    private long maxRunTime = 0;
+
+// -------------------------------------------->
+
+    /**
+     *
+     * @param threads number of threads running tasks
+     * @param name name of threads
+     */
+    PriorityLoadExecutor(int threads, @NonNull final String name)
+    {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory()
+        {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable)
+            {
+                return new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, name + "-" + threadCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Submit a task
+     *
+     * @param task
+     */
+    void execute(@NonNull Task task)
+    {
+        task.executor = this;
+        task.sequence = sequence.incrementAndGet();
+        task.submitTime = System.nanoTime();
+
+        executor.execute(task);
+    }
+
+    /**
+     * Give a higher priority to the queued task with the given key, if any
+     *
+     * @param key key of the task
+     * @param priority new priority, only applied if it's higher than the current one
+     * @return true if a queued task has been promoted
+     */
+    boolean promote(int key, int priority)
+    {
+        for(Runnable runnable : executor.getQueue())
+        {
+            Task task = (Task) runnable;
+            if( task.key == key && task.priority > priority && executor.remove(task) )
+            {
+                task.priority = priority;
+                task.sequence = sequence.incrementAndGet();
+
+                executor.execute(task);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Get metrics of tasks run so far
+     *
+     * @return
+     */
+    @NonNull
+    DBCache.LoadMetrics getMetrics()
+    {
+        synchronized (metricsLock)
+        {
+            return new DBCache.LoadMetrics(executedTasks, executor.getQueue().size(), totalQueueWait, maxQueueWait, totalRunTime, maxRunTime);
+        }
+    }
+
+    /**
+     * Record durations of a task that has been run
+     *
+     * @param queueWait time spent in queue (ns)
+     * @param runTime time spent running (ns)
+     */
+    private void recordTask(long queueWait, long runTime)
+    {
+        synchronized (metricsLock)
+        {
+            executedTasks++;
+            totalQueueWait += queueWait;
+            maxQueueWait = Math.max(maxQueueWait, queueWait);
+            totalRunTime += runTime;
+            maxRunTime = Math.max(maxRunTime, runTime);
+        }
+    }
+
+// -------------------------------------------->
+
+    /**
+     * Task run by a {@link PriorityLoadExecutor}
+     */
+    abstract static class Task implements Runnable, Comparable<Task>
+    {
+        /**
+         * Key of the task, to find it when promoting
+         */
+        private final int key;
+        /**
+         * Priority of the task, lowest value runs first
+         */
+        private int priority;
+        /**
+         * Submission order of the task
+         */
+        private long sequence;
+        /**
+         * Time when the task has been submitted (ns)
+         */
+        private long submitTime;
+        /**
+         * Executor the task has been submitted to
+         */
+        private PriorityLoadExecutor executor;
+
+        /**
+         *
+         * @param key key of the task, to find it when promoting
+         * @param priority priority of the task, lowest value runs first
+         */
+        Task(int key, int priority)
+        {
+            this.key = key;
+            this.priority = priority;
+        }
+
+        /**
+         * Actual work of the task
+         */
+        protected abstract void doRun();
+
+        @Override
+        public final void run()
+        {
+            long startTime = System.nanoTime();
+            try
+            {
+                doRun();
+            }
+            finally
+            {
+                executor.recordTask(startTime - submitTime, System.nanoTime() - startTime);
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull Task another)
+        {
+            if( priority != another.priority )
+            {
+                return priority < another.priority ? -1 : 1;
+            }
+
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *   Copyright 2015 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.model.db;
+
+import android.support.annotation.NonNull;
+
+import com.benoitletondor.easybudgetapp.helper.CurrencyHelper;
+import com.benoitletondor.easybudgetapp.helper.DateHelper;
+import com.benoitletondor.easybudgetapp.model.Expense;
+import com.benoitletondor.easybudgetapp.model.MonthlyExpense;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Computes occurrences of monthly expenses on the fly so that they don't have to be stored in DB.
+ *
+ * @author Benoit LETONDOR
+ */
+final class RecurrenceEngine
+{
+    /**
+     * Number of milliseconds in a day
+     */
+    private static final long DAY_IN_MS = 24 * 60 * 60 * 1000L;
+
+// ------------------------------------------>
+
+    private RecurrenceEngine()
+    {
+
+    }
+
+// ------------------------------------------>
+
+    /**
+     * Get the index of the last occurrence of the monthly expense happening on or before the given day
+     * (excluded occurrences are taken into account).
+     *
+     * @param monthlyExpense
+     * @param day local epoch day
+     * @return the index of the occurrence, -1 if no occurrence happens on or before this day
+     */
+    static int getLastOccurrenceIndexForDay(@NonNull MonthlyExpense monthlyExpense, int day)
+    {
+        if( monthlyExpense.getOccurrences() <= 0 )
+        {
+            return -1;
+        }
+
+        Calendar start = Calendar.getInstance();
+        start.setTime(monthlyExpense.getRecurringDate());
+
+        // Fields of a local epoch day are the one of a GMT calendar
+        Calendar target = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        target.setTimeInMillis(day * DAY_IN_MS);
+
+        int index = (target.get(Calendar.YEAR) - start.get(Calendar.YEAR)) * 12 + target.get(Calendar.MONTH) - start.get(Calendar.MONTH);
+        if( index < 0 )
+        {
+            return -1;
+        }
+
+        if( DateHelper.getLocalEpochDay(monthlyExpense.getOccurrenceDate(index)) > day )
+        {
+            index--;
+        }
+
+        return Math.min(index, monthlyExpense.getOccurrences() - 1);
+    }
+
+    /**
+     * Get the number of occurrences of the monthly expense happening on or before the given day.
+     *
+     * @param monthlyExpense
+     * @param day local epoch day
+     * @return number of occurrences, excluded ones are not counted
+     */
+    static int getNumberOfOccurrencesUntilDay(@NonNull MonthlyExpense monthlyExpense, int day)
+    {
+        int lastIndex = getLastOccurrenceIndexForDay(monthlyExpense, day);
+        if( lastIndex < 0 )
+        {
+            return 0;
+        }
+
+        return lastIndex + 1 - monthlyExpense.getExcludedOccurrences().headSet(lastIndex + 1).size();
+    }
+
+    /**
+     * Get the sum of all occurrences of the given monthly expenses happening on or before the given day.
+     *
+     * @param monthlyExpenses
+     * @param day local epoch day
+     * @return the sum (DB value)
+     */
+    static long getAmountUntilDay(@NonNull List<MonthlyExpense> monthlyExpenses, int day)
+    {
+        long amount = 0;
+        for(MonthlyExpense monthlyExpense : monthlyExpenses)
+        {
+            int occurrences = getNumberOfOccurrencesUntilDay(monthlyExpense, day);
+            if( occurrences > 0 )
+            {
+                amount += (long) occurrences * CurrencyHelper.getDBValueForDouble(monthlyExpense.getAmount());
+            }
+        }
+
+        return amount;
+    }
+
+    /**
+     * Get all occurrences of the given monthly expenses happening between the given days, ordered by date.
+     *
+     * @param monthlyExpenses
+     * @param fromDay first local epoch day (included)
+     * @param toDay last local epoch day (included)
+     * @return list of expenses, not stored in DB
+     */
+    @NonNull
+    static List<Expense> getOccurrencesForDays(@NonNull List<MonthlyExpense> monthlyExpenses, int fromDay, int toDay)
+    {
+        List<Expense> occurrences = new ArrayList<>();
+
+        for(MonthlyExpense monthlyExpense : monthlyExpenses)
+        {
+            int firstIndex = getLastOccurrenceIndexForDay(monthlyExpense, fromDay - 1) + 1;
+            int lastIndex = getLastOccurrenceIndexForDay(monthlyExpense, toDay);
+
+            for(int index = firstIndex; index <= lastIndex; index++)
+            {
+                if( !monthlyExpense.isOccurrenceExcluded(index) )
+                {
+                    occurrences.add(new Expense(monthlyExpense, index));
+                }
+            }
+        }
+
+        if( monthlyExpenses.size() > 1 )
+        {
+            DB.sortExpensesByDate(occurrences);
+        }
+
+        return occurrences;
+    }
+
+    /**
+     * Does one of the given monthly expenses have an occurrence between the given days
+     *
+     * @param monthlyExpenses
+     * @param fromDay first local epoch day (included)
+     * @param toDay last local epoch day (included)
+     * @return
+     */
+    static boolean hasOccurrencesForDays(@NonNull List<MonthlyExpense> monthlyExpenses, int fromDay, int toDay)
+    {
+        for(MonthlyExpense monthlyExpense : monthlyExpenses)
+        {
+            if( getNumberOfOccurrencesUntilDay(monthlyExpense, toDay) - getNumberOfOccurrencesUntilDay(monthlyExpense, fromDay - 1) > 0 )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
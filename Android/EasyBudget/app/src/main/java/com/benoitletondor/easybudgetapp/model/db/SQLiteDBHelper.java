@@ -16,10 +16,17 @@
 
 package com.benoitletondor.easybudgetapp.model.db;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import com.benoitletondor.easybudgetapp.helper.DateHelper;
+import com.benoitletondor.easybudgetapp.helper.Logger;
 
 /**
  * @author Benoit LETONDOR
@@ -31,6 +38,7 @@ public final class SQLiteDBHelper extends SQLiteOpenHelper
     protected static final String COLUMN_EXPENSE_TITLE      = "title";
     protected static final String COLUMN_EXPENSE_AMOUNT     = "amount";
     protected static final String COLUMN_EXPENSE_DATE       = "date";
+    protected static final String COLUMN_EXPENSE_DAY        = "day";
     protected static final String COLUMN_EXPENSE_MONTHLY_ID = "monthly_id";
 
     protected static final String TABLE_MONTHLY_EXPENSE         = "monthlyexpense";
@@ -39,17 +47,44 @@ public final class SQLiteDBHelper extends SQLiteOpenHelper
     protected static final String COLUMN_MONTHLY_AMOUNT         = "amount";
     protected static final String COLUMN_MONTHLY_RECURRING_DATE = "recurringDate";
     protected static final String COLUMN_MONTHLY_MODIFIED       = "modified";
+    protected static final String COLUMN_MONTHLY_OCCURRENCES    = "occurrences";
+    protected static final String COLUMN_MONTHLY_EXCLUDED       = "excluded";
+
+    protected static final String TABLE_DAY_BALANCE          = "daybalance";
+    protected static final String COLUMN_DAY_BALANCE_DAY     = "day";
+    protected static final String COLUMN_DAY_BALANCE_DELTA   = "delta";
+
+    protected static final String TABLE_MONTH_SUMMARY                 = "month_summary";
+    protected static final String COLUMN_MONTH_SUMMARY_MONTH          = "month";
+    protected static final String COLUMN_MONTH_SUMMARY_REVENUES       = "revenues";
+    protected static final String COLUMN_MONTH_SUMMARY_EXPENSES       = "expenses";
+    protected static final String COLUMN_MONTH_SUMMARY_REVENUES_COUNT = "revenues_count";
+    protected static final String COLUMN_MONTH_SUMMARY_EXPENSES_COUNT = "expenses_count";
+
+    protected static final String TABLE_WRITE_GENERATION             = "write_generation";
+    protected static final String COLUMN_WRITE_GENERATION_GENERATION = "generation";
 
 // -------------------------------------------->
 
     private static final String DATABASE_NAME    = "easybudget.db";
-    private static final int    DATABASE_VERSION = 2;
+    private static final int    DATABASE_VERSION = 7;
 
 // -------------------------------------------->
 
     public SQLiteDBHelper(@NonNull Context context)
     {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, false);
+    }
+
+    /**
+     *
+     * @param context
+     * @param inMemory true to open an empty in-memory DB instead of the application one (<b>for test purpose</b>)
+     */
+    @VisibleForTesting
+    SQLiteDBHelper(@NonNull Context context, boolean inMemory)
+    {
+        super(context, inMemory ? null : DATABASE_NAME, null, DATABASE_VERSION);
     }
 
     @Override
@@ -61,9 +96,8 @@ public final class SQLiteDBHelper extends SQLiteOpenHelper
             + COLUMN_EXPENSE_TITLE + " text not null, "
             + COLUMN_EXPENSE_AMOUNT + " integer not null, "
             + COLUMN_EXPENSE_DATE + " integer not null, "
-            + COLUMN_EXPENSE_MONTHLY_ID + " integer null );");
-
-        database.execSQL("CREATE INDEX D_i on "+ TABLE_EXPENSE +"("+ COLUMN_EXPENSE_DATE +");");
+            + COLUMN_EXPENSE_MONTHLY_ID + " integer null, "
+            + COLUMN_EXPENSE_DAY + " integer not null default 0 );");
 
         database.execSQL("create table "
             + TABLE_MONTHLY_EXPENSE + "("
@@ -71,7 +105,15 @@ public final class SQLiteDBHelper extends SQLiteOpenHelper
             + COLUMN_MONTHLY_TITLE + " text not null, "
             + COLUMN_MONTHLY_AMOUNT + " integer not null, "
             + COLUMN_MONTHLY_MODIFIED + " integer not null, "
-            + COLUMN_MONTHLY_RECURRING_DATE + " integer not null);");
+            + COLUMN_MONTHLY_RECURRING_DATE + " integer not null, "
+            + COLUMN_MONTHLY_OCCURRENCES + " integer not null default 0, "
+            + COLUMN_MONTHLY_EXCLUDED + " text null);");
+
+        createDayBalanceTable(database);
+        createMonthSummaryTable(database);
+        createWriteGenerationTable(database);
+        createIndexes(database);
+        createExpenseDayIndex(database);
     }
 
 	@Override
@@ -82,5 +124,240 @@ public final class SQLiteDBHelper extends SQLiteOpenHelper
             database.execSQL("UPDATE "+TABLE_EXPENSE+" SET "+COLUMN_EXPENSE_AMOUNT+" = "+COLUMN_EXPENSE_AMOUNT+" * 100");
             database.execSQL("UPDATE "+TABLE_MONTHLY_EXPENSE+" SET "+COLUMN_MONTHLY_AMOUNT+" = "+COLUMN_MONTHLY_AMOUNT+" * 100");
         }
+
+        if( oldVersion<3 )
+        {
+            createDayBalanceTable(database);
+            fillDayBalanceTable(database);
+        }
+
+        if( oldVersion<4 )
+        {
+            // Existing monthly expenses keep their stored expenses and have no computed occurrences
+            database.execSQL("ALTER TABLE "+TABLE_MONTHLY_EXPENSE+" ADD COLUMN "+COLUMN_MONTHLY_OCCURRENCES+" integer not null default 0");
+            database.execSQL("ALTER TABLE "+TABLE_MONTHLY_EXPENSE+" ADD COLUMN "+COLUMN_MONTHLY_EXCLUDED+" text null");
+        }
+
+        if( oldVersion<5 )
+        {
+            long start = System.currentTimeMillis();
+
+            // Indexes on monthly id and date of expenses (MD_i) and on occurrences of monthly
+            // expenses (MO_i). Day lookups use the day index of version 6 instead of the D_i one.
+            database.execSQL("DROP INDEX IF EXISTS D_i");
+            createIndexes(database);
+
+            Logger.debug("SQLiteDBHelper: indexes created in "+(System.currentTimeMillis() - start)+"ms");
+        }
+
+        if( oldVersion<6 )
+        {
+            long start = System.currentTimeMillis();
+
+            database.execSQL("ALTER TABLE "+TABLE_EXPENSE+" ADD COLUMN "+COLUMN_EXPENSE_DAY+" integer not null default 0");
+            fillExpenseDayColumn(database);
+
+            // Day lookups don't use the date anymore: the date index of version 5 (which replaced
+            // the D_i one) is replaced by the day index, so createIndexes doesn't create it anymore
+            database.execSQL("DROP INDEX IF EXISTS DA_i");
+            createExpenseDayIndex(database);
+
+            Logger.debug("SQLiteDBHelper: expense days computed in "+(System.currentTimeMillis() - start)+"ms");
+        }
+
+        if( oldVersion<7 )
+        {
+            long start = System.currentTimeMillis();
+
+            createMonthSummaryTable(database);
+            fillMonthSummaryTable(database);
+            createWriteGenerationTable(database);
+
+            Logger.debug("SQLiteDBHelper: month summaries computed in "+(System.currentTimeMillis() - start)+"ms");
+        }
 	}
+
+// -------------------------------------------->
+
+    /**
+     * Create the table that contains, for each day with expenses, the sum of the expenses of the day
+     * (delta). Balances are derived from it and from month summaries, so that a write only updates
+     * the row of its day.
+     *
+     * @param database
+     */
+    private static void createDayBalanceTable(@NonNull SQLiteDatabase database)
+    {
+        database.execSQL("create table "
+            + TABLE_DAY_BALANCE + "("
+            + COLUMN_DAY_BALANCE_DAY + " integer primary key, "
+            + COLUMN_DAY_BALANCE_DELTA + " integer not null);");
+    }
+
+    /**
+     * Create the table that contains, for each month with expenses (year * 12 + month), the sums
+     * and numbers of its revenues and expenses.
+     *
+     * @param database
+     */
+    private static void createMonthSummaryTable(@NonNull SQLiteDatabase database)
+    {
+        database.execSQL("create table "
+            + TABLE_MONTH_SUMMARY + "("
+            + COLUMN_MONTH_SUMMARY_MONTH + " integer primary key, "
+            + COLUMN_MONTH_SUMMARY_REVENUES + " integer not null, "
+            + COLUMN_MONTH_SUMMARY_EXPENSES + " integer not null, "
+            + COLUMN_MONTH_SUMMARY_REVENUES_COUNT + " integer not null, "
+            + COLUMN_MONTH_SUMMARY_EXPENSES_COUNT + " integer not null);");
+    }
+
+    /**
+     * Create the table that contains a single row with the number of writes into DB (generation),
+     * used to check that the {@link BalanceSnapshot} is up to date.
+     *
+     * @param database
+     */
+    private static void createWriteGenerationTable(@NonNull SQLiteDatabase database)
+    {
+        database.execSQL("create table "
+            + TABLE_WRITE_GENERATION + "("
+            + COLUMN_WRITE_GENERATION_GENERATION + " integer not null);");
+
+        database.execSQL("INSERT INTO " + TABLE_WRITE_GENERATION + " VALUES (0)");
+    }
+
+    /**
+     * Create indexes used by queries of {@link DBStatements}:<br>
+     * - monthly id and date of expenses, for queries on expenses of a monthly expense<br>
+     * - occurrences of monthly expenses, to find the ones computed on the fly
+     *
+     * @param database
+     */
+    private static void createIndexes(@NonNull SQLiteDatabase database)
+    {
+        database.execSQL("CREATE INDEX MD_i on "+ TABLE_EXPENSE +"("+ COLUMN_EXPENSE_MONTHLY_ID +", "+ COLUMN_EXPENSE_DATE +");");
+        database.execSQL("CREATE INDEX MO_i on "+ TABLE_MONTHLY_EXPENSE +"("+ COLUMN_MONTHLY_OCCURRENCES +");");
+    }
+
+    /**
+     * Create the index on day, date and amount of expenses, used by day and day range lookups of
+     * {@link DBStatements}: it gives expenses ordered by date and covers balance computations.
+     *
+     * @param database
+     */
+    private static void createExpenseDayIndex(@NonNull SQLiteDatabase database)
+    {
+        database.execSQL("CREATE INDEX DDA_i on "+ TABLE_EXPENSE +"("+ COLUMN_EXPENSE_DAY +", "+ COLUMN_EXPENSE_DATE +", "+ COLUMN_EXPENSE_AMOUNT +");");
+    }
+
+    /**
+     * Store the local epoch day of each expense already in DB, computed from its date.
+     *
+     * @param database
+     */
+    private static void fillExpenseDayColumn(@NonNull SQLiteDatabase database)
+    {
+        SQLiteStatement update = database.compileStatement("UPDATE " + TABLE_EXPENSE + " SET " + COLUMN_EXPENSE_DAY + " = ? WHERE " + COLUMN_EXPENSE_DB_ID + " = ?");
+
+        Cursor cursor = null;
+        try
+        {
+            cursor = database.rawQuery("SELECT " + COLUMN_EXPENSE_DB_ID + ", " + COLUMN_EXPENSE_DATE + " FROM " + TABLE_EXPENSE, null);
+            while( cursor.moveToNext() )
+            {
+                update.bindLong(1, DateHelper.getLocalEpochDay(cursor.getLong(1)));
+                update.bindLong(2, cursor.getLong(0));
+                update.executeUpdateDelete();
+            }
+        }
+        finally
+        {
+            if( cursor != null )
+            {
+                cursor.close();
+            }
+
+            update.close();
+        }
+    }
+
+    /**
+     * Compute the content of the day balance table from all expenses stored in DB.
+     *
+     * @param database
+     */
+    private static void fillDayBalanceTable(@NonNull SQLiteDatabase database)
+    {
+        Cursor cursor = null;
+        try
+        {
+            cursor = database.rawQuery("SELECT " + COLUMN_EXPENSE_DATE + ", " + COLUMN_EXPENSE_AMOUNT + " FROM " + TABLE_EXPENSE + " ORDER BY " + COLUMN_EXPENSE_DATE, null);
+
+            Integer currentDay = null;
+            long delta = 0;
+
+            while( cursor.moveToNext() )
+            {
+                int day = DateHelper.getLocalEpochDay(cursor.getLong(0));
+                long amount = cursor.getLong(1);
+
+                if( currentDay != null && currentDay != day )
+                {
+                    insertDayBalance(database, currentDay, delta);
+                    delta = 0;
+                }
+
+                currentDay = day;
+                delta += amount;
+            }
+
+            if( currentDay != null )
+            {
+                insertDayBalance(database, currentDay, delta);
+            }
+        }
+        finally
+        {
+            if( cursor != null )
+            {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Compute the content of the month summary table from all expenses stored in DB. The month of
+     * an expense is the one of its local epoch day.
+     *
+     * @param database
+     */
+    private static void fillMonthSummaryTable(@NonNull SQLiteDatabase database)
+    {
+        String dayDate = COLUMN_EXPENSE_DAY + " * 86400, 'unixepoch'";
+        String month = "CAST(strftime('%Y', " + dayDate + ") AS INTEGER) * 12 + CAST(strftime('%m', " + dayDate + ") AS INTEGER) - 1";
+
+        database.execSQL("INSERT INTO " + TABLE_MONTH_SUMMARY + " SELECT "
+            + month + " AS m, "
+            + "SUM(CASE WHEN " + COLUMN_EXPENSE_AMOUNT + " < 0 THEN -" + COLUMN_EXPENSE_AMOUNT + " ELSE 0 END), "
+            + "SUM(CASE WHEN " + COLUMN_EXPENSE_AMOUNT + " < 0 THEN 0 ELSE " + COLUMN_EXPENSE_AMOUNT + " END), "
+            + "SUM(CASE WHEN " + COLUMN_EXPENSE_AMOUNT + " < 0 THEN 1 ELSE 0 END), "
+            + "SUM(CASE WHEN " + COLUMN_EXPENSE_AMOUNT + " < 0 THEN 0 ELSE 1 END) "
+            + "FROM " + TABLE_EXPENSE + " GROUP BY m");
+    }
+
+    /**
+     * Insert a row into the day balance table
+     *
+     * @param database
+     * @param day local epoch day
+     * @param delta sum of the expenses of the day
+     */
+    private static void insertDayBalance(@NonNull SQLiteDatabase database, int day, long delta)
+    {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_DAY_BALANCE_DAY, day);
+        values.put(COLUMN_DAY_BALANCE_DELTA, delta);
+
+        database.insert(TABLE_DAY_BALANCE, null, values);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,237 @@
+/*
+ *   Copyright 2016 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.benoitletondor.easybudgetapp.notif;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+import android.support.v4.content.ContextCompat;
+
+import com.benoitletondor.easybudgetapp.EasyBudget;
+import com.benoitletondor.easybudgetapp.R;
+import com.benoitletondor.easybudgetapp.helper.CurrencyHelper;
+import com.benoitletondor.easybudgetapp.helper.DateHelper;
+import com.benoitletondor.easybudgetapp.helper.ParameterKeys;
+import com.benoitletondor.easybudgetapp.helper.Parameters;
+import com.benoitletondor.easybudgetapp.model.db.DBCache;
+import com.benoitletondor.easybudgetapp.view.MainActivity;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Helper to warn the user, with a notification, of the first upcoming day the balance drops below
+ * the low money warning amount. The check runs after each write into DB: the day is looked up once
+ * on the loader executor of {@link DBCache}, in the in-memory balance index, and published to
+ * {@link OnLowBalanceDayListener}s such as the banner of the main screen.
+ *
+ * @author Benoit LETONDOR
+ */
+public final class LowBalanceWarningNotif
+{
+    /**
+     * Id of the low balance notification
+     */
+    public final static int NOTIFICATION_ID = 10045;
+
+    /**
+     * Value of {@link ParameterKeys#LOW_MONEY_WARNING_NOTIFIED_DAY} when no low balance has been notified
+     */
+    private final static int NO_NOTIFIED_DAY = -1;
+
+    /**
+     * Listeners notified of the first low balance day after each check
+     */
+    private final static List<OnLowBalanceDayListener> listeners = new ArrayList<>();
+    /**
+     * Incremented on each check, to ignore results of checks started before the last one
+     */
+    private static int checkCount = 0;
+
+// -------------------------------------->
+
+    private LowBalanceWarningNotif()
+    {
+
+    }
+
+    /**
+     * Look for the first low balance day in background, then notify the user if it changed since
+     * the last notification, or remove the notification if there's no low balance day anymore, and
+     * notify listeners. Should be called from the main thread.
+     *
+     * @param context non null context
+     */
+    public static void check(@NonNull Context context)
+    {
+        final Context appContext = context.getApplicationContext();
+        final int check = ++checkCount;
+
+        DBCache.getInstance(appContext).loadFirstDayWithBalanceBelow(getWarningAmount(appContext), new DBCache.OnFirstDayWithBalanceBelowLoadedListener()
+        {
+            @Override
+            public void onFirstDayWithBalanceBelowLoaded(@Nullable Date day)
+            {
+                // Ignore outdated results: another check has been started since
+                if( check != checkCount )
+                {
+                    return;
+                }
+
+                updateNotif(appContext, day);
+
+                for(OnLowBalanceDayListener listener : new ArrayList<>(listeners))
+                {
+                    listener.onLowBalanceDay(day);
+                }
+            }
+        });
+    }
+
+    /**
+     * Add a listener that will be notified on the main thread after each check.
+     * Should be called from the main thread.
+     *
+     * @param listener
+     */
+    public static void addOnLowBalanceDayListener(@NonNull OnLowBalanceDayListener listener)
+    {
+        if( !listeners.contains(listener) )
+        {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove a listener added with {@link #addOnLowBalanceDayListener(OnLowBalanceDayListener)}.
+     * Should be called from the main thread.
+     *
+     * @param listener
+     */
+    public static void removeOnLowBalanceDayListener(@NonNull OnLowBalanceDayListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Get the text telling the user the balance will drop below the warning amount on the given day
+     *
+     * @param context non null context
+     * @param lowBalanceDay first low balance day
+     * @param stringRes format of the text, taking the amount and the day
+     * @return the formatted text
+     */
+    @NonNull
+    public static String getWarningText(@NonNull Context context, @NonNull Date lowBalanceDay, int stringRes)
+    {
+        SimpleDateFormat format = new SimpleDateFormat(context.getResources().getString(R.string.low_balance_warning_date_format), Locale.getDefault());
+
+        return context.getResources().getString(stringRes, CurrencyHelper.getFormattedCurrencyString(context, getWarningAmount(context)), format.format(lowBalanceDay));
+    }
+
+// -------------------------------------->
+
+    /**
+     * Show, update or remove the notification for the given low balance day
+     *
+     * @param context non null context
+     * @param lowBalanceDay first low balance day, null if none
+     */
+    private static void updateNotif(@NonNull Context context, @Nullable Date lowBalanceDay)
+    {
+        Parameters parameters = Parameters.getInstance(context);
+        int notifiedDay = parameters.getInt(ParameterKeys.LOW_MONEY_WARNING_NOTIFIED_DAY, NO_NOTIFIED_DAY);
+
+        if( lowBalanceDay == null )
+        {
+            if( notifiedDay != NO_NOTIFIED_DAY )
+            {
+                NotificationManagerCompat.from(context).cancel(NOTIFICATION_ID);
+                parameters.putInt(ParameterKeys.LOW_MONEY_WARNING_NOTIFIED_DAY, NO_NOTIFIED_DAY);
+            }
+
+            return;
+        }
+
+        int day = DateHelper.getLocalEpochDay(lowBalanceDay);
+        if( day != notifiedDay )
+        {
+            showNotif(context, lowBalanceDay);
+            parameters.putInt(ParameterKeys.LOW_MONEY_WARNING_NOTIFIED_DAY, day);
+        }
+    }
+
+    /**
+     * Show the low balance notification
+     *
+     * @param context non null context
+     * @param lowBalanceDay first low balance day
+     */
+    private static void showNotif(@NonNull Context context, @NonNull Date lowBalanceDay)
+    {
+        Intent notificationIntent = new Intent(context, MainActivity.class);
+        notificationIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+
+        PendingIntent intent = PendingIntent.getActivity(context, 0, notificationIntent, PendingIntent.FLAG_CANCEL_CURRENT);
+
+        String text = getWarningText(context, lowBalanceDay, R.string.low_balance_warning_notif_text);
+
+        NotificationCompat.Builder notifBuilder = new NotificationCompat.Builder(context)
+            .setSmallIcon(R.drawable.ic_push)
+            .setContentTitle(context.getResources().getString(R.string.app_name))
+            .setContentText(text)
+            .setStyle(new NotificationCompat.BigTextStyle().bigText(text))
+            .setContentIntent(intent)
+            .setAutoCancel(true)
+            .setColor(ContextCompat.getColor(context, R.color.budget_orange));
+
+        NotificationManagerCompat.from(context).notify(NOTIFICATION_ID, notifBuilder.build());
+    }
+
+    /**
+     * Get the low money warning amount set by the user
+     *
+     * @param context non null context
+     * @return the warning amount, in the user currency
+     */
+    private static int getWarningAmount(@NonNull Context context)
+    {
+        return Parameters.getInstance(context).getInt(ParameterKeys.LOW_MONEY_WARNING_AMOUNT, EasyBudget.DEFAULT_LOW_MONEY_WARNING_AMOUNT);
+    }
+
+// -------------------------------------->
+
+    /**
+     * Listener notified of the first low balance day
+     */
+    public interface OnLowBalanceDayListener
+    {
+        /**
+         * Called on the main thread after each check
+         *
+         * @param day first low balance day, null if the balance stays above the warning amount
+         */
+        void onLowBalanceDay(@Nullable Date day);
+    }
+}
@@ -56,13 +56,18 @@ import com.benoitletondor.easybudgetapp.R;
 import com.benoitletondor.easybudgetapp.helper.Logger;
 import com.benoitletondor.easybudgetapp.helper.UIHelper;
 import com.benoitletondor.easybudgetapp.helper.CurrencyHelper;
+import com.benoitletondor.easybudgetapp.helper.DateHelper;
 import com.benoitletondor.easybudgetapp.helper.ParameterKeys;
 import com.benoitletondor.easybudgetapp.helper.Parameters;
 import com.benoitletondor.easybudgetapp.helper.UserHelper;
 import com.benoitletondor.easybudgetapp.model.Expense;
 import com.benoitletondor.easybudgetapp.model.MonthlyExpense;
 import com.benoitletondor.easybudgetapp.model.MonthlyExpenseDeleteType;
+import com.benoitletondor.easybudgetapp.model.db.DB;
 import com.benoitletondor.easybudgetapp.model.db.DBCache;
+import com.benoitletondor.easybudgetapp.model.db.DBChangeBus;
+import com.benoitletondor.easybudgetapp.model.db.DBChangeEvent;
+import com.benoitletondor.easybudgetapp.notif.LowBalanceWarningNotif;
 import com.benoitletondor.easybudgetapp.view.main.calendar.CalendarFragment;
 import com.benoitletondor.easybudgetapp.view.main.ExpensesRecyclerViewAdapter;
 import com.benoitletondor.easybudgetapp.view.selectcurrency.SelectCurrencyFragment;
@@ -109,6 +114,9 @@ public class MainActivity extends DBActivity
     private static final String RECYCLE_VIEW_SAVED_DATE = "recycleViewSavedDate";
 
     private BroadcastReceiver receiver;
+    private DBCache.OnMonthCachedListener monthCachedListener;
+    private DBChangeBus.OnDBChangeListener dbChangeListener;
+    private LowBalanceWarningNotif.OnLowBalanceDayListener lowBalanceDayListener;
 
     private CalendarFragment            calendarFragment;
     private ExpensesRecyclerViewAdapter expensesViewAdapter;
@@ -121,6 +129,12 @@ public class MainActivity extends DBActivity
     private TextView budgetLine;
     private TextView budgetLineAmount;
     private View budgetLineContainer;
+    private TextView lowBalanceBanner;
+    /**
+     * First upcoming day the balance drops below the low money warning amount, null if none
+     */
+    @Nullable
+    private Date lowBalanceDay;
     @Nullable
     private Date lastStopDate;
 
@@ -148,6 +162,18 @@ public class MainActivity extends DBActivity
         budgetLine = (TextView) findViewById(R.id.budgetLine);
         budgetLineAmount = (TextView) findViewById(R.id.budgetLineAmount);
         budgetLineContainer = findViewById(R.id.budgetLineContainer);
+        lowBalanceBanner = (TextView) findViewById(R.id.lowBalanceBanner);
+        lowBalanceBanner.setOnClickListener(new View.OnClickListener()
+        {
+            @Override
+            public void onClick(View v)
+            {
+                if( lowBalanceDay != null )
+                {
+                    refreshAllForDate(lowBalanceDay);
+                }
+            }
+        });
         coordinatorLayout = (CoordinatorLayout) findViewById(R.id.coordinatorLayout);
         recyclerViewPlaceholder = findViewById(R.id.emptyExpensesRecyclerViewPlaceholder);
 
@@ -173,10 +199,6 @@ public class MainActivity extends DBActivity
 
                     if( db.deleteExpense(expense) )
                     {
-                        final int position = expensesViewAdapter.removeExpense(expense);
-                        updateBalanceDisplayForDay(expensesViewAdapter.getDate());
-                        calendarFragment.refreshView();
-
                         Snackbar snackbar = Snackbar.make(coordinatorLayout, expense.isRevenue() ? R.string.income_delete_snackbar_text : R.string.expense_delete_snackbar_text, Snackbar.LENGTH_LONG);
                         snackbar.setAction(R.string.undo, new View.OnClickListener()
                         {
@@ -184,14 +206,6 @@ public class MainActivity extends DBActivity
                             public void onClick(View v)
                             {
                                 db.persistExpense(expense, true);
-
-                                if( calendarFragment.getSelectedDate().equals(expense.getDate()) )
-                                {
-                                    expensesViewAdapter.addExpense(expense, position);
-                                }
-
-                                updateBalanceDisplayForDay(calendarFragment.getSelectedDate());
-                                calendarFragment.refreshView();
                             }
                         });
                         snackbar.setActionTextColor(ContextCompat.getColor(MainActivity.this, R.color.snackbar_action_undo));
@@ -280,6 +294,52 @@ public class MainActivity extends DBActivity
 
         LocalBroadcastManager.getInstance(getApplicationContext()).registerReceiver(receiver, filter);
 
+        // Redraw the calendar with cached data once a month is loaded
+        monthCachedListener = new DBCache.OnMonthCachedListener()
+        {
+            @Override
+            public void onMonthCached(@NonNull Date month)
+            {
+                if( calendarFragment != null )
+                {
+                    calendarFragment.refreshView();
+                }
+            }
+        };
+        DBCache.getInstance(this).addOnMonthCachedListener(monthCachedListener);
+
+        // Update only what changed after each write into DB
+        dbChangeListener = new DBChangeBus.OnDBChangeListener()
+        {
+            @Override
+            public void onDBChange(@NonNull DBChangeEvent event)
+            {
+                if( expensesViewAdapter.onDBChange(event, db) )
+                {
+                    updateRecyclerViewVisibility();
+                }
+
+                if( event.isDayChanged(DateHelper.getLocalEpochDay(expensesViewAdapter.getDate())) )
+                {
+                    updateBalanceDisplayForDay(expensesViewAdapter.getDate());
+                }
+
+                calendarFragment.refreshDays(event);
+            }
+        };
+        DBChangeBus.getInstance().addOnDBChangeListener(dbChangeListener);
+
+        // The low balance day is looked for after each write into DB, see EasyBudget
+        lowBalanceDayListener = new LowBalanceWarningNotif.OnLowBalanceDayListener()
+        {
+            @Override
+            public void onLowBalanceDay(@Nullable Date day)
+            {
+                showLowBalanceBanner(day);
+            }
+        };
+        LowBalanceWarningNotif.addOnLowBalanceDayListener(lowBalanceDayListener);
+
         openSettingsIfNeeded(getIntent());
         openMonthlyReportIfNeeded(getIntent());
         openPremiumIfNeeded(getIntent());
@@ -306,6 +366,9 @@ public class MainActivity extends DBActivity
 
             lastStopDate = null;
         }
+
+        // Warning amount may have been changed in settings
+        LowBalanceWarningNotif.check(this);
     }
 
     @Override
@@ -320,6 +383,9 @@ public class MainActivity extends DBActivity
     protected void onDestroy()
     {
         LocalBroadcastManager.getInstance(getApplicationContext()).unregisterReceiver(receiver);
+        DBCache.getInstance(this).removeOnMonthCachedListener(monthCachedListener);
+        DBChangeBus.getInstance().removeOnDBChangeListener(dbChangeListener);
+        LowBalanceWarningNotif.removeOnLowBalanceDayListener(lowBalanceDayListener);
 
         super.onDestroy();
     }
@@ -345,14 +411,8 @@ public class MainActivity extends DBActivity
     {
         super.onActivityResult(requestCode, resultCode, data);
 
-        if( requestCode == ADD_EXPENSE_ACTIVITY_CODE || requestCode == MANAGE_MONTHLY_EXPENSE_ACTIVITY_CODE )
-        {
-            if( resultCode == RESULT_OK )
-            {
-                refreshAllForDate(calendarFragment.getSelectedDate());
-            }
-        }
-        else if( requestCode == WELCOME_SCREEN_ACTIVITY_CODE )
+        // Expenses added or edited (ADD_EXPENSE_ACTIVITY_CODE and MANAGE_MONTHLY_EXPENSE_ACTIVITY_CODE) are handled by dbChangeListener
+        if( requestCode == WELCOME_SCREEN_ACTIVITY_CODE )
         {
             if( resultCode == RESULT_OK )
             {
@@ -582,8 +642,6 @@ public class MainActivity extends DBActivity
                                 {
                                     persistedExpense.setAmount(persistedExpense.getAmount() + diff);
                                     db.persistExpense(persistedExpense);
-
-                                    refreshAllForDate(expensesViewAdapter.getDate());
                                 }
                             };
                         }
@@ -599,13 +657,10 @@ public class MainActivity extends DBActivity
                                 public void onClick(View v)
                                 {
                                     db.deleteExpense(persistedExpense);
-
-                                    refreshAllForDate(expensesViewAdapter.getDate());
                                 }
                             };
                         }
 
-                        refreshAllForDate(expensesViewAdapter.getDate());
                         dialog.dismiss();
 
                         //Show snackbar
@@ -707,6 +762,26 @@ public class MainActivity extends DBActivity
         }
     }
 
+    /**
+     * Show the banner telling the user when the balance will drop below the low money warning
+     * amount, or hide it if it doesn't
+     *
+     * @param day first low balance day, null if none
+     */
+    private void showLowBalanceBanner(@Nullable Date day)
+    {
+        lowBalanceDay = day;
+
+        if( lowBalanceDay == null )
+        {
+            lowBalanceBanner.setVisibility(View.GONE);
+            return;
+        }
+
+        lowBalanceBanner.setText(LowBalanceWarningNotif.getWarningText(this, lowBalanceDay, R.string.low_balance_warning_banner));
+        lowBalanceBanner.setVisibility(View.VISIBLE);
+    }
+
     /**
      * Open the settings activity if the given intent contains the {@link #INTENT_REDIRECT_TO_SETTINGS_EXTRA}
      * extra.
@@ -830,7 +905,7 @@ public class MainActivity extends DBActivity
                 cal.set(Calendar.MONTH, month);
                 cal.set(Calendar.YEAR, year);
 
-                DBCache.getInstance(MainActivity.this).loadMonth(cal.getTime());
+                DBCache.getInstance(MainActivity.this).setVisibleMonth(cal.getTime());
             }
 
             @Override
@@ -1042,8 +1117,15 @@ public class MainActivity extends DBActivity
     private void refreshRecyclerViewForDate(@NonNull Date date)
     {
         expensesViewAdapter.setDate(date, db);
+        updateRecyclerViewVisibility();
+    }
 
-        if( db.hasExpensesForDay(date) )
+    /**
+     * Show the recycler view if the displayed day has expenses, the placeholder otherwise
+     */
+    private void updateRecyclerViewVisibility()
+    {
+        if( expensesViewAdapter.getItemCount() > 0 )
         {
             recyclerView.setVisibility(View.VISIBLE);
             recyclerViewPlaceholder.setVisibility(View.GONE);
@@ -1157,6 +1239,7 @@ public class MainActivity extends DBActivity
                 }
                 case FROM:
                 {
+                    monthlyExpenseToRestore = monthlyExpense;
                     expensesToRestore = db.getAllExpensesForMonthlyExpenseFromDate(monthlyExpense, expense.getDate());
 
                     boolean expensesDeleted = db.deleteAllExpenseForMonthlyExpenseFromDate(monthlyExpense, expense.getDate());
@@ -1170,6 +1253,7 @@ public class MainActivity extends DBActivity
                 }
                 case TO:
                 {
+                    monthlyExpenseToRestore = monthlyExpense;
                     expensesToRestore = db.getAllExpensesForMonthlyExpenseBeforeDate(monthlyExpense, expense.getDate());
 
                     boolean expensesDeleted = db.deleteAllExpenseForMonthlyExpenseBeforeDate(monthlyExpense, expense.getDate());
@@ -1184,7 +1268,15 @@ public class MainActivity extends DBActivity
                 case ONE:
                 {
                     expensesToRestore = new ArrayList<>(1);
-                    expensesToRestore.add(expense);
+
+                    if( expense.isVirtual() ) // Computed occurrence: restoring the monthly expense is enough
+                    {
+                        monthlyExpenseToRestore = monthlyExpense;
+                    }
+                    else
+                    {
+                        expensesToRestore.add(expense);
+                    }
 
                     boolean expenseDeleted = db.deleteExpense(expense);
                     if( !expenseDeleted )
@@ -1221,8 +1313,7 @@ public class MainActivity extends DBActivity
 
             if (result)
             {
-                // Refresh and show confirm snackbar
-                refreshAllForDate(expensesViewAdapter.getDate());
+                // Show confirm snackbar
                 Snackbar snackbar = Snackbar.make(coordinatorLayout, R.string.monthly_expense_delete_success_message, Snackbar.LENGTH_LONG);
 
                 if( expensesToRestore != null ) // just in case..
@@ -1267,7 +1358,7 @@ public class MainActivity extends DBActivity
          */
         private final List<Expense> expensesToRestore;
         /**
-         * Monthly expense to restore (will be null if delete type != ALL)
+         * Monthly expense to restore, with its computed occurrences (can be null)
          */
         private final MonthlyExpense monthlyExpenseToRestore;
 
@@ -1304,10 +1395,7 @@ public class MainActivity extends DBActivity
         {
             if( monthlyExpenseToRestore != null )
             {
-                if( !db.addMonthlyExpense(monthlyExpenseToRestore) )
-                {
-                    return false;
-                }
+                return db.restoreMonthlyExpense(monthlyExpenseToRestore, expensesToRestore);
             }
 
             for(Expense expense: expensesToRestore)
@@ -1329,8 +1417,7 @@ public class MainActivity extends DBActivity
 
             if (result)
             {
-                // Refresh and show confirm snackbar
-                refreshAllForDate(expensesViewAdapter.getDate());
+                // Show confirm snackbar
                 Snackbar.make(coordinatorLayout, R.string.monthly_expense_restored_success_message, Snackbar.LENGTH_LONG).show();
             }
             else
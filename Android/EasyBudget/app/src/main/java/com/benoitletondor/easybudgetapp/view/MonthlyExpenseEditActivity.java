@@ -41,7 +41,6 @@ import com.benoitletondor.easybudgetapp.R;
 import com.benoitletondor.easybudgetapp.helper.Logger;
 import com.benoitletondor.easybudgetapp.helper.UIHelper;
 import com.benoitletondor.easybudgetapp.helper.CurrencyHelper;
-import com.benoitletondor.easybudgetapp.model.Expense;
 import com.benoitletondor.easybudgetapp.model.MonthlyExpense;
 
 import java.text.SimpleDateFormat;
@@ -236,7 +235,7 @@ public class MonthlyExpenseEditActivity extends DBActivity
                 {
                     double value = Double.parseDouble(amountEditText.getText().toString());
 
-                    MonthlyExpense expense = new MonthlyExpense(descriptionEditText.getText().toString(), isRevenue? -value : value, dateStart);
+                    MonthlyExpense expense = new MonthlyExpense(descriptionEditText.getText().toString(), isRevenue? -value : value, dateStart, getNumberOfOccurrences());
 
                     new SaveMonthlyExpenseTask().execute(expense);
                 }
@@ -325,6 +324,38 @@ public class MonthlyExpenseEditActivity extends DBActivity
         });
     }
 
+    /**
+     * Get the number of occurrences of the monthly expense: up to 10 years, stopping at the end date
+     * if any
+     *
+     * @return
+     */
+    private int getNumberOfOccurrences()
+    {
+        if( dateEnd == null )
+        {
+            return 12 * 10;
+        }
+
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(dateStart);
+
+        int occurrences = 1;
+        while( occurrences < 12 * 10 )
+        {
+            cal.add(Calendar.MONTH, 1);
+
+            if( cal.getTime().after(dateEnd) ) // If we have an end date, stop to that one
+            {
+                break;
+            }
+
+            occurrences++;
+        }
+
+        return occurrences;
+    }
+
     private void updateDateButtonDisplay()
     {
         SimpleDateFormat formatter = new SimpleDateFormat(getResources().getString(R.string.add_expense_date_format), Locale.getDefault());
@@ -354,27 +385,6 @@ public class MonthlyExpenseEditActivity extends DBActivity
                     Logger.error(false, "Error while inserting monthly expense into DB: addMonthlyExpense returned false");
                     return false;
                 }
-
-                Calendar cal = Calendar.getInstance();
-                cal.setTime(dateStart);
-
-                // Add up to 10 years of expenses
-                for (int i = 0; i < 12 * 10; i++)
-                {
-                    boolean expenseInserted = db.persistExpense(new Expense(expense.getTitle(), expense.getAmount(), cal.getTime(), expense.getId()));
-                    if (!expenseInserted)
-                    {
-                        Logger.error(false, "Error while inserting expense for monthly expense into DB: persistExpense returned false");
-                        return false;
-                    }
-
-                    cal.add(Calendar.MONTH, 1);
-
-                    if (dateEnd != null && cal.getTime().after(dateEnd)) // If we have an end date, stop to that one
-                    {
-                        break;
-                    }
-                }
             }
 
             return true;
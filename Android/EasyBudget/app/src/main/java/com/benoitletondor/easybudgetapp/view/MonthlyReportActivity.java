@@ -32,6 +32,7 @@ import android.widget.TextView;
 import com.benoitletondor.easybudgetapp.R;
 import com.benoitletondor.easybudgetapp.helper.DateHelper;
 import com.benoitletondor.easybudgetapp.helper.UIHelper;
+import com.benoitletondor.easybudgetapp.model.db.MonthlyReportLoader;
 import com.benoitletondor.easybudgetapp.view.report.MonthlyReportFragment;
 
 import java.util.Date;
@@ -193,6 +194,30 @@ public class MonthlyReportActivity extends AppCompatActivity implements ViewPage
         {
             selectPagerItem(dates.size() - 1, false);
         }
+
+        // Prefetch once the first month is laid out, so that its report loads first
+        pager.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                prefetchAroundSelectedMonth();
+            }
+        });
+    }
+
+    /**
+     * Load reports of months next to the selected one, so that they're displayed as soon as the
+     * user swipes
+     */
+    private void prefetchAroundSelectedMonth()
+    {
+        if( dates == null || isFinishing() )
+        {
+            return;
+        }
+
+        MonthlyReportLoader.getInstance(this).prefetchAround(dates.get(selectedPosition));
     }
 
     /**
@@ -238,6 +263,9 @@ public class MonthlyReportActivity extends AppCompatActivity implements ViewPage
     @Override
     public void onPageScrollStateChanged(int state)
     {
-
+        if( state == ViewPager.SCROLL_STATE_IDLE )
+        {
+            prefetchAroundSelectedMonth();
+        }
     }
 }
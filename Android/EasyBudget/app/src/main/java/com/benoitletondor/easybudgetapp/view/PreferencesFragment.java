@@ -53,7 +53,9 @@ import com.benoitletondor.easybudgetapp.helper.ParameterKeys;
 import com.benoitletondor.easybudgetapp.helper.Parameters;
 import com.benoitletondor.easybudgetapp.helper.UIHelper;
 import com.benoitletondor.easybudgetapp.helper.UserHelper;
+import com.benoitletondor.easybudgetapp.model.db.DBMetrics;
 import com.benoitletondor.easybudgetapp.notif.DailyNotifOptinService;
+import com.benoitletondor.easybudgetapp.notif.LowBalanceWarningNotif;
 import com.benoitletondor.easybudgetapp.notif.MonthlyReportNotifService;
 import com.benoitletondor.easybudgetapp.view.selectcurrency.SelectCurrencyFragment;
 import com.google.android.gms.appinvite.AppInviteInvitation;
@@ -256,6 +258,7 @@ public class PreferencesFragment extends PreferenceFragment
 
                             Parameters.getInstance(getActivity()).putInt(ParameterKeys.LOW_MONEY_WARNING_AMOUNT, newLimit);
                             setLimitWarningPreferenceTitle(limitWarningPreference);
+                            LowBalanceWarningNotif.check(getActivity());
                         }
                         catch (Exception e)
                         {
@@ -391,6 +394,41 @@ public class PreferencesFragment extends PreferenceFragment
                 }
             });
 
+            /*
+             * Show DB metrics
+             */
+            findPreference(getResources().getString(R.string.setting_category_show_db_metrics_key)).setOnPreferenceClickListener(new Preference.OnPreferenceClickListener()
+            {
+                @Override
+                public boolean onPreferenceClick(Preference preference)
+                {
+                    new AlertDialog.Builder(getActivity())
+                        .setTitle(R.string.setting_category_show_db_metrics_title)
+                        .setMessage(DBMetrics.getReport(getActivity()))
+                        .setPositiveButton(R.string.setting_category_db_metrics_log_button, new DialogInterface.OnClickListener()
+                        {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which)
+                            {
+                                DBMetrics.log(getActivity());
+                                dialog.dismiss();
+                            }
+                        })
+                        .setNegativeButton(R.string.setting_category_db_metrics_reset_button, new DialogInterface.OnClickListener()
+                        {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which)
+                            {
+                                DBMetrics.reset();
+                                dialog.dismiss();
+                            }
+                        })
+                        .show();
+
+                    return false;
+                }
+            });
+
             /*
              * Enable animations pref
              */
@@ -33,9 +33,11 @@ import android.widget.TextView;
 
 import com.benoitletondor.easybudgetapp.R;
 import com.benoitletondor.easybudgetapp.helper.CurrencyHelper;
+import com.benoitletondor.easybudgetapp.helper.DateHelper;
 import com.benoitletondor.easybudgetapp.model.Expense;
 import com.benoitletondor.easybudgetapp.model.MonthlyExpenseDeleteType;
 import com.benoitletondor.easybudgetapp.model.db.DB;
+import com.benoitletondor.easybudgetapp.model.db.DBChangeEvent;
 import com.benoitletondor.easybudgetapp.view.ExpenseEditActivity;
 import com.benoitletondor.easybudgetapp.view.MainActivity;
 
@@ -106,7 +108,7 @@ public class ExpensesRecyclerViewAdapter extends RecyclerView.Adapter<ExpensesRe
         while( expenseIterator.hasNext() )
         {
             Expense shownExpense = expenseIterator.next();
-            if( shownExpense.getId().equals(expense.getId()) )
+            if( isSameExpense(expense, shownExpense) )
             {
                 expenseIterator.remove();
                 notifyItemRemoved(position);
@@ -131,6 +133,91 @@ public class ExpensesRecyclerViewAdapter extends RecyclerView.Adapter<ExpensesRe
         notifyItemRangeInserted(position, 1);
     }
 
+    /**
+     * Update displayed expenses after a write into DB if the displayed day changed. Only rows that
+     * actually changed are notified.
+     *
+     * @param event changes of the write
+     * @param db
+     * @return true if displayed expenses have been reloaded
+     */
+    public boolean onDBChange(@NonNull DBChangeEvent event, @NonNull DB db)
+    {
+        if( !event.hasExpensesChanged(DateHelper.getLocalEpochDay(date)) )
+        {
+            return false;
+        }
+
+        List<Expense> oldExpenses = expenses;
+        List<Expense> newExpenses = db.getExpensesForDay(date);
+        expenses = newExpenses;
+
+        // Skip rows unchanged at the beginning and at the end of the list
+        int start = 0;
+        while( start < oldExpenses.size() && start < newExpenses.size() && isSameContent(oldExpenses.get(start), newExpenses.get(start)) )
+        {
+            start++;
+        }
+
+        int oldEnd = oldExpenses.size();
+        int newEnd = newExpenses.size();
+        while( oldEnd > start && newEnd > start && isSameContent(oldExpenses.get(oldEnd - 1), newExpenses.get(newEnd - 1)) )
+        {
+            oldEnd--;
+            newEnd--;
+        }
+
+        // Rebind rows in between, then insert or remove the difference
+        int changed = Math.min(oldEnd, newEnd) - start;
+        if( changed > 0 )
+        {
+            notifyItemRangeChanged(start, changed);
+        }
+
+        if( newEnd > oldEnd )
+        {
+            notifyItemRangeInserted(start + changed, newEnd - oldEnd);
+        }
+        else if( oldEnd > newEnd )
+        {
+            notifyItemRangeRemoved(start + changed, oldEnd - newEnd);
+        }
+
+        return true;
+    }
+
+    /**
+     * Are the given expenses the same one (same id, or same occurrence of a monthly expense)
+     *
+     * @param expense
+     * @param other
+     * @return
+     */
+    private static boolean isSameExpense(@NonNull Expense expense, @NonNull Expense other)
+    {
+        if( expense.isVirtual() )
+        {
+            return other.isVirtual() && expense.getOccurrenceIndex().equals(other.getOccurrenceIndex()) && expense.getMonthlyId().equals(other.getMonthlyId());
+        }
+
+        return expense.getId() != null && expense.getId().equals(other.getId());
+    }
+
+    /**
+     * Are the given expenses the same one displayed the same way
+     *
+     * @param expense
+     * @param other
+     * @return
+     */
+    private static boolean isSameContent(@NonNull Expense expense, @NonNull Expense other)
+    {
+        return isSameExpense(expense, other) &&
+            expense.getTitle().equals(other.getTitle()) &&
+            expense.getAmount() == other.getAmount() &&
+            expense.isMonthly() == other.isMonthly();
+    }
+
 // ------------------------------------------>
 
     @Override
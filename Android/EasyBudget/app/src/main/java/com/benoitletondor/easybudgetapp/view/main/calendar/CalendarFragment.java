@@ -16,11 +16,19 @@
 
 package com.benoitletondor.easybudgetapp.view.main.calendar;
 
+import android.support.annotation.NonNull;
+import android.widget.GridView;
+
+import com.benoitletondor.easybudgetapp.helper.DayKey;
+import com.benoitletondor.easybudgetapp.model.db.DBChangeEvent;
 import com.roomorama.caldroid.CaldroidFragment;
 import com.roomorama.caldroid.CaldroidGridAdapter;
+import com.roomorama.caldroid.DateGridFragment;
 
 import java.util.Date;
 
+import hirondelle.date4j.DateTime;
+
 /**
  * @author Benoit LETONDOR
  */
@@ -52,4 +60,56 @@ public class CalendarFragment extends CaldroidFragment
     {
         return selectedDate;
     }
+
+    /**
+     * Redraw only the cells of days changed by a write into DB, instead of the whole calendar
+     * as {@link #refreshView()} does.
+     *
+     * @param event changes of the write
+     */
+    public void refreshDays(@NonNull DBChangeEvent event)
+    {
+        if( getFragments() == null )
+        {
+            return;
+        }
+
+        // Update models of every page first, visible or not
+        for(CaldroidGridAdapter adapter : getDatePagerAdapters())
+        {
+            if( adapter instanceof CalendarGridAdapter )
+            {
+                ((CalendarGridAdapter) adapter).onDBChange(event);
+            }
+        }
+
+        for(DateGridFragment fragment : getFragments())
+        {
+            GridView gridView = fragment.getGridView();
+            if( gridView == null || !(gridView.getAdapter() instanceof CaldroidGridAdapter) )
+            {
+                continue;
+            }
+
+            CaldroidGridAdapter adapter = (CaldroidGridAdapter) gridView.getAdapter();
+            int firstPosition = gridView.getFirstVisiblePosition();
+
+            for(int i = 0; i < gridView.getChildCount(); i++)
+            {
+                int position = firstPosition + i;
+                if( position >= adapter.getDatetimeList().size() )
+                {
+                    break;
+                }
+
+                DateTime dateTime = adapter.getDatetimeList().get(position);
+                int day = DayKey.fromYearMonthDay(dateTime.getYear(), dateTime.getMonth(), dateTime.getDay());
+
+                if( event.isDayChanged(day) )
+                {
+                    adapter.getView(position, gridView.getChildAt(i), gridView);
+                }
+            }
+        }
+    }
 }
@@ -17,6 +17,7 @@
 package com.benoitletondor.easybudgetapp.view.main.calendar;
 
 import android.content.Context;
+import android.os.AsyncTask;
 import android.support.annotation.NonNull;
 import android.support.v4.content.ContextCompat;
 import android.view.LayoutInflater;
@@ -25,21 +26,41 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import com.benoitletondor.easybudgetapp.R;
+import com.benoitletondor.easybudgetapp.helper.DayKey;
 import com.benoitletondor.easybudgetapp.model.db.DB;
+import com.benoitletondor.easybudgetapp.model.db.DBCache;
+import com.benoitletondor.easybudgetapp.model.db.DBChangeEvent;
+import com.benoitletondor.easybudgetapp.model.db.MonthGridModel;
 import com.roomorama.caldroid.CaldroidGridAdapter;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Map;
-import java.util.TimeZone;
 
 import hirondelle.date4j.DateTime;
 
 /**
+ * Calendar cells adapter. Cells are bound by index from a {@link MonthGridModel} built in background
+ * for the displayed days. Until it's available, cells are bound with cached data only so that no DB
+ * query runs during layout: days of months that are not cached yet are drawn without expenses.
+ *
  * @author Benoit LETONDOR
  */
 public class CalendarGridAdapter extends CaldroidGridAdapter
 {
-    private final DB       db;
+    private final DBCache  dbCache;
+    /**
+     * Model of the displayed days, null while loading
+     */
+    private MonthGridModel model;
+    /**
+     * Days the model is loaded for, to detect when the displayed month changes
+     */
+    private ArrayList<DateTime> modelDays;
+    /**
+     * Task currently loading the model
+     */
+    private LoadModelTask loadModelTask;
 
 // ----------------------------------->
 
@@ -47,15 +68,23 @@ public class CalendarGridAdapter extends CaldroidGridAdapter
     {
         super(context, month, year, caldroidData, extraData);
 
-        db = new DB(context.getApplicationContext());
+        dbCache = DBCache.getInstance(context);
     }
 
-    @Override
-    protected void finalize() throws Throwable
+    /**
+     * Called after a write into DB, before cells of changed days are redrawn: the model is
+     * reloaded if it contains changed days, cached data being used meanwhile.
+     *
+     * @param event changes of the write
+     */
+    public void onDBChange(@NonNull DBChangeEvent event)
     {
-        db.close();
+        if( model != null && event.getFromDay() >= model.getFirstDay() + model.getCellCount() )
+        {
+            return;
+        }
 
-        super.finalize();
+        loadModel();
     }
 
 // ----------------------------------->
@@ -65,6 +94,11 @@ public class CalendarGridAdapter extends CaldroidGridAdapter
     {
         final View cellView = convertView == null ? createView(parent) : convertView;
 
+        if( modelDays != datetimeList )
+        {
+            loadModel();
+        }
+
         ViewData viewData = (ViewData) cellView.getTag();
 
         // Get dateTime of this cell
@@ -171,11 +205,26 @@ public class CalendarGridAdapter extends CaldroidGridAdapter
                 }
             }
 
-            final Date date = new Date(dateTime.getMilliseconds(TimeZone.getDefault()));
-            if( db.hasExpensesForDay(date) )
+            byte color;
+            long balance;
+
+            if( model != null )
             {
-                double balance = db.getBalanceForDay(date);
+                color = model.getColor(position);
+                balance = model.getBalance(position);
+            }
+            else
+            {
+                // Cache misses schedule the load of the month, the cell is drawn as a day without expenses meanwhile
+                int day = DayKey.fromYearMonthDay(dateTime.getYear(), dateTime.getMonth(), dateTime.getDay());
+                Boolean hasExpenses = dbCache.hasExpensesForDay(day);
+                balance = hasExpenses != null && hasExpenses ? dbCache.getBalanceForDay(day) : DBCache.BALANCE_NOT_CACHED;
+
+                color = balance == DBCache.BALANCE_NOT_CACHED ? MonthGridModel.COLOR_NONE : (balance > 0 ? MonthGridModel.COLOR_NEGATIVE : MonthGridModel.COLOR_POSITIVE);
+            }
 
+            if( color != MonthGridModel.COLOR_NONE )
+            {
                 if( !viewData.containsExpenses )
                 {
                     tv2.setVisibility(View.VISIBLE);
@@ -183,9 +232,9 @@ public class CalendarGridAdapter extends CaldroidGridAdapter
                     viewData.containsExpenses = true;
                 }
 
-                tv2.setText(String.valueOf(-(int) balance));
+                tv2.setText(String.valueOf(-balance / 100));
 
-                if( balance > 0 )
+                if( color == MonthGridModel.COLOR_NEGATIVE )
                 {
                     tv1.setTextColor(ContextCompat.getColor(context, isOutOfMonth ? R.color.budget_red_out : R.color.budget_red));
                 }
@@ -217,6 +266,23 @@ public class CalendarGridAdapter extends CaldroidGridAdapter
         return cellView;
     }
 
+    /**
+     * Load the model of the displayed days in background, cancelling any pending load
+     */
+    private void loadModel()
+    {
+        if( loadModelTask != null )
+        {
+            loadModelTask.cancel(false);
+        }
+
+        model = null;
+        modelDays = datetimeList;
+
+        loadModelTask = new LoadModelTask(datetimeList);
+        loadModelTask.execute();
+    }
+
     /**
      * Inflate a new cell view and attach ViewData as tag
      *
@@ -236,6 +302,55 @@ public class CalendarGridAdapter extends CaldroidGridAdapter
         return v;
     }
 
+// --------------------------------------->
+
+    /**
+     * Task that builds the model of the displayed days from DB
+     */
+    private class LoadModelTask extends AsyncTask<Void, Void, MonthGridModel>
+    {
+        /**
+         * Days to load
+         */
+        private final ArrayList<DateTime> days;
+
+        private LoadModelTask(@NonNull ArrayList<DateTime> days)
+        {
+            this.days = days;
+        }
+
+        @Override
+        protected MonthGridModel doInBackground(Void... params)
+        {
+            DateTime firstDay = days.get(0);
+            Date from = new Date(DayKey.getStartOfDay(DayKey.fromYearMonthDay(firstDay.getYear(), firstDay.getMonth(), firstDay.getDay())));
+
+            DB db = new DB(context.getApplicationContext());
+            try
+            {
+                return db.getMonthGridModel(from, days.size());
+            }
+            finally
+            {
+                db.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(MonthGridModel result)
+        {
+            // Ignore outdated results: another month is displayed or DB changed since
+            if( loadModelTask != this || modelDays != datetimeList )
+            {
+                return;
+            }
+
+            loadModelTask = null;
+            model = result;
+            notifyDataSetChanged();
+        }
+    }
+
 // --------------------------------------->
 
     /**
@@ -17,7 +17,6 @@
 package com.benoitletondor.easybudgetapp.view.report;
 
 import android.annotation.SuppressLint;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.app.Fragment;
@@ -32,13 +31,13 @@ import android.widget.TextView;
 
 import com.benoitletondor.easybudgetapp.R;
 import com.benoitletondor.easybudgetapp.helper.CurrencyHelper;
-import com.benoitletondor.easybudgetapp.model.Expense;
-import com.benoitletondor.easybudgetapp.model.db.DB;
+import com.benoitletondor.easybudgetapp.helper.DateHelper;
+import com.benoitletondor.easybudgetapp.model.db.MonthReport;
+import com.benoitletondor.easybudgetapp.model.db.MonthSummary;
+import com.benoitletondor.easybudgetapp.model.db.MonthlyReportLoader;
 
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.List;
 
 /**
  * Fragment that displays monthly report for a given month
@@ -53,13 +52,9 @@ public class MonthlyReportFragment extends Fragment
     @NonNull
     private final Date date;
     /**
-     * The computed revenue amount (always >= 0)
+     * Listener waiting for the report of the month, null if it's displayed
      */
-    private double revenuesAmount = 0d;
-    /**
-     * The computed expenses amount (always >= 0)
-     */
-    private double expensesAmount = 0d;
+    private MonthlyReportLoader.OnMonthReportLoadedListener reportLoadedListener;
 
 // ---------------------------------->
 
@@ -91,81 +86,133 @@ public class MonthlyReportFragment extends Fragment
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState)
     {
-        // Reset totals
-        expensesAmount = 0.0d;
-        revenuesAmount = 0.0d;
-
         // Inflate the layout for this fragment
         final View v = inflater.inflate(R.layout.fragment_monthly_report, container, false);
 
-        final ProgressBar progressBar = (ProgressBar) v.findViewById(R.id.monthly_report_fragment_progress_bar);
-        final View content = v.findViewById(R.id.monthly_report_fragment_content);
-        final RecyclerView recyclerView = (RecyclerView) v.findViewById(R.id.monthly_report_fragment_recycler_view);
-        final View emptyState = v.findViewById(R.id.monthly_report_fragment_empty_state);
-        final TextView revenuesAmountTextView = (TextView) v.findViewById(R.id.monthly_report_fragment_revenues_total_tv);
-        final TextView expensesAmountTextView = (TextView) v.findViewById(R.id.monthly_report_fragment_expenses_total_tv);
-        final TextView balanceTextView = (TextView) v.findViewById(R.id.monthly_report_fragment_balance_tv);
-
-        new AsyncTask<Void, Void, MonthlyReportRecyclerViewAdapter>()
+        v.findViewById(R.id.monthly_report_fragment_retry_button).setOnClickListener(new View.OnClickListener()
         {
             @Override
-            protected MonthlyReportRecyclerViewAdapter doInBackground(Void... params)
+            public void onClick(View button)
             {
-                final DB db = new DB(getActivity());
-                try
+                View view = getView();
+                if( view != null )
                 {
-                    List<Expense> expensesForMonth = db.getExpensesForMonth(date);
-                    if( expensesForMonth.isEmpty() )
-                    {
-                        return null;
-                    }
+                    loadReport(view);
+                }
+            }
+        });
+
+        loadReport(v);
+
+        return v;
+    }
+
+    /**
+     * Display the report if it's in memory, or the progress bar until it's loaded
+     *
+     * @param v the fragment view
+     */
+    private void loadReport(@NonNull View v)
+    {
+        MonthlyReportLoader loader = MonthlyReportLoader.getInstance(getActivity());
+
+        // Report may already be in memory if this month has been prefetched
+        MonthReport report = loader.getReport(date);
+        if( report != null )
+        {
+            bindReport(v, report);
+            return;
+        }
 
-                    final List<Expense> expenses = new ArrayList<>();
-                    final List<Expense> revenues = new ArrayList<>();
+        v.findViewById(R.id.monthly_report_fragment_error).setVisibility(View.GONE);
+        v.findViewById(R.id.monthly_report_fragment_progress_bar).setVisibility(View.VISIBLE);
 
-                    for(Expense expense : expensesForMonth)
+        if( reportLoadedListener == null )
+        {
+            reportLoadedListener = new MonthlyReportLoader.OnMonthReportLoadedListener()
+            {
+                @Override
+                public void onMonthReportLoaded(@NonNull Date month, @NonNull MonthReport report)
+                {
+                    if( DateHelper.getMonthIndex(month) != DateHelper.getMonthIndex(date) || getView() == null )
                     {
-                        if( expense.isRevenue() )
-                        {
-                            revenues.add(expense);
-                            revenuesAmount -= expense.getAmount();
-                        }
-                        else
-                        {
-                            expenses.add(expense);
-                            expensesAmount += expense.getAmount();
-                        }
+                        return;
                     }
 
-                    return new MonthlyReportRecyclerViewAdapter(expenses, revenues);
+                    removeReportLoadedListener();
+                    bindReport(getView(), report);
                 }
-                finally
+
+                @Override
+                public void onMonthReportLoadFailed(@NonNull Date month)
                 {
-                    db.close();
+                    if( DateHelper.getMonthIndex(month) != DateHelper.getMonthIndex(date) || getView() == null )
+                    {
+                        return;
+                    }
+
+                    // Keep listening: the report will be delivered if the user retries
+                    getView().findViewById(R.id.monthly_report_fragment_progress_bar).setVisibility(View.GONE);
+                    getView().findViewById(R.id.monthly_report_fragment_error).setVisibility(View.VISIBLE);
                 }
-            }
+            };
 
-            @Override
-            protected void onPostExecute(MonthlyReportRecyclerViewAdapter adapter)
-            {
-                progressBar.setVisibility(View.GONE);
-                content.setVisibility(View.VISIBLE);
+            loader.addOnMonthReportLoadedListener(reportLoadedListener);
+        }
+    }
 
-                if( adapter != null )
-                {
-                    configureRecyclerView(recyclerView, adapter);
-                }
-                else
-                {
-                    recyclerView.setVisibility(View.GONE);
-                    emptyState.setVisibility(View.VISIBLE);
-                }
+    @Override
+    public void onDestroyView()
+    {
+        removeReportLoadedListener();
 
-                configureTotalView(revenuesAmountTextView, expensesAmountTextView, balanceTextView);
-            }
-        }.execute();
+        super.onDestroyView();
+    }
 
-        return v;
+    /**
+     * Remove the report listener if it's still registered
+     */
+    private void removeReportLoadedListener()
+    {
+        if( reportLoadedListener != null )
+        {
+            MonthlyReportLoader.getInstance(getActivity()).removeOnMonthReportLoadedListener(reportLoadedListener);
+            reportLoadedListener = null;
+        }
+    }
+
+    /**
+     * Display the given report into the fragment view
+     *
+     * @param v the fragment view
+     * @param report report of the month
+     */
+    private void bindReport(@NonNull View v, @NonNull MonthReport report)
+    {
+        final ProgressBar progressBar = (ProgressBar) v.findViewById(R.id.monthly_report_fragment_progress_bar);
+        final View content = v.findViewById(R.id.monthly_report_fragment_content);
+        final RecyclerView recyclerView = (RecyclerView) v.findViewById(R.id.monthly_report_fragment_recycler_view);
+        final View emptyState = v.findViewById(R.id.monthly_report_fragment_empty_state);
+        final TextView revenuesAmountTextView = (TextView) v.findViewById(R.id.monthly_report_fragment_revenues_total_tv);
+        final TextView expensesAmountTextView = (TextView) v.findViewById(R.id.monthly_report_fragment_expenses_total_tv);
+        final TextView balanceTextView = (TextView) v.findViewById(R.id.monthly_report_fragment_balance_tv);
+
+        progressBar.setVisibility(View.GONE);
+        v.findViewById(R.id.monthly_report_fragment_error).setVisibility(View.GONE);
+        content.setVisibility(View.VISIBLE);
+
+        MonthSummary summary = report.getSummary();
+        if( !summary.isEmpty() )
+        {
+            configureRecyclerView(recyclerView, new MonthlyReportRecyclerViewAdapter(getActivity(), date, report));
+        }
+        else
+        {
+            recyclerView.setVisibility(View.GONE);
+            emptyState.setVisibility(View.VISIBLE);
+        }
+
+        configureTotalView(revenuesAmountTextView, expensesAmountTextView, balanceTextView, summary);
     }
 
     /**
@@ -186,13 +233,14 @@ public class MonthlyReportFragment extends Fragment
      * @param revenuesAmountTextView
      * @param expensesAmountTextView
      * @param balanceTextView
+     * @param summary totals of the month
      */
-    private void configureTotalView(@NonNull TextView revenuesAmountTextView, @NonNull TextView expensesAmountTextView, @NonNull TextView balanceTextView)
+    private void configureTotalView(@NonNull TextView revenuesAmountTextView, @NonNull TextView expensesAmountTextView, @NonNull TextView balanceTextView, @NonNull MonthSummary summary)
     {
-        revenuesAmountTextView.setText(CurrencyHelper.getFormattedCurrencyString(revenuesAmountTextView.getContext(), revenuesAmount));
-        expensesAmountTextView.setText(CurrencyHelper.getFormattedCurrencyString(expensesAmountTextView.getContext(), expensesAmount));
+        revenuesAmountTextView.setText(CurrencyHelper.getFormattedCurrencyString(revenuesAmountTextView.getContext(), summary.getRevenuesAmount()));
+        expensesAmountTextView.setText(CurrencyHelper.getFormattedCurrencyString(expensesAmountTextView.getContext(), summary.getExpensesAmount()));
 
-        double balance = revenuesAmount - expensesAmount;
+        double balance = summary.getBalance();
         balanceTextView.setText(CurrencyHelper.getFormattedCurrencyString(balanceTextView.getContext(), balance));
         balanceTextView.setTextColor(ContextCompat.getColor(balanceTextView.getContext(), balance >= 0 ? R.color.budget_green : R.color.budget_red));
     }
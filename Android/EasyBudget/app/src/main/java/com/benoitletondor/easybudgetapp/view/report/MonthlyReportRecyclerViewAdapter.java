@@ -16,24 +16,32 @@
 
 package com.benoitletondor.easybudgetapp.view.report;
 
+import android.content.Context;
+import android.os.AsyncTask;
 import android.support.annotation.NonNull;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.util.SparseArray;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
 import com.benoitletondor.easybudgetapp.R;
 import com.benoitletondor.easybudgetapp.helper.CurrencyHelper;
 import com.benoitletondor.easybudgetapp.model.Expense;
+import com.benoitletondor.easybudgetapp.model.db.DB;
+import com.benoitletondor.easybudgetapp.model.db.MonthReport;
 
 import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
 /**
- * The adapter for the {@link MonthlyReportFragment} recycler view.
+ * The adapter for the {@link MonthlyReportFragment} recycler view. The first page of rows comes
+ * with the {@link MonthReport} of the month, next ones are loaded by pages of
+ * {@link MonthReport#PAGE_SIZE} when they're about to be displayed.
  *
  * @author Benoit LETONDOR
  */
@@ -54,27 +62,56 @@ public class MonthlyReportRecyclerViewAdapter extends RecyclerView.Adapter<Recyc
     private static final SimpleDateFormat dayFormatter = new SimpleDateFormat("dd", Locale.getDefault());
 
     /**
-     * List of expenses (may be empty)
+     * Application context, to open DB
      */
     @NonNull
-    private final List<Expense> expenses;
+    private final Context context;
     /**
-     * List of revenues (may be empty)
+     * The first date of the month at 00:00:00
      */
     @NonNull
-    private final List<Expense> revenues;
+    private final Date month;
+    /**
+     * Number of expenses (may be 0)
+     */
+    private final int expensesCount;
+    /**
+     * Number of revenues (may be 0)
+     */
+    private final int revenuesCount;
+    /**
+     * Loaded pages of expenses, keyed by page index, null while loading
+     */
+    private final SparseArray<List<Expense>> expensesPages = new SparseArray<>();
+    /**
+     * Loaded pages of revenues, keyed by page index, null while loading
+     */
+    private final SparseArray<List<Expense>> revenuesPages = new SparseArray<>();
 
 // --------------------------------------->
 
     /**
      *
-     * @param expenses
-     * @param revenues
+     * @param context
+     * @param month first date of the month at 00:00:00
+     * @param report report of the month, giving the number of rows and the first page of each kind
      */
-    public MonthlyReportRecyclerViewAdapter(@NonNull List<Expense> expenses, @NonNull List<Expense> revenues)
+    public MonthlyReportRecyclerViewAdapter(@NonNull Context context, @NonNull Date month, @NonNull MonthReport report)
     {
-        this.expenses = expenses;
-        this.revenues = revenues;
+        this.context = context.getApplicationContext();
+        this.month = month;
+        this.expensesCount = report.getSummary().getExpensesCount();
+        this.revenuesCount = report.getSummary().getRevenuesCount();
+
+        if( revenuesCount > 0 )
+        {
+            revenuesPages.put(0, report.getFirstRevenues());
+        }
+
+        if( expensesCount > 0 )
+        {
+            expensesPages.put(0, report.getFirstExpenses());
+        }
     }
 
 // --------------------------------------->
@@ -108,6 +145,15 @@ public class MonthlyReportRecyclerViewAdapter extends RecyclerView.Adapter<Recyc
             ExpenseViewHolder viewHolder = (ExpenseViewHolder) holder;
             Expense expense = getExpense(position);
 
+            if( expense == null ) // Page not loaded yet
+            {
+                viewHolder.expenseTitleTextView.setText(null);
+                viewHolder.expenseAmountTextView.setText(null);
+                viewHolder.monthlyIndicator.setVisibility(View.GONE);
+                viewHolder.dateTextView.setText(null);
+                return;
+            }
+
             viewHolder.expenseTitleTextView.setText(expense.getTitle());
             viewHolder.expenseAmountTextView.setText(CurrencyHelper.getFormattedCurrencyString(viewHolder.view.getContext(), -expense.getAmount()));
             viewHolder.expenseAmountTextView.setTextColor(ContextCompat.getColor(viewHolder.view.getContext(), expense.isRevenue() ? R.color.budget_green : R.color.budget_red));
@@ -119,7 +165,7 @@ public class MonthlyReportRecyclerViewAdapter extends RecyclerView.Adapter<Recyc
     @Override
     public int getItemCount()
     {
-        return (expenses.isEmpty() ? 0 : expenses.size() + 1) + (revenues.isEmpty() ? 0 : revenues.size() + 1);
+        return (expensesCount == 0 ? 0 : expensesCount + 1) + (revenuesCount == 0 ? 0 : revenuesCount + 1);
     }
 
     @Override
@@ -129,20 +175,65 @@ public class MonthlyReportRecyclerViewAdapter extends RecyclerView.Adapter<Recyc
     }
 
     /**
-     * Get the expense for the given position
+     * Get the expense for the given position, loading its page if needed
      *
      * @param position the position
-     * @return the expense for that position
+     * @return the expense for that position, null if its page is not loaded yet
      */
     private Expense getExpense(int position)
     {
-        if( !revenues.isEmpty() && position - 1 < revenues.size() )
+        if( revenuesCount > 0 && position - 1 < revenuesCount )
+        {
+            return getExpense(true, position - 1);
+        }
+
+        int expensesHeaderDelta = 1 + (revenuesCount == 0 ? 0 : 1);
+        return getExpense(false, position - expensesHeaderDelta - revenuesCount);
+    }
+
+    /**
+     * Get the revenue or expense at the given index, loading its page if needed
+     *
+     * @param revenue true for a revenue, false for an expense
+     * @param index index among revenues or expenses
+     * @return the expense, null if its page is not loaded yet
+     */
+    private Expense getExpense(boolean revenue, int index)
+    {
+        SparseArray<List<Expense>> pages = revenue ? revenuesPages : expensesPages;
+        int page = index / MonthReport.PAGE_SIZE;
+
+        if( pages.indexOfKey(page) < 0 )
+        {
+            pages.put(page, null);
+            new LoadPageTask(revenue, page).execute();
+            return null;
+        }
+
+        List<Expense> rows = pages.get(page);
+        if( rows == null || index % MonthReport.PAGE_SIZE >= rows.size() )
+        {
+            return null;
+        }
+
+        return rows.get(index % MonthReport.PAGE_SIZE);
+    }
+
+    /**
+     * Get the position of the revenue or expense at the given index
+     *
+     * @param revenue true for a revenue, false for an expense
+     * @param index index among revenues or expenses
+     * @return the position
+     */
+    private int getPosition(boolean revenue, int index)
+    {
+        if( revenue )
         {
-            return revenues.get(position - 1);
+            return index + 1;
         }
 
-        int expensesHeaderDelta = 1 + (revenues.isEmpty() ? 0 : 1);
-        return expenses.get(position - expensesHeaderDelta - revenues.size());
+        return index + 1 + (revenuesCount == 0 ? 0 : revenuesCount + 1);
     }
 
     /**
@@ -164,7 +255,7 @@ public class MonthlyReportRecyclerViewAdapter extends RecyclerView.Adapter<Recyc
      */
     private boolean isExpensesHeader(int position)
     {
-        return !expenses.isEmpty() && position == revenues.size() + (revenues.isEmpty() ? 0 : 1);
+        return expensesCount > 0 && position == revenuesCount + (revenuesCount == 0 ? 0 : 1);
     }
 
     /**
@@ -175,7 +266,58 @@ public class MonthlyReportRecyclerViewAdapter extends RecyclerView.Adapter<Recyc
      */
     private boolean isRevenuesHeader(int position)
     {
-        return !revenues.isEmpty() && position == 0;
+        return revenuesCount > 0 && position == 0;
+    }
+
+// --------------------------------------->
+
+    /**
+     * Task that loads a page of rows from DB and displays it
+     */
+    private class LoadPageTask extends AsyncTask<Void, Void, List<Expense>>
+    {
+        /**
+         * Is it a page of revenues or of expenses
+         */
+        private final boolean revenue;
+        /**
+         * Index of the page
+         */
+        private final int page;
+
+        /**
+         *
+         * @param revenue true for a page of revenues, false for a page of expenses
+         * @param page index of the page
+         */
+        private LoadPageTask(boolean revenue, int page)
+        {
+            this.revenue = revenue;
+            this.page = page;
+        }
+
+        @Override
+        protected List<Expense> doInBackground(Void... params)
+        {
+            DB db = new DB(context);
+            try
+            {
+                return db.getExpensesPageForMonth(month, revenue, page * MonthReport.PAGE_SIZE, MonthReport.PAGE_SIZE);
+            }
+            finally
+            {
+                db.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(List<Expense> rows)
+        {
+            (revenue ? revenuesPages : expensesPages).put(page, rows);
+
+            int count = Math.min(MonthReport.PAGE_SIZE, (revenue ? revenuesCount : expensesCount) - page * MonthReport.PAGE_SIZE);
+            notifyItemRangeChanged(getPosition(revenue, page * MonthReport.PAGE_SIZE), count);
+        }
     }
 
 // --------------------------------------->